@@ -4,15 +4,23 @@ import android.app.Activity;
 import android.app.Application;
 import android.content.Context;
 import android.os.Bundle;
+import android.support.annotation.NonNull;
+import android.util.Log;
 
 import com.google.firebase.database.FirebaseDatabase;
 import com.google.firebase.storage.FirebaseStorage;
 
+import java.util.Locale;
+
+import it.polito.mad.mad2018.data.EntityRepository;
 import it.polito.mad.mad2018.data.LocalUserProfile;
+import it.polito.mad.mad2018.data.PictureUploader;
+import it.polito.mad.mad2018.utils.CompressedOutputStream;
 
 public class MAD2018Application extends Application
         implements Application.ActivityLifecycleCallbacks {
 
+    private static final String TAG = "MAD2018Application";
     private static final long UPLOAD_RETRY_TIMEOUT = 15000;
     private static Context applicationContext;
     private int activitiesStartedCount;
@@ -40,6 +48,9 @@ public class MAD2018Application extends Application
         if (this.activitiesStartedCount == 0 && LocalUserProfile.getInstance() != null) {
             LocalUserProfile.getInstance().addOnProfileUpdatedListener();
         }
+        if (this.activitiesStartedCount == 0) {
+            PictureUploader.getInstance().resumePending();
+        }
         this.activitiesStartedCount++;
     }
 
@@ -57,6 +68,26 @@ public class MAD2018Application extends Application
         if (this.activitiesStartedCount == 0 && LocalUserProfile.getInstance() != null) {
             LocalUserProfile.getInstance().removeOnProfileUpdatedListener();
         }
+        if (this.activitiesStartedCount == 0 && BuildConfig.DEBUG) {
+            logStatistics();
+        }
+    }
+
+    // Debug builds only: the statistics are printed when the application goes to background
+    private static void logStatistics() {
+        logStatistics("Books", EntityRepository.getInstance().getBooksStatistics());
+        logStatistics("Profiles", EntityRepository.getInstance().getProfilesStatistics());
+
+        CompressedOutputStream.Statistics buffers = CompressedOutputStream.getStatistics();
+        Log.d(TAG, String.format(Locale.US, "Image buffers: %d allocated (%d bytes), %d reused",
+                buffers.getAllocatedBufferCount(), buffers.getAllocatedBytes(),
+                buffers.getReusedBufferCount()));
+    }
+
+    private static void logStatistics(@NonNull String name, @NonNull EntityRepository.Statistics statistics) {
+        Log.d(TAG, String.format(Locale.US, "%s cache: %d hits, %d misses, %d fetches (hit rate %.2f)",
+                name, statistics.getHitCount(), statistics.getMissCount(),
+                statistics.getFetchCount(), statistics.getHitRate()));
     }
 
     @Override
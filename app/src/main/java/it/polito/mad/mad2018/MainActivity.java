@@ -217,7 +217,7 @@ public class MainActivity extends AppCompatActivityDialog<MainActivity.DialogID>
 
             case RC_EDIT_PROFILE:
                 if (resultCode == RESULT_OK) {
-                    LocalUserProfile.setInstance((LocalUserProfile) data.getSerializableExtra(UserProfile.PROFILE_INFO_KEY));
+                    LocalUserProfile.setInstance((LocalUserProfile) data.getParcelableExtra(UserProfile.PROFILE_INFO_KEY));
                     LocalUserProfile.getInstance().postCommit();
                     updateNavigationView(); // Need to update the drawer information
                     this.replaceFragment(ShowProfileFragment.newInstance(LocalUserProfile.getInstance(), true), true);
@@ -226,7 +226,7 @@ public class MainActivity extends AppCompatActivityDialog<MainActivity.DialogID>
 
             case RC_EDIT_PROFILE_WELCOME:
                 if (resultCode == RESULT_OK) {
-                    LocalUserProfile.setInstance((LocalUserProfile) data.getSerializableExtra(UserProfile.PROFILE_INFO_KEY));
+                    LocalUserProfile.setInstance((LocalUserProfile) data.getParcelableExtra(UserProfile.PROFILE_INFO_KEY));
                     LocalUserProfile.getInstance().postCommit();
                     updateNavigationView(); // Need to update the drawer information
                 }
@@ -258,6 +258,7 @@ public class MainActivity extends AppCompatActivityDialog<MainActivity.DialogID>
         GlideRequest<Drawable> thumbnail = GlideApp
                 .with(this)
                 .load(localProfile.getProfilePictureThumbnail())
+                .signature(new ObjectKey(localProfile.getProfilePictureLastModified()))
                 .apply(RequestOptions.circleCropTransform());
 
         GlideApp.with(this)
@@ -334,7 +335,7 @@ public class MainActivity extends AppCompatActivityDialog<MainActivity.DialogID>
                 closeDialog();
                 showDefaultFragment();
 
-                UserProfile.Data data = dataSnapshot.getValue(UserProfile.Data.class);
+                UserProfile.Data data = UserProfile.Data.fromSnapshot(dataSnapshot);
                 if (data == null) {
                     completeRegistration();
                 } else {
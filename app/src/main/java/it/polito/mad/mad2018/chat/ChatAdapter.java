@@ -4,7 +4,6 @@ import android.content.Context;
 import android.graphics.Typeface;
 import android.support.annotation.NonNull;
 import android.support.v7.widget.RecyclerView;
-import android.util.Pair;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -12,22 +11,16 @@ import android.widget.ImageView;
 import android.widget.TextView;
 
 import com.bumptech.glide.load.resource.drawable.DrawableTransitionOptions;
-import com.firebase.ui.common.ChangeEventType;
 import com.firebase.ui.database.FirebaseRecyclerAdapter;
 import com.firebase.ui.database.FirebaseRecyclerOptions;
-import com.google.firebase.database.DataSnapshot;
-import com.google.firebase.database.DatabaseError;
-import com.google.firebase.database.ValueEventListener;
 
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Map;
 import java.util.Set;
 
 import it.polito.mad.mad2018.R;
 import it.polito.mad.mad2018.data.Book;
 import it.polito.mad.mad2018.data.Conversation;
+import it.polito.mad.mad2018.data.EntityRepository;
 import it.polito.mad.mad2018.data.UserProfile;
 import it.polito.mad.mad2018.utils.GlideApp;
 
@@ -36,11 +29,11 @@ public class ChatAdapter extends FirebaseRecyclerAdapter<Conversation, ChatAdapt
     private final OnItemClickListener onItemClickListener;
     private final OnItemCountChangedListener onItemCountChangedListener;
 
-    private final Map<String, UserProfile> userProfiles;
-    private final Map<String, Pair<ValueEventListener, Set<Integer>>> profileListeners;
+    private final Set<String> requestedProfiles;
+    private final EntityRepository.OnEntityLoadedListener<UserProfile> onProfileLoadedListener;
 
-    private final Map<String, Book> books;
-    private final Map<String, Pair<ValueEventListener, Set<Integer>>> bookListeners;
+    private final Set<String> requestedBooks;
+    private final EntityRepository.OnEntityLoadedListener<Book> onBookLoadedListener;
 
 
     ChatAdapter(@NonNull FirebaseRecyclerOptions<Conversation> options,
@@ -51,10 +44,21 @@ public class ChatAdapter extends FirebaseRecyclerAdapter<Conversation, ChatAdapt
         this.onItemClickListener = onItemClickListener;
         this.onItemCountChangedListener = onItemCountChangedListener;
 
-        this.userProfiles = new HashMap<>();
-        this.profileListeners = new HashMap<>();
-        this.books = new HashMap<>();
-        this.bookListeners = new HashMap<>();
+        this.requestedProfiles = new HashSet<>();
+        this.onProfileLoadedListener = (peerId, profile) -> {
+            requestedProfiles.remove(peerId);
+            if (profile != null) {
+                notifyItemsChanged(peerId, true);
+            }
+        };
+
+        this.requestedBooks = new HashSet<>();
+        this.onBookLoadedListener = (bookId, book) -> {
+            requestedBooks.remove(bookId);
+            if (book != null) {
+                notifyItemsChanged(bookId, false);
+            }
+        };
     }
 
     @NonNull
@@ -71,14 +75,14 @@ public class ChatAdapter extends FirebaseRecyclerAdapter<Conversation, ChatAdapt
         String peerId = conversation.getPeerUserId();
         String bookId = conversation.getBookId();
 
-        UserProfile peer = userProfiles.get(peerId);
-        Book book = books.get(bookId);
+        UserProfile peer = EntityRepository.getInstance().getProfile(peerId, onProfileLoadedListener);
+        Book book = EntityRepository.getInstance().getBook(bookId, onBookLoadedListener);
 
         if (peer == null) {
-            this.addListener(peerId, position, true);
+            requestedProfiles.add(peerId);
         }
         if (book == null) {
-            this.addListener(bookId, position, false);
+            requestedBooks.add(bookId);
         }
 
         holder.update(conversation, peer, book);
@@ -88,15 +92,15 @@ public class ChatAdapter extends FirebaseRecyclerAdapter<Conversation, ChatAdapt
     public void onDetachedFromRecyclerView(@NonNull RecyclerView recyclerView) {
         super.onDetachedFromRecyclerView(recyclerView);
 
-        for (Map.Entry<String, Pair<ValueEventListener, Set<Integer>>> entry :
-                profileListeners.entrySet()) {
-            UserProfile.unsetOnProfileLoadedListener(entry.getKey(), entry.getValue().first);
+        for (String peerId : requestedProfiles) {
+            EntityRepository.getInstance().removeOnProfileLoadedListener(peerId, onProfileLoadedListener);
         }
+        requestedProfiles.clear();
 
-        for (Map.Entry<String, Pair<ValueEventListener, Set<Integer>>> entry :
-                bookListeners.entrySet()) {
-            Book.unsetOnBookLoadedListener(entry.getKey(), entry.getValue().first);
+        for (String bookId : requestedBooks) {
+            EntityRepository.getInstance().removeOnBookLoadedListener(bookId, onBookLoadedListener);
         }
+        requestedBooks.clear();
     }
 
     @Override
@@ -105,105 +109,16 @@ public class ChatAdapter extends FirebaseRecyclerAdapter<Conversation, ChatAdapt
         onItemCountChangedListener.onCountChangedListener(this.getItemCount());
     }
 
-    @Override
-    public void onChildChanged(@NonNull ChangeEventType type, @NonNull DataSnapshot snapshot, int newIndex, int oldIndex) {
-        super.onChildChanged(type, snapshot, newIndex, oldIndex);
-
-        if (type == ChangeEventType.MOVED && newIndex != oldIndex) {
-
-            for (Pair<ValueEventListener, Set<Integer>> listener : profileListeners.values()) {
-                if (listener.second.remove(oldIndex)) {
-                    listener.second.add(newIndex);
-                }
-            }
-
-            for (Pair<ValueEventListener, Set<Integer>> listener : bookListeners.values()) {
-                if (listener.second.remove(oldIndex)) {
-                    listener.second.add(newIndex);
-                }
+    private void notifyItemsChanged(@NonNull String id, boolean isProfile) {
+        for (int position = 0; position < getItemCount(); position++) {
+            Conversation conversation = getItem(position);
+            String itemId = isProfile ? conversation.getPeerUserId() : conversation.getBookId();
+            if (id.equals(itemId)) {
+                notifyItemChanged(position);
             }
         }
     }
 
-    private void addListener(String id, int position, boolean requestProfile) {
-
-        Map<String, Pair<ValueEventListener, Set<Integer>>> listeners =
-                requestProfile ? profileListeners : bookListeners;
-
-        Pair<ValueEventListener, Set<Integer>> listenerPair = listeners.get(id);
-        if (listenerPair == null) {
-
-            ValueEventListener listener = requestProfile
-                    ? setOnProfileLoadedListener(id)
-                    : setOnBookLoadedListener(id);
-
-            listenerPair = new Pair<>(listener, new HashSet<>(Collections.singletonList(position)));
-            listeners.put(id, listenerPair);
-        } else {
-            listenerPair.second.add(position);
-        }
-    }
-
-    private ValueEventListener setOnProfileLoadedListener(String peerId) {
-
-        return UserProfile.setOnProfileLoadedListener(
-                peerId,
-                new ValueEventListener() {
-                    @Override
-                    public void onDataChange(DataSnapshot dataSnapshot) {
-
-                        Pair<ValueEventListener, Set<Integer>> listener = profileListeners.remove(peerId);
-                        UserProfile.Data data = dataSnapshot.getValue(UserProfile.Data.class);
-                        if (listener == null || data == null) {
-                            return;
-                        }
-
-                        UserProfile.unsetOnProfileLoadedListener(peerId, listener.first);
-
-                        userProfiles.put(peerId, new UserProfile(peerId, data));
-                        for (int position : listener.second) {
-                            notifyItemChanged(position);
-                        }
-                    }
-
-                    @Override
-                    public void onCancelled(DatabaseError databaseError) {
-                        Pair<ValueEventListener, Set<Integer>> listener = profileListeners.remove(peerId);
-                        UserProfile.unsetOnProfileLoadedListener(peerId, listener.first);
-                    }
-                });
-    }
-
-    private ValueEventListener setOnBookLoadedListener(String bookId) {
-
-        return Book.setOnBookLoadedListener(
-                bookId,
-                new ValueEventListener() {
-                    @Override
-                    public void onDataChange(DataSnapshot dataSnapshot) {
-
-                        Pair<ValueEventListener, Set<Integer>> listener = bookListeners.remove(bookId);
-                        Book.Data data = dataSnapshot.getValue(Book.Data.class);
-                        if (listener == null || data == null) {
-                            return;
-                        }
-
-                        Book.unsetOnBookLoadedListener(bookId, listener.first);
-
-                        books.put(bookId, new Book(bookId, data));
-                        for (int position : listener.second) {
-                            notifyItemChanged(position);
-                        }
-                    }
-
-                    @Override
-                    public void onCancelled(DatabaseError databaseError) {
-                        Pair<ValueEventListener, Set<Integer>> listener = bookListeners.remove(bookId);
-                        Book.unsetOnBookLoadedListener(bookId, listener.first);
-                    }
-                });
-    }
-
     interface OnItemClickListener {
         void onClick(@NonNull View view, @NonNull Conversation conversation,
                      UserProfile peer, Book book);
@@ -248,8 +163,8 @@ public class ChatAdapter extends FirebaseRecyclerAdapter<Conversation, ChatAdapt
             this.book = book;
 
             Conversation.Message last = conversation.getLastMessage();
-            this.message.setText(last.getText());
-            this.date.setText(last.getDateTime());
+            this.message.setText(last == null ? null : last.getText());
+            this.date.setText(last == null ? null : last.getDateTime());
 
             GlideApp.with(context)
                     .load(book == null ? null : book.getBookThumbnailReferenceOrNull())
@@ -23,7 +23,7 @@ class RatingFragment : DialogFragment() {
         fun newInstance(conversation: Conversation): RatingFragment {
             val ratingFragment = RatingFragment()
             ratingFragment.arguments = Bundle().apply {
-                putSerializable(Conversation.CONVERSATION_KEY, conversation)
+                putParcelable(Conversation.CONVERSATION_KEY, conversation)
             }
             return ratingFragment
         }
@@ -32,7 +32,7 @@ class RatingFragment : DialogFragment() {
     override fun onCreateDialog(savedInstanceState: Bundle?): Dialog {
         super.onCreateDialog(savedInstanceState)
 
-        conversation = arguments!!.getSerializable(Conversation.CONVERSATION_KEY) as Conversation
+        conversation = arguments!!.getParcelable<Conversation>(Conversation.CONVERSATION_KEY)
 
         val builder: AlertDialog.Builder = AlertDialog.Builder(context!!)
         val inflater: LayoutInflater = activity!!.layoutInflater
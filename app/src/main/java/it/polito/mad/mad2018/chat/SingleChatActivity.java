@@ -7,6 +7,7 @@ import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.Toolbar;
 import android.view.MenuItem;
 import android.view.View;
+import android.widget.Toast;
 
 import com.google.firebase.database.DataSnapshot;
 import com.google.firebase.database.DatabaseError;
@@ -15,6 +16,7 @@ import com.google.firebase.database.ValueEventListener;
 import it.polito.mad.mad2018.R;
 import it.polito.mad.mad2018.data.Book;
 import it.polito.mad.mad2018.data.Conversation;
+import it.polito.mad.mad2018.data.EntityRepository;
 import it.polito.mad.mad2018.data.LocalUserProfile;
 import it.polito.mad.mad2018.data.UserProfile;
 import it.polito.mad.mad2018.library.BookInfoActivity;
@@ -32,7 +34,9 @@ public class SingleChatActivity extends AppCompatActivity
     private Book book;
     private String conversationId;
 
-    private ValueEventListener conversationListener, profileListener, bookListener;
+    private ValueEventListener conversationListener;
+    private EntityRepository.OnEntityLoadedListener<UserProfile> profileListener;
+    private EntityRepository.OnEntityLoadedListener<Book> bookListener;
     private ValueEventListener localProfileListener;
 
     @Override
@@ -49,14 +53,14 @@ public class SingleChatActivity extends AppCompatActivity
         }
 
         if (savedInstanceState != null) {
-            conversation = (Conversation) savedInstanceState.getSerializable(Conversation.CONVERSATION_KEY);
-            peer = (UserProfile) savedInstanceState.getSerializable(UserProfile.PROFILE_INFO_KEY);
-            book = (Book) savedInstanceState.getSerializable(Book.BOOK_KEY);
+            conversation = (Conversation) savedInstanceState.getParcelable(Conversation.CONVERSATION_KEY);
+            peer = (UserProfile) savedInstanceState.getParcelable(UserProfile.PROFILE_INFO_KEY);
+            book = (Book) savedInstanceState.getParcelable(Book.BOOK_KEY);
             conversationId = savedInstanceState.getString(Conversation.CONVERSATION_ID_KEY);
         } else {
-            conversation = (Conversation) getIntent().getSerializableExtra(Conversation.CONVERSATION_KEY);
-            peer = (UserProfile) getIntent().getSerializableExtra(UserProfile.PROFILE_INFO_KEY);
-            book = (Book) getIntent().getSerializableExtra(Book.BOOK_KEY);
+            conversation = (Conversation) getIntent().getParcelableExtra(Conversation.CONVERSATION_KEY);
+            peer = (UserProfile) getIntent().getParcelableExtra(UserProfile.PROFILE_INFO_KEY);
+            book = (Book) getIntent().getParcelableExtra(Book.BOOK_KEY);
             conversationId = getIntent().getStringExtra(Conversation.CONVERSATION_ID_KEY);
         }
 
@@ -67,10 +71,10 @@ public class SingleChatActivity extends AppCompatActivity
     protected void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
 
-        outState.putSerializable(Conversation.CONVERSATION_KEY, conversation);
-        outState.putSerializable(UserProfile.PROFILE_INFO_KEY, peer);
-        outState.putSerializable(Book.BOOK_KEY, book);
-        outState.putSerializable(Conversation.CONVERSATION_ID_KEY, conversationId);
+        outState.putParcelable(Conversation.CONVERSATION_KEY, conversation);
+        outState.putParcelable(UserProfile.PROFILE_INFO_KEY, peer);
+        outState.putParcelable(Book.BOOK_KEY, book);
+        outState.putString(Conversation.CONVERSATION_ID_KEY, conversationId);
     }
 
     @Override
@@ -175,6 +179,13 @@ public class SingleChatActivity extends AppCompatActivity
         }
     }
 
+    private void onLoadingFailed() {
+        unsetOnProfileLoadedListener();
+        unsetOnBookLoadedListener();
+        Toast.makeText(this, R.string.error_occurred, Toast.LENGTH_LONG).show();
+        finish();
+    }
+
     private void setOnLocalProfileLoadedListener() {
 
         this.localProfileListener = LocalUserProfile.setOnProfileLoadedListener(
@@ -185,7 +196,7 @@ public class SingleChatActivity extends AppCompatActivity
                             return;
                         }
 
-                        UserProfile.Data data = dataSnapshot.getValue(UserProfile.Data.class);
+                        UserProfile.Data data = UserProfile.Data.fromSnapshot(dataSnapshot);
                         if (data != null) {
                             LocalUserProfile.setInstance(new LocalUserProfile(data));
                             afterLocalProfileLoaded();
@@ -216,7 +227,7 @@ public class SingleChatActivity extends AppCompatActivity
                 if (!unsetOnConversationLoadedListener())
                     return;
 
-                Conversation.Data data = dataSnapshot.getValue(Conversation.Data.class);
+                Conversation.Data data = Conversation.Data.fromSnapshot(dataSnapshot);
                 if (data != null) {
                     conversation = new Conversation(conversationId, data);
                     afterConversationLoaded();
@@ -242,73 +253,61 @@ public class SingleChatActivity extends AppCompatActivity
 
     private void setOnProfileLoadedListener() {
 
-        this.profileListener = UserProfile.setOnProfileLoadedListener(
-                conversation.getPeerUserId(),
-                new ValueEventListener() {
-                    @Override
-                    public void onDataChange(DataSnapshot dataSnapshot) {
-                        if (!unsetOnProfileLoadedListener()) {
-                            return;
-                        }
+        this.profileListener = (peerId, profile) -> {
+            this.profileListener = null;
+            if (profile == null) {
+                onLoadingFailed();
+                return;
+            }
 
-                        UserProfile.Data data = dataSnapshot.getValue(UserProfile.Data.class);
-                        if (data != null) {
-                            peer = new UserProfile(conversation.getPeerUserId(), data);
-                            if (book != null) {
-                                afterAllDataLoaded();
-                            }
-                        }
-                    }
+            peer = profile;
+            if (book != null) {
+                afterAllDataLoaded();
+            }
+        };
 
-                    @Override
-                    public void onCancelled(DatabaseError databaseError) {
-                        unsetOnProfileLoadedListener();
-                    }
-                });
+        UserProfile cachedProfile = EntityRepository.getInstance()
+                .getProfile(conversation.getPeerUserId(), this.profileListener);
+        if (cachedProfile != null) {
+            this.profileListener.onEntityLoaded(conversation.getPeerUserId(), cachedProfile);
+        }
     }
 
-    private boolean unsetOnProfileLoadedListener() {
+    private void unsetOnProfileLoadedListener() {
         if (this.profileListener != null) {
-            UserProfile.unsetOnProfileLoadedListener(conversation.getPeerUserId(), this.profileListener);
+            EntityRepository.getInstance()
+                    .removeOnProfileLoadedListener(conversation.getPeerUserId(), this.profileListener);
             this.profileListener = null;
-            return true;
         }
-        return false;
     }
 
     private void setOnBookLoadedListener() {
 
-        this.bookListener = Book.setOnBookLoadedListener(
-                conversation.getBookId(),
-                new ValueEventListener() {
-                    @Override
-                    public void onDataChange(DataSnapshot dataSnapshot) {
-                        if (!unsetOnBookLoadedListener()) {
-                            return;
-                        }
+        this.bookListener = (bookId, book) -> {
+            this.bookListener = null;
+            if (book == null) {
+                onLoadingFailed();
+                return;
+            }
 
-                        Book.Data data = dataSnapshot.getValue(Book.Data.class);
-                        if (data != null) {
-                            book = new Book(conversation.getBookId(), data);
-                            if (peer != null) {
-                                afterAllDataLoaded();
-                            }
-                        }
-                    }
+            this.book = book;
+            if (peer != null) {
+                afterAllDataLoaded();
+            }
+        };
 
-                    @Override
-                    public void onCancelled(DatabaseError databaseError) {
-                        unsetOnProfileLoadedListener();
-                    }
-                });
+        Book cachedBook = EntityRepository.getInstance()
+                .getBook(conversation.getBookId(), this.bookListener);
+        if (cachedBook != null) {
+            this.bookListener.onEntityLoaded(conversation.getBookId(), cachedBook);
+        }
     }
 
-    private boolean unsetOnBookLoadedListener() {
+    private void unsetOnBookLoadedListener() {
         if (this.bookListener != null) {
-            Book.unsetOnBookLoadedListener(conversation.getBookId(), this.bookListener);
+            EntityRepository.getInstance()
+                    .removeOnBookLoadedListener(conversation.getBookId(), this.bookListener);
             this.bookListener = null;
-            return true;
         }
-        return false;
     }
 }
@@ -7,14 +7,12 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
 
-import com.firebase.ui.database.FirebaseRecyclerAdapter;
-import com.firebase.ui.database.FirebaseRecyclerOptions;
-import com.firebase.ui.database.ObservableSnapshotArray;
-
 import it.polito.mad.mad2018.R;
 import it.polito.mad.mad2018.data.Conversation;
+import it.polito.mad.mad2018.data.MessagesPager;
 
-public class SingleChatAdapter extends FirebaseRecyclerAdapter<Conversation.Message, SingleChatAdapter.ChatHolder> {
+public class SingleChatAdapter extends RecyclerView.Adapter<SingleChatAdapter.ChatHolder>
+        implements MessagesPager.OnMessagesChangedListener {
 
     private final static int LAYOUT_MESSAGE_RIGHT = 0;
     private final static int LAYOUT_MESSAGE_LEFT = 1;
@@ -22,16 +20,23 @@ public class SingleChatAdapter extends FirebaseRecyclerAdapter<Conversation.Mess
 
 
     private final OnItemCountChangedListener onItemCountChangedListener;
-    private final ObservableSnapshotArray<Conversation.Message> conversation;
+    private final MessagesPager conversation;
 
-    SingleChatAdapter(@NonNull FirebaseRecyclerOptions<Conversation.Message> options,
+    SingleChatAdapter(@NonNull Conversation conversation,
                       @NonNull OnItemCountChangedListener onItemCountChangedListener) {
 
-        super(options);
-        this.conversation = options.getSnapshots();
+        this.conversation = conversation.getMessagesPager(this);
         this.onItemCountChangedListener = onItemCountChangedListener;
     }
 
+    void startListening() {
+        this.conversation.startListening();
+    }
+
+    void stopListening() {
+        this.conversation.stopListening();
+    }
+
     @NonNull
     @Override
     public ChatHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
@@ -46,8 +51,14 @@ public class SingleChatAdapter extends FirebaseRecyclerAdapter<Conversation.Mess
     }
 
     @Override
-    protected void onBindViewHolder(@NonNull ChatHolder holder, int position, @NonNull Conversation.Message model) {
-        holder.update(model);
+    public void onBindViewHolder(@NonNull ChatHolder holder, int position) {
+        holder.update(this.conversation.get(position));
+        this.conversation.onPositionBound(position);
+    }
+
+    @Override
+    public int getItemCount() {
+        return this.conversation.size();
     }
 
     @Override
@@ -59,8 +70,22 @@ public class SingleChatAdapter extends FirebaseRecyclerAdapter<Conversation.Mess
     }
 
     @Override
-    public void onDataChanged() {
-        super.onDataChanged();
+    public void onMessagesInserted(int position, int count) {
+        notifyItemRangeInserted(position, count);
+    }
+
+    @Override
+    public void onMessagesRemoved(int position, int count) {
+        notifyItemRangeRemoved(position, count);
+    }
+
+    @Override
+    public void onMessageChanged(int position) {
+        notifyItemChanged(position);
+    }
+
+    @Override
+    public void onNewestMessagesChanged() {
         onItemCountChangedListener.onCountChangedListener(this.getItemCount());
     }
 
@@ -57,9 +57,9 @@ public class SingleChatFragment extends FragmentDialog<SingleChatFragment.Dialog
 
         SingleChatFragment fragment = new SingleChatFragment();
         Bundle args = new Bundle();
-        args.putSerializable(Conversation.CONVERSATION_KEY, conversation);
-        args.putSerializable(UserProfile.PROFILE_INFO_KEY, peer);
-        args.putSerializable(Book.BOOK_KEY, book);
+        args.putParcelable(Conversation.CONVERSATION_KEY, conversation);
+        args.putParcelable(UserProfile.PROFILE_INFO_KEY, peer);
+        args.putParcelable(Book.BOOK_KEY, book);
         fragment.setArguments(args);
         return fragment;
     }
@@ -69,9 +69,9 @@ public class SingleChatFragment extends FragmentDialog<SingleChatFragment.Dialog
         super.onCreate(savedInstanceState);
 
         assert getArguments() != null;
-        conversation = (Conversation) getArguments().getSerializable(Conversation.CONVERSATION_KEY);
-        peer = (UserProfile) getArguments().getSerializable(UserProfile.PROFILE_INFO_KEY);
-        book = (Book) getArguments().getSerializable(Book.BOOK_KEY);
+        conversation = (Conversation) getArguments().getParcelable(Conversation.CONVERSATION_KEY);
+        peer = (UserProfile) getArguments().getParcelable(UserProfile.PROFILE_INFO_KEY);
+        book = (Book) getArguments().getParcelable(Book.BOOK_KEY);
         conversationArchived = conversation.isArchived();
     }
 
@@ -166,11 +166,12 @@ public class SingleChatFragment extends FragmentDialog<SingleChatFragment.Dialog
         final LinearLayoutManager linearLayoutManager = new LinearLayoutManager(getContext());
         recyclerViewMessages.setLayoutManager(linearLayoutManager);
 
-        adapter = new SingleChatAdapter(conversation.getMessages(), (count) -> {
+        adapter = new SingleChatAdapter(conversation, (count) -> {
             viewNoMessages.setVisibility(count == 0 ? View.VISIBLE : View.GONE);
             recyclerViewMessages.setVisibility(count == 0 ? View.GONE : View.VISIBLE);
             if (count > 0) {
-                linearLayoutManager.scrollToPosition(count - 1 - conversation.getUnreadMessagesCount());
+                linearLayoutManager.scrollToPosition(
+                        Math.max(0, count - 1 - conversation.getUnreadMessagesCount()));
             }
             conversation.setMessagesAllRead();
 
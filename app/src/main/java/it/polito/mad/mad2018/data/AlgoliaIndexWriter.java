@@ -0,0 +1,350 @@
+package it.polito.mad.mad2018.data;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.algolia.search.saas.AlgoliaException;
+import com.algolia.search.saas.CompletionHandler;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import it.polito.mad.mad2018.BuildConfig;
+import it.polito.mad.mad2018.MAD2018Application;
+import it.polito.mad.mad2018.utils.FileUtilities;
+import it.polito.mad.mad2018.utils.JsonUtilities;
+
+/* Queue of the modifications of the books index, sent to Algolia through batch requests.
+ * Successive operations on the same object are merged (e.g. two partial updates become one,
+ * a deletion replaces whatever was pending), and the operations enqueued in a short interval
+ * are sent together. The queue is saved to a file, and the operations failed due to transient
+ * errors (e.g. no connectivity) are retried with exponential backoff, also after a restart.
+ * The completion handlers are notified when the operation is applied, or as soon as it fails
+ * transiently (the same as the Firebase writes performed offline), while the operations
+ * refused by Algolia are discarded and their error reported. Since a batch is refused as a whole,
+ * its operations are then sent again one at a time, so that only the refused ones are discarded */
+class AlgoliaIndexWriter {
+
+    private static final String TAG = "AlgoliaIndexWriter";
+    private static final int MAX_BATCH_SIZE = 100;
+    private static final long FLUSH_DELAY_MILLIS = 500;
+    private static final long INITIAL_BACKOFF_MILLIS = 2000;
+    private static final long MAX_BACKOFF_MILLIS = 5 * 60 * 1000;
+    private static final String QUEUE_FILE_NAME = "algolia_pending_operations.json";
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private static final String OPERATION_ID_KEY = "objectID";
+    private static final String OPERATION_TYPE_KEY = "type";
+    private static final String OPERATION_BODY_KEY = "body";
+
+    private static AlgoliaIndexWriter instance;
+
+    private final Handler handler;
+    private final Runnable flushTask;
+    private final LinkedHashMap<String, Operation> pending;
+    private final List<Operation> inFlight;
+    private int failedAttempts;
+    private int isolatedOperations;
+
+    private AlgoliaIndexWriter() {
+        this.handler = new Handler(Looper.getMainLooper());
+        this.flushTask = this::flush;
+        this.pending = new LinkedHashMap<>();
+        this.inFlight = new ArrayList<>();
+        this.failedAttempts = 0;
+        this.isolatedOperations = 0;
+
+        load();
+    }
+
+    static AlgoliaIndexWriter getInstance() {
+        if (instance == null) {
+            instance = new AlgoliaIndexWriter();
+        }
+        return instance;
+    }
+
+    private static File getQueueFile() {
+        return new File(MAD2018Application.getApplicationContextStatic().getFilesDir(), QUEUE_FILE_NAME);
+    }
+
+    void addObject(@NonNull String objectId, @NonNull JSONObject object,
+                   @Nullable CompletionHandler completionHandler) {
+        enqueue(new Operation(objectId, Operation.ADD, JsonUtilities.copy(object), completionHandler));
+    }
+
+    void partialUpdateObject(@NonNull String objectId, @NonNull JSONObject update,
+                             @Nullable CompletionHandler completionHandler) {
+        enqueue(new Operation(objectId, Operation.UPDATE, JsonUtilities.copy(update), completionHandler));
+    }
+
+    void deleteObject(@NonNull String objectId, @Nullable CompletionHandler completionHandler) {
+        enqueue(new Operation(objectId, Operation.DELETE, new JSONObject(), completionHandler));
+    }
+
+    int getQueueDepth() {
+        return pending.size() + inFlight.size();
+    }
+
+    private void enqueue(@NonNull Operation operation) {
+        Operation previous = pending.remove(operation.objectId);
+        pending.put(operation.objectId, previous == null ? operation : previous.then(operation));
+        save();
+
+        // Waiting a little allows the following operations to be part of the same batch
+        if (inFlight.isEmpty() && failedAttempts == 0) {
+            handler.removeCallbacks(flushTask);
+            handler.postDelayed(flushTask, FLUSH_DELAY_MILLIS);
+        }
+    }
+
+    private void flush() {
+        if (!inFlight.isEmpty() || pending.isEmpty()) {
+            return;
+        }
+
+        int batchSize = isolatedOperations > 0 ? 1 : MAX_BATCH_SIZE;
+        JSONArray requests = new JSONArray();
+        Iterator<Operation> iterator = pending.values().iterator();
+        while (iterator.hasNext() && inFlight.size() < batchSize) {
+            Operation operation = iterator.next();
+            iterator.remove();
+            inFlight.add(operation);
+            requests.put(operation.toBatchRequest());
+        }
+
+        OwnedBook.AlgoliaBookIndex.getInstance()
+                .batchAsync(requests, this::onFlushCompleted);
+    }
+
+    private void onFlushCompleted(JSONObject content, AlgoliaException error) {
+        List<Operation> completed = new ArrayList<>(inFlight);
+        inFlight.clear();
+
+        if (error != null && error.isTransient()) {
+            List<Operation> retained = new ArrayList<>();
+            for (Operation operation : completed) {
+                retained.add(operation.retained());
+            }
+            requeue(retained);
+
+            for (Operation operation : completed) {
+                operation.notifyCompleted(null, null);
+            }
+
+            long backoff = Math.min(INITIAL_BACKOFF_MILLIS << Math.min(failedAttempts, 16), MAX_BACKOFF_MILLIS);
+            failedAttempts++;
+            handler.postDelayed(flushTask, backoff);
+            return;
+        }
+
+        failedAttempts = 0;
+        if (error != null && completed.size() > 1) {
+            // The handlers are notified once each operation is applied or refused on its own
+            requeue(completed);
+            isolatedOperations = completed.size();
+            logQueueDepth("Batch refused, retrying its operations one at a time");
+            handler.post(flushTask);
+            return;
+        }
+
+        if (isolatedOperations > 0) {
+            isolatedOperations--;
+        }
+        save();
+        logQueueDepth(error == null ? "Batch applied" : "Operation refused");
+
+        for (Operation operation : completed) {
+            if (error == null) {
+                if (operation.type == Operation.ADD) {
+                    BookSearchCache.invalidateAll();
+                } else {
+                    BookSearchCache.invalidateBook(operation.objectId);
+                }
+            }
+            operation.notifyCompleted(content, error);
+        }
+
+        if (!pending.isEmpty()) {
+            handler.post(flushTask);
+        }
+    }
+
+    // The operations go back in front of the queue, merged with the ones enqueued meanwhile
+    private void requeue(@NonNull List<Operation> operations) {
+        LinkedHashMap<String, Operation> requeued = new LinkedHashMap<>();
+        for (Operation operation : operations) {
+            Operation following = pending.remove(operation.objectId);
+            requeued.put(operation.objectId, following == null
+                    ? operation : operation.then(following));
+        }
+        requeued.putAll(pending);
+        pending.clear();
+        pending.putAll(requeued);
+        save();
+    }
+
+    private void logQueueDepth(@NonNull String event) {
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, String.format(Locale.US, "%s: %d operations queued", event, getQueueDepth()));
+        }
+    }
+
+    private void save() {
+        JSONArray operations = new JSONArray();
+        try {
+            for (Operation operation : inFlight) {
+                operations.put(operation.toJSON());
+            }
+            for (Operation operation : pending.values()) {
+                operations.put(operation.toJSON());
+            }
+        } catch (JSONException e) {
+            return;
+        }
+
+        FileUtilities.writeFileAtomicallyAsync(getQueueFile(), operations.toString().getBytes(CHARSET));
+    }
+
+    private void load() {
+        FileUtilities.executeSerially(() -> {
+            JSONArray operations;
+            try {
+                byte[] content = FileUtilities.readFileAtomically(getQueueFile());
+                operations = new JSONArray(new String(content, CHARSET));
+            } catch (IOException | JSONException e) {
+                return;
+            }
+
+            handler.post(() -> {
+                // The saved operations precede the ones enqueued in the meanwhile
+                LinkedHashMap<String, Operation> restored = new LinkedHashMap<>();
+                for (int i = 0; i < operations.length(); i++) {
+                    Operation operation = Operation.fromJSON(operations.optJSONObject(i));
+                    if (operation != null) {
+                        Operation previous = restored.remove(operation.objectId);
+                        restored.put(operation.objectId,
+                                previous == null ? operation : previous.then(operation));
+                    }
+                }
+                for (Map.Entry<String, Operation> entry : pending.entrySet()) {
+                    Operation previous = restored.remove(entry.getKey());
+                    restored.put(entry.getKey(),
+                            previous == null ? entry.getValue() : previous.then(entry.getValue()));
+                }
+
+                pending.clear();
+                pending.putAll(restored);
+                if (!pending.isEmpty() && inFlight.isEmpty()) {
+                    handler.removeCallbacks(flushTask);
+                    handler.post(flushTask);
+                }
+            });
+        });
+    }
+
+    private static class Operation {
+        private static final int ADD = 0;
+        private static final int UPDATE = 1;
+        private static final int DELETE = 2;
+
+        private final String objectId;
+        private final int type;
+        private final JSONObject body;
+        private final List<CompletionHandler> completionHandlers;
+
+        private Operation(@NonNull String objectId, int type, @NonNull JSONObject body,
+                          @Nullable CompletionHandler completionHandler) {
+            this.objectId = objectId;
+            this.type = type;
+            this.body = body;
+            this.completionHandlers = new ArrayList<>();
+            if (completionHandler != null) {
+                this.completionHandlers.add(completionHandler);
+            }
+        }
+
+        private static Operation fromJSON(@Nullable JSONObject json) {
+            if (json == null) {
+                return null;
+            }
+
+            String objectId = json.optString(OPERATION_ID_KEY, null);
+            int type = json.optInt(OPERATION_TYPE_KEY, -1);
+            JSONObject body = json.optJSONObject(OPERATION_BODY_KEY);
+            if (objectId == null || body == null || type < ADD || type > DELETE) {
+                return null;
+            }
+            return new Operation(objectId, type, body, null);
+        }
+
+        /* Returns the operation equivalent to this one followed by the next, on the same object */
+        private Operation then(@NonNull Operation next) {
+            Operation merged;
+            if (next.type != UPDATE) {
+                merged = new Operation(objectId, next.type, next.body, null);
+            } else if (type == DELETE) {
+                // The partial updates do not create the object again
+                merged = new Operation(objectId, DELETE, body, null);
+            } else {
+                JSONObject mergedBody = JsonUtilities.putAll(JsonUtilities.copy(body), next.body);
+                merged = new Operation(objectId, type, mergedBody, null);
+            }
+
+            merged.completionHandlers.addAll(completionHandlers);
+            merged.completionHandlers.addAll(next.completionHandlers);
+            return merged;
+        }
+
+        // The handlers of a retried operation have already been notified
+        private Operation retained() {
+            return new Operation(objectId, type, body, null);
+        }
+
+        private JSONObject toBatchRequest() {
+            try {
+                JSONObject request = JsonUtilities.copy(body).put(OPERATION_ID_KEY, objectId);
+                switch (type) {
+                    case ADD:
+                    default:
+                        return new JSONObject().put("action", "updateObject").put("body", request);
+                    case UPDATE:
+                        return new JSONObject().put("action", "partialUpdateObjectNoCreate").put("body", request);
+                    case DELETE:
+                        return new JSONObject().put("action", "deleteObject")
+                                .put("body", new JSONObject().put(OPERATION_ID_KEY, objectId));
+                }
+            } catch (JSONException e) {
+                return new JSONObject();
+            }
+        }
+
+        private JSONObject toJSON() throws JSONException {
+            return new JSONObject()
+                    .put(OPERATION_ID_KEY, objectId)
+                    .put(OPERATION_TYPE_KEY, type)
+                    .put(OPERATION_BODY_KEY, body);
+        }
+
+        private void notifyCompleted(JSONObject content, AlgoliaException error) {
+            for (CompletionHandler completionHandler : completionHandlers) {
+                completionHandler.requestCompleted(content, error);
+            }
+            completionHandlers.clear();
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package it.polito.mad.mad2018.data;
 
+import android.os.Parcel;
+import android.os.Parcelable;
 import android.support.annotation.IntDef;
 import android.support.annotation.NonNull;
 import android.support.annotation.StringRes;
@@ -13,7 +15,10 @@ import com.google.firebase.database.FirebaseDatabase;
 import com.google.firebase.database.ValueEventListener;
 import com.google.firebase.storage.StorageReference;
 
-import java.io.Serializable;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.util.ArrayList;
@@ -24,7 +29,20 @@ import it.polito.mad.mad2018.MAD2018Application;
 import it.polito.mad.mad2018.R;
 import it.polito.mad.mad2018.utils.Utilities;
 
-public class Book implements Serializable {
+public class Book implements Parcelable {
+
+    public static final Parcelable.Creator<Book> CREATOR = new Parcelable.Creator<Book>() {
+
+        @Override
+        public Book createFromParcel(Parcel in) {
+            return new Book(in);
+        }
+
+        @Override
+        public Book[] newArray(int size) {
+            return new Book[size];
+        }
+    };
 
     public static final String BOOK_KEY = "book_key";
     public static final String BOOK_ID_KEY = "book_id_key";
@@ -32,12 +50,14 @@ public class Book implements Serializable {
     public static final String ALGOLIA_BOOK_ID_KEY = "objectID";
     public static final String ALGOLIA_OWNER_ID_KEY = "ownerID";
     public static final String ALGOLIA_BOOK_TITLE_KEY = "title";
+    public static final String ALGOLIA_AUTHORS_KEY = "authors";
     public static final String ALGOLIA_HAS_IMAGE_KEY = "hasImage";
     public static final String ALGOLIA_CONDITIONS_KEY = "bookConditions.value";
     public static final String ALGOLIA_AVAILABLE_KEY = "available";
     public static final String ALGOLIA_GEOLOC_KEY = "_geoloc";
     public static final String ALGOLIA_GEOLOC_LAT_KEY = "lat";
     public static final String ALGOLIA_GEOLOC_LON_KEY = "lon";
+    public static final String ALGOLIA_DISTANCE_KEY = "_distance";
 
     public static final int INITIAL_YEAR = 1900;
 
@@ -51,13 +71,18 @@ public class Book implements Serializable {
     final String bookId;
     final Book.Data data;
 
-    private transient ValueEventListener onBookFlagsUpdatedListener;
+    private ValueEventListener onBookFlagsUpdatedListener;
 
     public Book(@NonNull String bookId, @NonNull Data data) {
         this.bookId = bookId;
         this.data = data;
     }
 
+    Book(@NonNull Parcel in) {
+        this.bookId = in.readString();
+        this.data = new Data(in);
+    }
+
     public static ValueEventListener setOnBookLoadedListener(@NonNull String bookId,
                                                              @NonNull ValueEventListener listener) {
 
@@ -85,9 +110,11 @@ public class Book implements Serializable {
                 .setIndexedQuery(keyQuery, dataRef,
                         snapshot -> {
                             String bookId = snapshot.getKey();
-                            Data data = snapshot.getValue(Data.class);
+                            Data data = Data.fromSnapshot(snapshot);
                             assert data != null;
-                            return new Book(bookId, data);
+                            Book book = new Book(bookId, data);
+                            LocalBookIndex.getInstance().put(book);
+                            return book;
                         })
                 .build();
     }
@@ -120,6 +147,17 @@ public class Book implements Serializable {
                 .child(FIREBASE_STORAGE_THUMBNAIL_NAME);
     }
 
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel out, int flags) {
+        out.writeString(this.bookId);
+        this.data.writeToParcel(out);
+    }
+
     public String getBookId() {
         return this.bookId;
     }
@@ -165,7 +203,9 @@ public class Book implements Serializable {
     }
 
     public boolean isOwnedBook() {
-        return Utilities.equals(this.data.uid, LocalUserProfile.getInstance().getUserId());
+        // No book is owned once signed out
+        LocalUserProfile profile = LocalUserProfile.getInstance();
+        return profile != null && Utilities.equals(this.data.uid, profile.getUserId());
     }
 
     public boolean hasImage() {
@@ -207,9 +247,12 @@ public class Book implements Serializable {
         onBookFlagsUpdatedListener = new ValueEventListener() {
             @Override
             public void onDataChange(DataSnapshot dataSnapshot) {
-                Book.Data.Flags flags = dataSnapshot.getValue(Book.Data.Flags.class);
+                Book.Data.Flags flags = dataSnapshot.exists()
+                        ? new Book.Data.Flags(dataSnapshot)
+                        : null;
                 if (flags != null) {
                     Book.this.data.flags = flags;
+                    EntityRepository.getInstance().onBookUpdated(Book.this);
                     listener.onBookFlagsUpdated();
                 }
             }
@@ -245,7 +288,7 @@ public class Book implements Serializable {
 
     /* Fields need to be public to enable Firebase to access them */
     @SuppressWarnings({"WeakerAccess", "CanBeFinal"})
-    public static class Data implements Serializable {
+    public static class Data {
         public String uid;
         public BookInfo bookInfo;
         public Flags flags;
@@ -256,7 +299,40 @@ public class Book implements Serializable {
             this.flags = new Flags();
         }
 
-        static class BookInfo implements Serializable {
+        private Data(@NonNull Parcel in) {
+            this.uid = in.readString();
+            this.bookInfo = new BookInfo(in);
+            this.flags = new Flags(in);
+        }
+
+        private Data(@NonNull DataSnapshot snapshot) {
+            this();
+            for (DataSnapshot child : snapshot.getChildren()) {
+                switch (child.getKey()) {
+                    case "uid":
+                        this.uid = SnapshotReader.asString(child);
+                        break;
+                    case "bookInfo":
+                        this.bookInfo = new BookInfo(child);
+                        break;
+                    case "flags":
+                        this.flags = new Flags(child);
+                        break;
+                }
+            }
+        }
+
+        public static Data fromSnapshot(@NonNull DataSnapshot snapshot) {
+            return snapshot.exists() ? new Data(snapshot) : null;
+        }
+
+        private void writeToParcel(@NonNull Parcel out) {
+            out.writeString(this.uid);
+            this.bookInfo.writeToParcel(out);
+            this.flags.writeToParcel(out);
+        }
+
+        static class BookInfo {
             public String isbn;
             public String title;
             public List<String> authors;
@@ -278,9 +354,84 @@ public class Book implements Serializable {
                 this.tags = new ArrayList<>();
                 this.hasImage = false;
             }
+
+            private BookInfo(@NonNull Parcel in) {
+                this.isbn = in.readString();
+                this.title = in.readString();
+                this.authors = in.createStringArrayList();
+                this.language = in.readString();
+                this.publisher = in.readString();
+                this.year = in.readInt();
+                this.bookConditions = new BookConditions(in.readInt());
+                this.tags = in.createStringArrayList();
+                this.hasImage = in.readByte() != 0;
+            }
+
+            @SuppressWarnings("WrongConstant")
+            private BookInfo(@NonNull DataSnapshot snapshot) {
+                this();
+                for (DataSnapshot child : snapshot.getChildren()) {
+                    switch (child.getKey()) {
+                        case "isbn":
+                            this.isbn = SnapshotReader.asString(child);
+                            break;
+                        case "title":
+                            this.title = SnapshotReader.asString(child);
+                            break;
+                        case "authors":
+                            this.authors = SnapshotReader.asStringList(child);
+                            break;
+                        case "language":
+                            this.language = SnapshotReader.asString(child);
+                            break;
+                        case "publisher":
+                            this.publisher = SnapshotReader.asString(child);
+                            break;
+                        case "year":
+                            this.year = SnapshotReader.asInt(child);
+                            break;
+                        case "bookConditions":
+                            this.bookConditions = new BookConditions(
+                                    SnapshotReader.asInt(child.child("value")));
+                            break;
+                        case "tags":
+                            this.tags = SnapshotReader.asStringList(child);
+                            break;
+                        case "hasImage":
+                            this.hasImage = SnapshotReader.asBoolean(child);
+                            break;
+                    }
+                }
+            }
+
+            // Same attributes (and names) of the fields, null values being omitted
+            JSONObject toAlgoliaRecord() throws JSONException {
+                return new JSONObject()
+                        .put("isbn", this.isbn)
+                        .put(ALGOLIA_BOOK_TITLE_KEY, this.title)
+                        .put(ALGOLIA_AUTHORS_KEY, this.authors == null ? null : new JSONArray(this.authors))
+                        .put("language", this.language)
+                        .put("publisher", this.publisher)
+                        .put("year", this.year)
+                        .put("bookConditions", new JSONObject().put("value", this.bookConditions.value))
+                        .put("tags", this.tags == null ? null : new JSONArray(this.tags))
+                        .put(ALGOLIA_HAS_IMAGE_KEY, this.hasImage);
+            }
+
+            private void writeToParcel(@NonNull Parcel out) {
+                out.writeString(this.isbn);
+                out.writeString(this.title);
+                out.writeStringList(this.authors);
+                out.writeString(this.language);
+                out.writeString(this.publisher);
+                out.writeInt(this.year);
+                out.writeInt(this.bookConditions.value);
+                out.writeStringList(this.tags);
+                out.writeByte((byte) (this.hasImage ? 1 : 0));
+            }
         }
 
-        static class Flags implements Serializable {
+        static class Flags {
             public boolean available;
             public boolean deleted;
 
@@ -288,12 +439,36 @@ public class Book implements Serializable {
                 this.available = true;
                 this.deleted = false;
             }
+
+            private Flags(@NonNull Parcel in) {
+                this.available = in.readByte() != 0;
+                this.deleted = in.readByte() != 0;
+            }
+
+            private Flags(@NonNull DataSnapshot snapshot) {
+                this();
+                for (DataSnapshot child : snapshot.getChildren()) {
+                    switch (child.getKey()) {
+                        case "available":
+                            this.available = SnapshotReader.asBoolean(child);
+                            break;
+                        case "deleted":
+                            this.deleted = SnapshotReader.asBoolean(child);
+                            break;
+                    }
+                }
+            }
+
+            private void writeToParcel(@NonNull Parcel out) {
+                out.writeByte((byte) (this.available ? 1 : 0));
+                out.writeByte((byte) (this.deleted ? 1 : 0));
+            }
         }
     }
 
     /* Fields need to be public to enable Firebase to access them */
     @SuppressWarnings({"WeakerAccess", "CanBeFinal"})
-    public static final class BookConditions implements Serializable, Comparable<BookConditions> {
+    public static final class BookConditions implements Comparable<BookConditions> {
         private static final int MINT = 40;
         private static final int GOOD = 30;
         private static final int FAIR = 20;
@@ -0,0 +1,198 @@
+package it.polito.mad.mad2018.data;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.format.DateUtils;
+import android.util.LruCache;
+
+import com.algolia.search.saas.Client;
+import com.algolia.search.saas.CompletionHandler;
+import com.algolia.search.saas.Query;
+import com.algolia.search.saas.Request;
+import com.algolia.search.saas.RequestOptions;
+import com.algolia.search.saas.Searchable;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/* Searchable front-end of the Algolia books index keeping in memory the most recent results:
+ * repeating a search (e.g. toggling a filter back and forth) is answered without any request.
+ * Results are keyed by all the parameters of the query (text, refinements, geo filters and page)
+ * and are discarded when they expire or when one of the books they contain is updated.
+ * When the request fails (e.g. no connectivity) the results are taken from the LocalBookIndex */
+public class BookSearchCache extends Searchable {
+
+    private static final int MAX_CACHED_RESULTS = 32;
+    private static final long RESULTS_TIME_TO_LIVE = 5 * DateUtils.MINUTE_IN_MILLIS;
+
+    private static BookSearchCache instance;
+
+    private final Searchable index;
+    private final Handler handler;
+    private final LruCache<String, CachedResults> cache;
+    private final Map<String, Set<String>> keysByBook;
+
+    private BookSearchCache(@NonNull Searchable index) {
+        this.index = index;
+        this.handler = new Handler(Looper.getMainLooper());
+        this.keysByBook = new HashMap<>();
+        this.cache = new LruCache<String, CachedResults>(MAX_CACHED_RESULTS) {
+            @Override
+            protected void entryRemoved(boolean evicted, String key,
+                                        CachedResults oldValue, CachedResults newValue) {
+                removeFromBooksIndex(key, oldValue);
+            }
+        };
+    }
+
+    public static BookSearchCache getInstance() {
+        if (instance == null) {
+            Client client = new Client(Constants.ALGOLIA_APP_ID, Constants.ALGOLIA_SEARCH_API_KEY);
+            instance = new BookSearchCache(client.getIndex(Constants.ALGOLIA_INDEX_NAME));
+        }
+        return instance;
+    }
+
+    static void invalidateBook(@NonNull String bookId) {
+        if (instance != null) {
+            Set<String> keys = instance.keysByBook.remove(bookId);
+            if (keys != null) {
+                for (String key : keys) {
+                    instance.cache.remove(key);
+                }
+            }
+        }
+    }
+
+    static void invalidateAll() {
+        if (instance != null) {
+            instance.cache.evictAll();
+        }
+    }
+
+    private static String getKey(@NonNull Query query) {
+        // The text is normalized since the matching performed by Algolia is case insensitive
+        Query normalized = new Query(query);
+        String text = query.getQuery();
+        normalized.setQuery(text == null ? "" : text.trim().toLowerCase(Locale.getDefault()));
+        return normalized.build();
+    }
+
+    @Override
+    public Request searchAsync(@NonNull Query query, @Nullable RequestOptions requestOptions,
+                               @NonNull CompletionHandler completionHandler) {
+
+        String key = getKey(query);
+        CachedResults results = cache.get(key);
+        if (results != null) {
+            if (!results.isExpired()) {
+                return new CachedRequest(results.content, completionHandler);
+            }
+            cache.remove(key);
+        }
+
+        return index.searchAsync(query, requestOptions, (content, error) -> {
+            if (error == null && content != null) {
+                CachedResults fetched = new CachedResults(content);
+                cache.put(key, fetched);
+                addToBooksIndex(key, fetched);
+                LocalBookIndex.getInstance().putHits(content);
+            } else if (error != null) {
+                // The books index is not reachable: fall back to the books known by the device
+                LocalBookIndex.getInstance().searchAsync(query, local ->
+                        completionHandler.requestCompleted(local, local == null ? error : null));
+                return;
+            }
+            completionHandler.requestCompleted(content, error);
+        });
+    }
+
+    private void addToBooksIndex(@NonNull String key, @NonNull CachedResults results) {
+        for (String bookId : results.bookIds) {
+            Set<String> keys = keysByBook.get(bookId);
+            if (keys == null) {
+                keys = new HashSet<>();
+                keysByBook.put(bookId, keys);
+            }
+            keys.add(key);
+        }
+    }
+
+    private void removeFromBooksIndex(@NonNull String key, @NonNull CachedResults results) {
+        for (String bookId : results.bookIds) {
+            Set<String> keys = keysByBook.get(bookId);
+            if (keys != null && keys.remove(key) && keys.isEmpty()) {
+                keysByBook.remove(bookId);
+            }
+        }
+    }
+
+    private static class CachedResults {
+        private final JSONObject content;
+        private final Set<String> bookIds;
+        private final long timestamp;
+
+        private CachedResults(@NonNull JSONObject content) {
+            this.content = content;
+            this.bookIds = new HashSet<>();
+            this.timestamp = System.currentTimeMillis();
+
+            JSONArray hits = content.optJSONArray("hits");
+            for (int i = 0; hits != null && i < hits.length(); i++) {
+                JSONObject hit = hits.optJSONObject(i);
+                String bookId = hit == null ? null : hit.optString(Book.ALGOLIA_BOOK_ID_KEY, null);
+                if (bookId != null) {
+                    this.bookIds.add(bookId);
+                }
+            }
+        }
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() - timestamp > RESULTS_TIME_TO_LIVE;
+        }
+    }
+
+    /* Results are delivered asynchronously, as if they came from the network,
+     * since the searcher expects the completion to follow the return of the request */
+    private class CachedRequest implements Request {
+        private final Runnable delivery;
+        private boolean cancelled;
+        private boolean finished;
+
+        private CachedRequest(@NonNull JSONObject content, @NonNull CompletionHandler completionHandler) {
+            this.cancelled = false;
+            this.finished = false;
+            this.delivery = () -> {
+                finished = true;
+                completionHandler.requestCompleted(content, null);
+            };
+            handler.post(delivery);
+        }
+
+        @Override
+        public void cancel() {
+            if (!finished) {
+                cancelled = true;
+                handler.removeCallbacks(delivery);
+            }
+        }
+
+        @Override
+        public boolean isFinished() {
+            return finished || cancelled;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+}
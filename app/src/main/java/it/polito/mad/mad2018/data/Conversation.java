@@ -1,12 +1,13 @@
 package it.polito.mad.mad2018.data;
 
+import android.os.Parcel;
+import android.os.Parcelable;
 import android.support.annotation.IntDef;
 import android.support.annotation.NonNull;
 import android.text.format.DateUtils;
 
 import com.firebase.ui.database.FirebaseRecyclerOptions;
 import com.google.android.gms.tasks.Task;
-import com.google.android.gms.tasks.Tasks;
 import com.google.firebase.database.DataSnapshot;
 import com.google.firebase.database.DatabaseError;
 import com.google.firebase.database.DatabaseReference;
@@ -15,20 +16,27 @@ import com.google.firebase.database.FirebaseDatabase;
 import com.google.firebase.database.ServerValue;
 import com.google.firebase.database.ValueEventListener;
 
-import java.io.Serializable;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
 
 import it.polito.mad.mad2018.MAD2018Application;
 import it.polito.mad.mad2018.R;
 import it.polito.mad.mad2018.utils.Utilities;
 
-public class Conversation implements Serializable {
+public class Conversation implements Parcelable {
+
+    public static final Parcelable.Creator<Conversation> CREATOR = new Parcelable.Creator<Conversation>() {
+
+        @Override
+        public Conversation createFromParcel(Parcel in) {
+            return new Conversation(in);
+        }
+
+        @Override
+        public Conversation[] newArray(int size) {
+            return new Conversation[size];
+        }
+    };
 
     public static final String CONVERSATION_KEY = "conversation_key";
     public static final String CONVERSATION_ID_KEY = "conversation_id_key";
@@ -36,6 +44,7 @@ public class Conversation implements Serializable {
 
     private static final String FIREBASE_CONVERSATIONS_KEY = "conversations";
     private static final String FIREBASE_MESSAGES_KEY = "messages";
+    private static final String FIREBASE_LAST_MESSAGE_KEY = "lastMessage";
     private static final String FIREBASE_OWNER_KEY = "owner";
     private static final String FIREBASE_PEER_KEY = "peer";
     private static final String FIREBASE_UNREAD_MESSAGES_KEY = "unreadMessages";
@@ -48,7 +57,8 @@ public class Conversation implements Serializable {
 
     private final String conversationId;
     private final Conversation.Data data;
-    private transient ValueEventListener onConversationFlagsUpdatedListener;
+    private ValueEventListener onConversationFlagsUpdatedListener;
+    private Message cachedLastMessage;
 
     public Conversation(@NonNull Book book) {
         this.conversationId = Conversation.generateConversationId();
@@ -65,6 +75,17 @@ public class Conversation implements Serializable {
         this.data = data;
     }
 
+    private Conversation(@NonNull Parcel in) {
+        this.conversationId = in.readString();
+        this.data = new Data(in);
+    }
+
+    static Conversation.Message parseMessage(@NonNull DataSnapshot snapshot) {
+        return snapshot.exists()
+                ? new Conversation.Message(new Conversation.Data.Message(snapshot))
+                : null;
+    }
+
     private static String generateConversationId() {
         return FirebaseDatabase.getInstance().getReference()
                 .child(FIREBASE_CONVERSATIONS_KEY).push().getKey();
@@ -80,7 +101,7 @@ public class Conversation implements Serializable {
                 .setIndexedQuery(keyQuery.orderByChild(FIREBASE_CONVERSATION_ORDER_BY_KEY), dataRef,
                         snapshot -> {
                             String conversationId = snapshot.getKey();
-                            Conversation.Data data = snapshot.getValue(Conversation.Data.class);
+                            Conversation.Data data = Conversation.Data.fromSnapshot(snapshot);
                             assert data != null;
                             return new Conversation(conversationId, data);
                         })
@@ -118,9 +139,14 @@ public class Conversation implements Serializable {
         onConversationFlagsUpdatedListener = new ValueEventListener() {
             @Override
             public void onDataChange(DataSnapshot dataSnapshot) {
-                Conversation.Data.Flags flags = dataSnapshot.getValue(Conversation.Data.Flags.class);
+                Conversation.Data.Flags flags = dataSnapshot.exists()
+                        ? new Conversation.Data.Flags(dataSnapshot)
+                        : null;
                 if (flags != null) {
                     Conversation.this.data.flags = flags;
+                    if (flags.bookDeleted) {
+                        EntityRepository.getInstance().invalidateBook(Conversation.this.data.bookId);
+                    }
                     listener.onConversationFlagsChanged();
                 }
             }
@@ -150,28 +176,33 @@ public class Conversation implements Serializable {
         }
     }
 
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel out, int flags) {
+        out.writeString(this.conversationId);
+        this.data.writeToParcel(out);
+    }
+
     public String getConversationId() {
         return conversationId;
     }
 
-    public FirebaseRecyclerOptions<Message> getMessages() {
-        DatabaseReference dataRef = FirebaseDatabase.getInstance().getReference()
-                .child(FIREBASE_CONVERSATIONS_KEY)
-                .child(conversationId)
-                .child(FIREBASE_MESSAGES_KEY);
+    private DatabaseReference getMessagesReference() {
+        return FirebaseDatabase.getInstance().getReference()
+                .child(FIREBASE_MESSAGES_KEY)
+                .child(conversationId);
+    }
 
-        return new FirebaseRecyclerOptions.Builder<Conversation.Message>()
-                .setQuery(dataRef,
-                        snapshot -> {
-                            Conversation.Data.Message data = snapshot.getValue(Conversation.Data.Message.class);
-                            assert data != null;
-                            return new Conversation.Message(data);
-                        })
-                .build();
+    public MessagesPager getMessagesPager(@NonNull MessagesPager.OnMessagesChangedListener listener) {
+        return new MessagesPager(getMessagesReference(), listener);
     }
 
     public boolean isNew() {
-        return this.data.messages.size() == 0;
+        return this.data.lastMessage == null;
     }
 
     public boolean isArchivable() {
@@ -216,61 +247,61 @@ public class Conversation implements Serializable {
     }
 
     public Message getLastMessage() {
-        if (this.data.messages.size() == 0) {
+        if (this.data.lastMessage == null) {
             return null;
         }
 
-        String last = Collections.max(this.data.messages.keySet());
-        return new Message(this.data.messages.get(last));
+        // The wrapper is rebuilt only when the denormalized last message is replaced
+        if (this.cachedLastMessage == null || this.cachedLastMessage.message != this.data.lastMessage) {
+            this.cachedLastMessage = new Message(this.data.lastMessage);
+        }
+        return this.cachedLastMessage;
     }
 
-    private Task<?> sendMessage(@NonNull String text, boolean special) {
-        Data.Message message = new Data.Message();
-        message.recipient = getPeerUserId();
-        message.text = text;
-        message.special = special;
-
-        List<Task<?>> tasks = new ArrayList<>();
-        DatabaseReference conversationReference = FirebaseDatabase.getInstance().getReference()
+    private DatabaseReference getConversationReference() {
+        return FirebaseDatabase.getInstance().getReference()
                 .child(FIREBASE_CONVERSATIONS_KEY)
                 .child(this.conversationId);
+    }
 
-        if (this.data.messages.size() == 0) {
-            tasks.add(conversationReference.setValue(this.data));
-            tasks.add(LocalUserProfile.getInstance().addConversation(this.conversationId, this.data.bookId));
+    private void setFlag(@NonNull WriteBatch batch, @NonNull String flagKey, Object value) {
+        // A new conversation is written as a whole (flags included) together with its first message
+        if (!this.isNew()) {
+            batch.set(getConversationReference()
+                    .child(FIREBASE_FLAGS_KEY)
+                    .child(flagKey), value);
         }
+    }
 
-        DatabaseReference messageReference = conversationReference
-                .child(FIREBASE_MESSAGES_KEY).push();
-        tasks.add(messageReference.setValue(message));
+    private void sendMessage(@NonNull String text, boolean special, @NonNull WriteBatch batch) {
+        Data.Message message = new Data.Message();
+        message.recipient = getPeerUserId();
+        message.text = text;
+        message.special = special;
 
-        this.data.messages.put(messageReference.getKey(), message);
+        if (this.isNew()) {
+            batch.set(getConversationReference(), this.data);
+            LocalUserProfile.getInstance().addConversation(this.conversationId, this.data.bookId, batch);
+        }
 
-        return Tasks.whenAllSuccess(tasks);
+        // The lastMessage summary is maintained by the cloud functions
+        batch.set(getMessagesReference().push(), message);
+        this.data.lastMessage = message;
     }
 
     public Task<?> sendMessage(@NonNull String text) {
-        return sendMessage(text, false);
+        WriteBatch batch = new WriteBatch();
+        sendMessage(text, false, batch);
+        return batch.commit();
     }
 
     public Task<?> archiveConversation() {
         this.data.flags.archived = true;
 
-        List<Task<?>> tasks = new ArrayList<>();
-
-        tasks.add(FirebaseDatabase.getInstance().getReference()
-                .child(FIREBASE_CONVERSATIONS_KEY)
-                .child(conversationId)
-                .child(FIREBASE_FLAGS_KEY)
-                .child(FIREBASE_FLAG_ARCHIVED_KEY)
-                .setValue(true));
-
-        Task<?> task = LocalUserProfile.getInstance().archiveConversation(conversationId);
-        if (task != null) {
-            tasks.add(task);
-        }
-
-        return Tasks.whenAllSuccess(tasks);
+        WriteBatch batch = new WriteBatch();
+        setFlag(batch, FIREBASE_FLAG_ARCHIVED_KEY, true);
+        LocalUserProfile.getInstance().archiveConversation(conversationId, batch);
+        return batch.commit();
     }
 
     public Task<?> deleteConversation() {
@@ -313,19 +344,12 @@ public class Conversation implements Serializable {
 
     public Task<?> requestBorrowing(@NonNull Book book) {
         this.data.flags.borrowingState = Data.Flags.REQUESTED;
-        List<Task<?>> tasks = new ArrayList<>();
-
-        tasks.add(FirebaseDatabase.getInstance().getReference()
-                .child(FIREBASE_CONVERSATIONS_KEY)
-                .child(conversationId)
-                .child(FIREBASE_FLAGS_KEY)
-                .child(FIREBASE_FLAG_BORROWING_STATE_KEY)
-                .setValue(this.data.flags.borrowingState));
-
-        tasks.add(sendMessage(MAD2018Application.getApplicationContextStatic()
-                .getString(R.string.message_request_borrowing, book.getTitle()), true));
 
-        return Tasks.whenAllSuccess(tasks);
+        WriteBatch batch = new WriteBatch();
+        setFlag(batch, FIREBASE_FLAG_BORROWING_STATE_KEY, this.data.flags.borrowingState);
+        sendMessage(MAD2018Application.getApplicationContextStatic()
+                .getString(R.string.message_request_borrowing, book.getTitle()), true, batch);
+        return batch.commit();
     }
 
     public Task<?> acceptBorrowingRequest() {
@@ -343,53 +367,32 @@ public class Conversation implements Serializable {
 
     public Task<?> rejectBorrowingRequest() {
         this.data.flags.borrowingState = Data.Flags.NOT_REQUESTED;
-        List<Task<?>> tasks = new ArrayList<>();
-
-        tasks.add(FirebaseDatabase.getInstance().getReference()
-                .child(FIREBASE_CONVERSATIONS_KEY)
-                .child(conversationId)
-                .child(FIREBASE_FLAGS_KEY)
-                .child(FIREBASE_FLAG_BORROWING_STATE_KEY)
-                .setValue(this.data.flags.borrowingState));
 
-        tasks.add(sendMessage(MAD2018Application.getApplicationContextStatic()
-                .getString(R.string.message_borrowing_request_reject), true));
-
-        return Tasks.whenAllSuccess(tasks);
+        WriteBatch batch = new WriteBatch();
+        setFlag(batch, FIREBASE_FLAG_BORROWING_STATE_KEY, this.data.flags.borrowingState);
+        sendMessage(MAD2018Application.getApplicationContextStatic()
+                .getString(R.string.message_borrowing_request_reject), true, batch);
+        return batch.commit();
     }
 
     public Task<?> requestReturn(@NonNull Book book) {
         this.data.flags.returnState = Data.Flags.REQUESTED;
-        List<Task<?>> tasks = new ArrayList<>();
 
-        tasks.add(FirebaseDatabase.getInstance().getReference()
-                .child(FIREBASE_CONVERSATIONS_KEY)
-                .child(conversationId)
-                .child(FIREBASE_FLAGS_KEY)
-                .child(FIREBASE_FLAG_RETURN_STATE_KEY)
-                .setValue(this.data.flags.returnState));
-
-        tasks.add(sendMessage(MAD2018Application.getApplicationContextStatic()
-                .getString(R.string.message_request_return, book.getTitle()), true));
-
-        return Tasks.whenAllSuccess(tasks);
+        WriteBatch batch = new WriteBatch();
+        setFlag(batch, FIREBASE_FLAG_RETURN_STATE_KEY, this.data.flags.returnState);
+        sendMessage(MAD2018Application.getApplicationContextStatic()
+                .getString(R.string.message_request_return, book.getTitle()), true, batch);
+        return batch.commit();
     }
 
     public Task<?> confirmReturn() {
         this.data.flags.returnState = Data.Flags.ACCEPTED;
-        List<Task<?>> tasks = new ArrayList<>();
-
-        tasks.add(FirebaseDatabase.getInstance().getReference()
-                .child(FIREBASE_CONVERSATIONS_KEY)
-                .child(conversationId)
-                .child(FIREBASE_FLAGS_KEY)
-                .child(FIREBASE_FLAG_RETURN_STATE_KEY)
-                .setValue(this.data.flags.returnState));
-
-        tasks.add(sendMessage(MAD2018Application.getApplicationContextStatic()
-                .getString(R.string.message_request_return_confirm), true));
 
-        return Tasks.whenAllSuccess(tasks);
+        WriteBatch batch = new WriteBatch();
+        setFlag(batch, FIREBASE_FLAG_RETURN_STATE_KEY, this.data.flags.returnState);
+        sendMessage(MAD2018Application.getApplicationContextStatic()
+                .getString(R.string.message_request_return_confirm), true, batch);
+        return batch.commit();
     }
 
     public Task<?> uploadRating(Rating rating) {
@@ -411,11 +414,14 @@ public class Conversation implements Serializable {
         void onConversationFlagsChanged();
     }
 
-    public static class Message implements Serializable {
+    public static class Message {
 
         private final String localUserId;
         private final Conversation.Data.Message message;
 
+        private String dateTime;
+        private long dateTimeComputedAt;
+
         private Message(@NonNull Conversation.Data.Message message) {
 
             this.localUserId = LocalUserProfile.getInstance().getUserId();
@@ -436,24 +442,32 @@ public class Conversation implements Serializable {
 
         public String getDateTime() {
             long now = System.currentTimeMillis();
+
+            // The relative time span has a resolution of one minute: no need to format it again before
+            if (dateTime != null && now - dateTimeComputedAt < DateUtils.MINUTE_IN_MILLIS) {
+                return dateTime;
+            }
+
             long messageTimeStamp = message.getTimestamp();
+            dateTimeComputedAt = now;
             if (messageTimeStamp > now) {
                 now = messageTimeStamp;
             }
-            return DateUtils.getRelativeTimeSpanString(messageTimeStamp, now, DateUtils.MINUTE_IN_MILLIS).toString();
+            dateTime = DateUtils.getRelativeTimeSpanString(messageTimeStamp, now, DateUtils.MINUTE_IN_MILLIS).toString();
+            return dateTime;
         }
     }
 
     /* Fields need to be public to enable Firebase to access them */
     @SuppressWarnings({"WeakerAccess", "CanBeFinal", "unused"})
-    public static class Data implements Serializable {
+    public static class Data {
 
         public String bookId;
         public User owner;
         public User peer;
         public Conversation.Data.Flags flags;
         public String language;
-        public Map<String, Message> messages;
+        public Message lastMessage;
 
         public Data() {
             this.bookId = null;
@@ -462,10 +476,61 @@ public class Conversation implements Serializable {
             this.flags = new Conversation.Data.Flags();
             this.language = MAD2018Application.getApplicationContextStatic()
                     .getResources().getConfiguration().locale.getLanguage();
-            this.messages = new HashMap<>();
+            this.lastMessage = null;
         }
 
-        private static class Flags implements Serializable {
+        private Data(@NonNull Parcel in) {
+            this.bookId = in.readString();
+            this.owner = new User(in);
+            this.peer = new User(in);
+            this.flags = new Conversation.Data.Flags(in);
+            this.language = in.readString();
+            this.lastMessage = in.readByte() != 0 ? new Message(in) : null;
+        }
+
+        private Data(@NonNull DataSnapshot snapshot) {
+            this();
+            for (DataSnapshot child : snapshot.getChildren()) {
+                switch (child.getKey()) {
+                    case "bookId":
+                        this.bookId = SnapshotReader.asString(child);
+                        break;
+                    case "owner":
+                        this.owner = new User(child);
+                        break;
+                    case "peer":
+                        this.peer = new User(child);
+                        break;
+                    case "flags":
+                        this.flags = new Conversation.Data.Flags(child);
+                        break;
+                    case "language":
+                        this.language = SnapshotReader.asString(child);
+                        break;
+                    case "lastMessage":
+                        this.lastMessage = new Message(child);
+                        break;
+                }
+            }
+        }
+
+        public static Data fromSnapshot(@NonNull DataSnapshot snapshot) {
+            return snapshot.exists() ? new Data(snapshot) : null;
+        }
+
+        private void writeToParcel(@NonNull Parcel out) {
+            out.writeString(this.bookId);
+            this.owner.writeToParcel(out);
+            this.peer.writeToParcel(out);
+            this.flags.writeToParcel(out);
+            out.writeString(this.language);
+            out.writeByte((byte) (this.lastMessage != null ? 1 : 0));
+            if (this.lastMessage != null) {
+                this.lastMessage.writeToParcel(out);
+            }
+        }
+
+        private static class Flags {
             private static final int NOT_REQUESTED = 1;
             private static final int REQUESTED = 2;
             private static final int ACCEPTED = 3;
@@ -486,13 +551,59 @@ public class Conversation implements Serializable {
                 this.returnState = NOT_REQUESTED;
             }
 
+            @SuppressWarnings("WrongConstant")
+            private Flags(@NonNull Parcel in) {
+                this.archived = in.readByte() != 0;
+                this.bookDeleted = in.readByte() != 0;
+                this.borrowingState = in.readInt();
+                this.returnState = in.readInt();
+                this.ownerFeedback = in.readByte() != 0;
+                this.peerFeedback = in.readByte() != 0;
+            }
+
+            @SuppressWarnings("WrongConstant")
+            private Flags(@NonNull DataSnapshot snapshot) {
+                this();
+                for (DataSnapshot child : snapshot.getChildren()) {
+                    switch (child.getKey()) {
+                        case "archived":
+                            this.archived = SnapshotReader.asBoolean(child);
+                            break;
+                        case "bookDeleted":
+                            this.bookDeleted = SnapshotReader.asBoolean(child);
+                            break;
+                        case "borrowingState":
+                            this.borrowingState = SnapshotReader.asInt(child);
+                            break;
+                        case "returnState":
+                            this.returnState = SnapshotReader.asInt(child);
+                            break;
+                        case "ownerFeedback":
+                            this.ownerFeedback = SnapshotReader.asBoolean(child);
+                            break;
+                        case "peerFeedback":
+                            this.peerFeedback = SnapshotReader.asBoolean(child);
+                            break;
+                    }
+                }
+            }
+
+            private void writeToParcel(@NonNull Parcel out) {
+                out.writeByte((byte) (this.archived ? 1 : 0));
+                out.writeByte((byte) (this.bookDeleted ? 1 : 0));
+                out.writeInt(this.borrowingState);
+                out.writeInt(this.returnState);
+                out.writeByte((byte) (this.ownerFeedback ? 1 : 0));
+                out.writeByte((byte) (this.peerFeedback ? 1 : 0));
+            }
+
             @Retention(RetentionPolicy.SOURCE)
             @IntDef({NOT_REQUESTED, REQUESTED, ACCEPTED})
             private @interface State {
             }
         }
 
-        private static class Message implements Serializable {
+        private static class Message {
             public String recipient;
             public String text;
             public Object timestamp;
@@ -505,6 +616,42 @@ public class Conversation implements Serializable {
                 this.special = false;
             }
 
+            private Message(@NonNull Parcel in) {
+                this.recipient = in.readString();
+                this.text = in.readString();
+                long timestamp = in.readLong();
+                this.timestamp = timestamp < 0 ? ServerValue.TIMESTAMP : timestamp;
+                this.special = in.readByte() != 0;
+            }
+
+            private Message(@NonNull DataSnapshot snapshot) {
+                this();
+                for (DataSnapshot child : snapshot.getChildren()) {
+                    switch (child.getKey()) {
+                        case "recipient":
+                            this.recipient = SnapshotReader.asString(child);
+                            break;
+                        case "text":
+                            this.text = SnapshotReader.asString(child);
+                            break;
+                        case "timestamp":
+                            this.timestamp = SnapshotReader.asLong(child);
+                            break;
+                        case "special":
+                            this.special = SnapshotReader.asBoolean(child);
+                            break;
+                    }
+                }
+            }
+
+            private void writeToParcel(@NonNull Parcel out) {
+                out.writeString(this.recipient);
+                out.writeString(this.text);
+                // A negative value marks a timestamp not yet resolved by the server
+                out.writeLong(this.timestamp instanceof Long ? (long) this.timestamp : -1);
+                out.writeByte((byte) (this.special ? 1 : 0));
+            }
+
             @Exclude
             private long getTimestamp() {
                 return this.timestamp instanceof Long
@@ -513,7 +660,7 @@ public class Conversation implements Serializable {
             }
         }
 
-        private static class User implements Serializable {
+        private static class User {
             public String uid;
             public int unreadMessages;
 
@@ -521,6 +668,30 @@ public class Conversation implements Serializable {
                 this.uid = null;
                 this.unreadMessages = 0;
             }
+
+            private User(@NonNull Parcel in) {
+                this.uid = in.readString();
+                this.unreadMessages = in.readInt();
+            }
+
+            private User(@NonNull DataSnapshot snapshot) {
+                this();
+                for (DataSnapshot child : snapshot.getChildren()) {
+                    switch (child.getKey()) {
+                        case "uid":
+                            this.uid = SnapshotReader.asString(child);
+                            break;
+                        case "unreadMessages":
+                            this.unreadMessages = SnapshotReader.asInt(child);
+                            break;
+                    }
+                }
+            }
+
+            private void writeToParcel(@NonNull Parcel out) {
+                out.writeString(this.uid);
+                out.writeInt(this.unreadMessages);
+            }
         }
     }
 }
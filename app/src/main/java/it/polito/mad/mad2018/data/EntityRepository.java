@@ -0,0 +1,269 @@
+package it.polito.mad.mad2018.data;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.LruCache;
+
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.ValueEventListener;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/* Process-wide cache of the books and of the user profiles (profile projection only) displayed
+ * by the lists: concurrent requests for the same id are merged into a single Firebase read.
+ * The listeners are notified with a null entity when it cannot be loaded (e.g. it is missing,
+ * it has been deleted or the read was denied) */
+public class EntityRepository {
+
+    private static final int MAX_CACHED_BOOKS = 128;
+    private static final int MAX_CACHED_PROFILES = 128;
+
+    private static EntityRepository instance;
+
+    private final EntityCache<Book> books;
+    private final EntityCache<UserProfile> profiles;
+
+    private EntityRepository() {
+        this.books = new EntityCache<Book>(MAX_CACHED_BOOKS) {
+            @Override
+            ValueEventListener attach(@NonNull String id, @NonNull ValueEventListener listener) {
+                return Book.setOnBookLoadedListener(id, listener);
+            }
+
+            @Override
+            void detach(@NonNull String id, @NonNull ValueEventListener listener) {
+                Book.unsetOnBookLoadedListener(id, listener);
+            }
+
+            @Override
+            Book parse(@NonNull String id, @NonNull DataSnapshot dataSnapshot) {
+                Book.Data data = Book.Data.fromSnapshot(dataSnapshot);
+                if (data == null) {
+                    return null;
+                }
+
+                Book book = new Book(id, data);
+                LocalBookIndex.getInstance().put(book);
+                return book;
+            }
+        };
+
+        this.profiles = new EntityCache<UserProfile>(MAX_CACHED_PROFILES) {
+            @Override
+            ValueEventListener attach(@NonNull String id, @NonNull ValueEventListener listener) {
+                return UserProfile.setOnProfileLoadedListener(id, UserProfile.Projection.PROFILE, listener);
+            }
+
+            @Override
+            void detach(@NonNull String id, @NonNull ValueEventListener listener) {
+                UserProfile.unsetOnProfileLoadedListener(id, UserProfile.Projection.PROFILE, listener);
+            }
+
+            @Override
+            UserProfile parse(@NonNull String id, @NonNull DataSnapshot dataSnapshot) {
+                return UserProfile.parseProjection(id, UserProfile.Projection.PROFILE, dataSnapshot);
+            }
+        };
+    }
+
+    public static EntityRepository getInstance() {
+        if (instance == null) {
+            instance = new EntityRepository();
+        }
+        return instance;
+    }
+
+    public Book getBook(@NonNull String bookId, @NonNull OnEntityLoadedListener<Book> listener) {
+        return books.get(bookId, listener);
+    }
+
+    public void removeOnBookLoadedListener(@NonNull String bookId,
+                                           @NonNull OnEntityLoadedListener<Book> listener) {
+        books.removeListener(bookId, listener);
+    }
+
+    public UserProfile getProfile(@NonNull String userId, @NonNull OnEntityLoadedListener<UserProfile> listener) {
+        return profiles.get(userId, listener);
+    }
+
+    public void removeOnProfileLoadedListener(@NonNull String userId,
+                                              @NonNull OnEntityLoadedListener<UserProfile> listener) {
+        profiles.removeListener(userId, listener);
+    }
+
+    public Statistics getBooksStatistics() {
+        return books.getStatistics();
+    }
+
+    public Statistics getProfilesStatistics() {
+        return profiles.getStatistics();
+    }
+
+    void onBookUpdated(@NonNull Book book) {
+        if (book.data.flags.deleted) {
+            books.invalidate(book.getBookId());
+        } else {
+            books.refresh(book.getBookId(), book);
+        }
+        LocalBookIndex.getInstance().put(book);
+        BookSearchCache.invalidateBook(book.getBookId());
+    }
+
+    void invalidateBook(@NonNull String bookId) {
+        books.invalidate(bookId);
+        BookSearchCache.invalidateBook(bookId);
+    }
+
+    void onProfileUpdated(@NonNull UserProfile profile) {
+        profiles.refresh(profile.getUserId(), profile);
+    }
+
+    public interface OnEntityLoadedListener<T> {
+        void onEntityLoaded(@NonNull String id, @Nullable T entity);
+    }
+
+    public static class Statistics {
+        private final int hits;
+        private final int misses;
+        private final int fetches;
+
+        private Statistics(int hits, int misses, int fetches) {
+            this.hits = hits;
+            this.misses = misses;
+            this.fetches = fetches;
+        }
+
+        public int getHitCount() {
+            return hits;
+        }
+
+        public int getMissCount() {
+            return misses;
+        }
+
+        public int getFetchCount() {
+            return fetches;
+        }
+
+        public float getHitRate() {
+            return hits + misses == 0 ? 0 : (float) hits / (hits + misses);
+        }
+    }
+
+    private static abstract class EntityCache<T> {
+
+        private final LruCache<String, T> cache;
+        private final Map<String, ValueEventListener> firebaseListeners;
+        private final Map<String, Set<OnEntityLoadedListener<T>>> pendingListeners;
+
+        private int hits;
+        private int misses;
+        private int fetches;
+
+        private EntityCache(int maxSize) {
+            this.cache = new LruCache<>(maxSize);
+            this.firebaseListeners = new HashMap<>();
+            this.pendingListeners = new HashMap<>();
+            this.hits = 0;
+            this.misses = 0;
+            this.fetches = 0;
+        }
+
+        private T get(@NonNull String id, @NonNull OnEntityLoadedListener<T> listener) {
+            T entity = cache.get(id);
+            if (entity != null) {
+                hits++;
+                return entity;
+            }
+            misses++;
+
+            Set<OnEntityLoadedListener<T>> listeners = pendingListeners.get(id);
+            if (listeners == null) {
+                listeners = new LinkedHashSet<>();
+                pendingListeners.put(id, listeners);
+            }
+            listeners.add(listener);
+
+            if (!firebaseListeners.containsKey(id)) {
+                fetch(id);
+            }
+            return null;
+        }
+
+        private void fetch(@NonNull String id) {
+            fetches++;
+            firebaseListeners.put(id, attach(id, new ValueEventListener() {
+                @Override
+                public void onDataChange(DataSnapshot dataSnapshot) {
+                    ValueEventListener firebaseListener = firebaseListeners.remove(id);
+                    if (firebaseListener == null) {
+                        return;
+                    }
+                    detach(id, firebaseListener);
+
+                    T entity = parse(id, dataSnapshot);
+                    if (entity != null) {
+                        cache.put(id, entity);
+                    }
+                    notifyListeners(id, entity);
+                }
+
+                @Override
+                public void onCancelled(DatabaseError databaseError) {
+                    ValueEventListener firebaseListener = firebaseListeners.remove(id);
+                    if (firebaseListener != null) {
+                        detach(id, firebaseListener);
+                    }
+                    notifyListeners(id, null);
+                }
+            }));
+        }
+
+        private void notifyListeners(@NonNull String id, T entity) {
+            Set<OnEntityLoadedListener<T>> listeners = pendingListeners.remove(id);
+            if (listeners != null) {
+                for (OnEntityLoadedListener<T> listener : listeners) {
+                    listener.onEntityLoaded(id, entity);
+                }
+            }
+        }
+
+        private void removeListener(@NonNull String id, @NonNull OnEntityLoadedListener<T> listener) {
+            Set<OnEntityLoadedListener<T>> listeners = pendingListeners.get(id);
+            if (listeners == null || !listeners.remove(listener) || !listeners.isEmpty()) {
+                return;
+            }
+
+            // Nobody is still waiting for the entity: abort the request
+            pendingListeners.remove(id);
+            ValueEventListener firebaseListener = firebaseListeners.remove(id);
+            if (firebaseListener != null) {
+                detach(id, firebaseListener);
+            }
+        }
+
+        private void refresh(@NonNull String id, @NonNull T entity) {
+            if (cache.get(id) != null) {
+                cache.put(id, entity);
+            }
+        }
+
+        private void invalidate(@NonNull String id) {
+            cache.remove(id);
+        }
+
+        private Statistics getStatistics() {
+            return new Statistics(hits, misses, fetches);
+        }
+
+        abstract ValueEventListener attach(@NonNull String id, @NonNull ValueEventListener listener);
+
+        abstract void detach(@NonNull String id, @NonNull ValueEventListener listener);
+
+        abstract T parse(@NonNull String id, @NonNull DataSnapshot dataSnapshot);
+    }
+}
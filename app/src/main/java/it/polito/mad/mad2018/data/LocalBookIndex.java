@@ -0,0 +1,441 @@
+package it.polito.mad.mad2018.data;
+
+import android.location.Location;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.algolia.search.saas.AbstractQuery;
+import com.algolia.search.saas.Query;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import it.polito.mad.mad2018.MAD2018Application;
+import it.polito.mad.mad2018.utils.FileUtilities;
+import it.polito.mad.mad2018.utils.JsonUtilities;
+
+/* On-device inverted index of the books already seen by the device (owned, lent and borrowed
+ * books, books opened from the chats and the hits of the recent searches), used to answer the
+ * searches when the books index cannot be reached. The words of title, authors, tags and publisher
+ * are matched by prefix and the books ranked by the fields they matched, applying the availability
+ * and the distance filters of the query. The indexed hits are kept in the same format returned by
+ * Algolia and saved to a file, to survive to restarts. The index is accessed only by its own
+ * thread, so that building the hits, tokenizing and saving never block the main thread nor wait
+ * for the other background work. The searches are executed before the queued updates and saves */
+class LocalBookIndex {
+
+    private static final int MAX_INDEXED_BOOKS = 512;
+    private static final int DEFAULT_HITS_PER_PAGE = 20;
+    private static final long SAVE_DELAY_MILLIS = 5000;
+    private static final String INDEX_FILE_NAME = "local_book_index.json";
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    private static final Pattern AVAILABLE_FILTER = Pattern.compile(
+            "\\b" + Pattern.quote(Book.ALGOLIA_AVAILABLE_KEY) + "\\s*[:=]\\s*(true|1)\\b");
+
+    private static final int TITLE_WEIGHT = 8;
+    private static final int AUTHORS_WEIGHT = 4;
+    private static final int TAGS_WEIGHT = 2;
+    private static final int PUBLISHER_WEIGHT = 1;
+
+    private static LocalBookIndex instance;
+
+    private final Map<String, Document> documents;
+    private final TreeMap<String, Map<String, Integer>> postings;
+    private final Handler handler;
+    private final Handler indexHandler;
+    private final Runnable saveTask;
+
+    private LocalBookIndex() {
+        HandlerThread indexThread = new HandlerThread("LocalBookIndex", Process.THREAD_PRIORITY_BACKGROUND);
+        indexThread.start();
+
+        this.postings = new TreeMap<>();
+        this.handler = new Handler(Looper.getMainLooper());
+        this.indexHandler = new Handler(indexThread.getLooper());
+        this.saveTask = this::save;
+
+        // Access ordered, to discard first the books not seen for longer
+        this.documents = new LinkedHashMap<String, Document>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Entry<String, Document> eldest) {
+                if (size() > MAX_INDEXED_BOOKS) {
+                    removeFromPostings(eldest.getValue());
+                    remove(eldest.getKey());
+                }
+                return false;
+            }
+        };
+
+        load();
+    }
+
+    static LocalBookIndex getInstance() {
+        if (instance == null) {
+            instance = new LocalBookIndex();
+        }
+        return instance;
+    }
+
+    private static File getIndexFile() {
+        return new File(MAD2018Application.getApplicationContextStatic().getCacheDir(), INDEX_FILE_NAME);
+    }
+
+    private static List<String> tokenize(@Nullable String text) {
+        List<String> tokens = new ArrayList<>();
+        if (text == null) {
+            return tokens;
+        }
+
+        // Diacritics are removed, so that "perché" is found also typing "perche"
+        String normalized = Normalizer.normalize(text, Normalizer.Form.NFD)
+                .replaceAll("\\p{M}+", "")
+                .toLowerCase(Locale.getDefault());
+        for (String token : normalized.split("[^\\p{L}\\p{N}]+")) {
+            if (!token.isEmpty()) {
+                tokens.add(token);
+            }
+        }
+        return tokens;
+    }
+
+    private static void addTerms(@NonNull Map<String, Integer> terms, @Nullable String text, int weight) {
+        for (String token : tokenize(text)) {
+            Integer current = terms.get(token);
+            if (current == null || current < weight) {
+                terms.put(token, weight);
+            }
+        }
+    }
+
+    private static JSONObject toHit(@NonNull Book book, @Nullable JSONObject geoloc) {
+        try {
+            JSONObject hit = book.data.bookInfo.toAlgoliaRecord();
+            hit.put(Book.ALGOLIA_BOOK_ID_KEY, book.getBookId());
+            hit.put(Book.ALGOLIA_OWNER_ID_KEY, book.getOwnerId());
+            hit.put(Book.ALGOLIA_AVAILABLE_KEY, book.isAvailable());
+            if (geoloc != null) {
+                hit.put(Book.ALGOLIA_GEOLOC_KEY, geoloc);
+            }
+            return hit;
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    void put(@NonNull Book book) {
+        if (book.data.flags.deleted) {
+            remove(book.getBookId());
+            return;
+        }
+
+        // The location is not part of the book: it is the one of the owner, if known
+        JSONObject ownerGeoloc = book.isOwnedBook()
+                ? LocalUserProfile.getInstance().getLocationAlgolia()
+                : null;
+
+        indexHandler.post(() -> {
+            Document previous = documents.get(book.getBookId());
+            JSONObject geoloc = previous != null
+                    ? previous.hit.optJSONObject(Book.ALGOLIA_GEOLOC_KEY)
+                    : ownerGeoloc;
+
+            JSONObject hit = toHit(book, geoloc);
+            if (hit != null) {
+                put(book.getBookId(), hit);
+            }
+        });
+    }
+
+    void putHits(@NonNull JSONObject content) {
+        indexHandler.post(() -> {
+            JSONArray hits = content.optJSONArray("hits");
+            for (int i = 0; hits != null && i < hits.length(); i++) {
+                JSONObject hit = hits.optJSONObject(i);
+                String bookId = hit == null ? null : hit.optString(Book.ALGOLIA_BOOK_ID_KEY, null);
+                if (bookId != null) {
+                    put(bookId, merge(hit, documents.get(bookId)));
+                }
+            }
+        });
+    }
+
+    // Hits carry only the attributes displayed by the results: the others are kept from before
+    private static JSONObject merge(@NonNull JSONObject hit, @Nullable Document previous) {
+        if (previous == null) {
+            return hit;
+        }
+
+        // Shallow: the values of the indexed hits are never modified
+        return JsonUtilities.putAll(JsonUtilities.copy(previous.hit), hit);
+    }
+
+    void remove(@NonNull String bookId) {
+        indexHandler.post(() -> {
+            Document document = documents.remove(bookId);
+            if (document != null) {
+                removeFromPostings(document);
+                scheduleSave();
+            }
+        });
+    }
+
+    private void put(@NonNull String bookId, @NonNull JSONObject hit) {
+        Document previous = documents.remove(bookId);
+        if (previous != null) {
+            removeFromPostings(previous);
+        }
+
+        Document document = new Document(bookId, hit);
+        documents.put(bookId, document);
+        for (Map.Entry<String, Integer> term : document.terms.entrySet()) {
+            Map<String, Integer> books = postings.get(term.getKey());
+            if (books == null) {
+                books = new HashMap<>();
+                postings.put(term.getKey(), books);
+            }
+            books.put(bookId, term.getValue());
+        }
+        scheduleSave();
+    }
+
+    private void removeFromPostings(@NonNull Document document) {
+        for (String term : document.terms.keySet()) {
+            Map<String, Integer> books = postings.get(term);
+            if (books != null && books.remove(document.bookId) != null && books.isEmpty()) {
+                postings.remove(term);
+            }
+        }
+    }
+
+    /* Delivers on the main thread the results in the same format of the Algolia responses,
+     * or null if no book matches */
+    void searchAsync(@NonNull Query query, @NonNull OnSearchCompletedListener listener) {
+        Query copy = new Query(query);
+        indexHandler.postAtFrontOfQueue(() -> {
+            JSONObject results = search(copy);
+            handler.post(() -> listener.onSearchCompleted(results));
+        });
+    }
+
+    /* Every word of the query must be the prefix of a word of the book: whole words score double */
+    private JSONObject search(@NonNull Query query) {
+        long start = SystemClock.elapsedRealtime();
+
+        List<String> tokens = tokenize(query.getQuery());
+        Map<String, Integer> scores = null;
+
+        for (String token : tokens) {
+            Map<String, Integer> tokenScores = new HashMap<>();
+            SortedMap<String, Map<String, Integer>> matches = postings.subMap(token, token + Character.MAX_VALUE);
+            for (Map.Entry<String, Map<String, Integer>> match : matches.entrySet()) {
+                int multiplier = match.getKey().length() == token.length() ? 2 : 1;
+                for (Map.Entry<String, Integer> book : match.getValue().entrySet()) {
+                    if (scores != null && !scores.containsKey(book.getKey())) {
+                        continue;
+                    }
+                    int score = book.getValue() * multiplier;
+                    Integer current = tokenScores.get(book.getKey());
+                    if (current == null || current < score) {
+                        tokenScores.put(book.getKey(), score);
+                    }
+                }
+            }
+
+            if (scores != null) {
+                for (Map.Entry<String, Integer> book : tokenScores.entrySet()) {
+                    book.setValue(book.getValue() + scores.get(book.getKey()));
+                }
+            }
+            scores = tokenScores;
+            if (scores.isEmpty()) {
+                return null;
+            }
+        }
+
+        RefinementFilter filter = new RefinementFilter(query);
+        List<Document> results = new ArrayList<>();
+        for (Document document : scores == null ? documents.values() : getDocuments(scores.keySet())) {
+            if (filter.matches(document)) {
+                results.add(document);
+            }
+        }
+        if (results.isEmpty()) {
+            return null;
+        }
+
+        final Map<String, Integer> ranking = scores == null
+                ? Collections.emptyMap() : scores;
+        Collections.sort(results, (a, b) -> {
+            Integer scoreA = ranking.get(a.bookId);
+            Integer scoreB = ranking.get(b.bookId);
+            int compare = Integer.compare(scoreB == null ? 0 : scoreB, scoreA == null ? 0 : scoreA);
+            return compare != 0 ? compare : a.sortKey.compareTo(b.sortKey);
+        });
+
+        int hitsPerPage = query.getHitsPerPage() == null ? DEFAULT_HITS_PER_PAGE : query.getHitsPerPage();
+        int page = query.getPage() == null ? 0 : query.getPage();
+        int pages = (results.size() + hitsPerPage - 1) / hitsPerPage;
+
+        JSONArray hits = new JSONArray();
+        for (int i = page * hitsPerPage; i < results.size() && i < (page + 1) * hitsPerPage; i++) {
+            hits.put(results.get(i).hit);
+        }
+
+        try {
+            return new JSONObject()
+                    .put("hits", hits)
+                    .put("nbHits", results.size())
+                    .put("page", page)
+                    .put("nbPages", pages)
+                    .put("hitsPerPage", hitsPerPage)
+                    .put("exhaustiveNbHits", true)
+                    .put("query", query.getQuery() == null ? "" : query.getQuery())
+                    .put("params", query.build())
+                    .put("processingTimeMS", SystemClock.elapsedRealtime() - start);
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    private List<Document> getDocuments(@NonNull Iterable<String> bookIds) {
+        List<Document> selected = new ArrayList<>();
+        for (String bookId : bookIds) {
+            selected.add(documents.get(bookId));
+        }
+        return selected;
+    }
+
+    private void scheduleSave() {
+        indexHandler.removeCallbacks(saveTask);
+        indexHandler.postDelayed(saveTask, SAVE_DELAY_MILLIS);
+    }
+
+    private void save() {
+        JSONArray hits = new JSONArray();
+        for (Document document : documents.values()) {
+            hits.put(document.hit);
+        }
+
+        FileUtilities.writeFileAtomicallyAsync(getIndexFile(), hits.toString().getBytes(CHARSET));
+    }
+
+    private void load() {
+        FileUtilities.executeSerially(() -> {
+            JSONArray hits;
+            try {
+                byte[] content = FileUtilities.readFileAtomically(getIndexFile());
+                hits = new JSONArray(new String(content, CHARSET));
+            } catch (IOException | JSONException e) {
+                return;
+            }
+
+            // The books indexed in the meanwhile are more recent than the saved ones
+            indexHandler.post(() -> {
+                for (int i = 0; i < hits.length(); i++) {
+                    JSONObject hit = hits.optJSONObject(i);
+                    String bookId = hit == null ? null : hit.optString(Book.ALGOLIA_BOOK_ID_KEY, null);
+                    if (bookId != null && !documents.containsKey(bookId)) {
+                        put(bookId, hit);
+                    }
+                }
+            });
+        });
+    }
+
+    interface OnSearchCompletedListener {
+        void onSearchCompleted(@Nullable JSONObject results);
+    }
+
+    /* Refinements of the query applied to the local results: the availability filter
+     * (set by the searcher as a boolean filter) and the radius around the given position */
+    private static class RefinementFilter {
+        private final boolean availableOnly;
+        private final AbstractQuery.LatLng center;
+        private final int radius;
+
+        private RefinementFilter(@NonNull Query query) {
+            StringBuilder filters = new StringBuilder();
+            for (String name : new String[]{"filters", "facetFilters", "numericFilters"}) {
+                String value = query.get(name);
+                if (value != null) {
+                    filters.append(value).append(' ');
+                }
+            }
+            this.availableOnly = AVAILABLE_FILTER.matcher(filters).find();
+
+            Integer radius = query.getAroundRadius();
+            this.center = query.getAroundLatLng();
+            this.radius = radius == null ? Query.RADIUS_ALL : radius;
+        }
+
+        private boolean matches(@NonNull Document document) {
+            if (availableOnly && !document.hit.optBoolean(Book.ALGOLIA_AVAILABLE_KEY, true)) {
+                return false;
+            }
+            if (center == null || radius == Query.RADIUS_ALL) {
+                return true;
+            }
+
+            // The books without location cannot be placed within the radius
+            JSONObject geoloc = document.hit.optJSONObject(Book.ALGOLIA_GEOLOC_KEY);
+            if (geoloc == null) {
+                return false;
+            }
+            float[] distance = new float[1];
+            Location.distanceBetween(center.lat, center.lng,
+                    geoloc.optDouble(Book.ALGOLIA_GEOLOC_LAT_KEY),
+                    geoloc.optDouble(Book.ALGOLIA_GEOLOC_LON_KEY), distance);
+            return distance[0] <= radius;
+        }
+    }
+
+    private static class Document {
+        private final String bookId;
+        private final JSONObject hit;
+        private final Map<String, Integer> terms;
+        private final String sortKey;
+
+        private Document(@NonNull String bookId, @NonNull JSONObject hit) {
+            this.bookId = bookId;
+            this.hit = hit;
+            this.terms = new HashMap<>();
+
+            String title = hit.optString(Book.ALGOLIA_BOOK_TITLE_KEY, "");
+            this.sortKey = title.toLowerCase(Locale.getDefault());
+
+            addTerms(terms, title, TITLE_WEIGHT);
+            addTerms(terms, join(hit.optJSONArray(Book.ALGOLIA_AUTHORS_KEY)), AUTHORS_WEIGHT);
+            addTerms(terms, join(hit.optJSONArray("tags")), TAGS_WEIGHT);
+            addTerms(terms, hit.optString("publisher", null), PUBLISHER_WEIGHT);
+        }
+
+        private static String join(@Nullable JSONArray array) {
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; array != null && i < array.length(); i++) {
+                builder.append(array.optString(i, "")).append(' ');
+            }
+            return builder.toString();
+        }
+    }
+}
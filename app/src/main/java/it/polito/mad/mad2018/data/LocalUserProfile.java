@@ -1,49 +1,75 @@
 package it.polito.mad.mad2018.data;
 
-import android.os.AsyncTask;
+import android.arch.lifecycle.LifecycleOwner;
+import android.os.Parcel;
 import android.support.annotation.NonNull;
-import android.util.Base64;
+import android.support.annotation.Nullable;
 
+import com.algolia.search.saas.AlgoliaException;
 import com.algolia.search.saas.CompletionHandler;
 import com.google.android.gms.location.places.Place;
 import com.google.android.gms.tasks.Task;
-import com.google.android.gms.tasks.Tasks;
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.auth.FirebaseUser;
 import com.google.firebase.auth.UserInfo;
 import com.google.firebase.database.DatabaseReference;
 import com.google.firebase.database.FirebaseDatabase;
 import com.google.firebase.database.ValueEventListener;
-import com.google.firebase.storage.StorageMetadata;
 import com.google.firebase.storage.StorageReference;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.ByteArrayOutputStream;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
 
 import it.polito.mad.mad2018.MAD2018Application;
 import it.polito.mad.mad2018.R;
+import it.polito.mad.mad2018.utils.CompressedOutputStream;
+import it.polito.mad.mad2018.utils.ImageTaskExecutor;
 import it.polito.mad.mad2018.utils.PictureUtilities;
 import it.polito.mad.mad2018.utils.Utilities;
 
 public class LocalUserProfile extends UserProfile {
 
+    public static final Creator<LocalUserProfile> CREATOR = new Creator<LocalUserProfile>() {
+
+        @Override
+        public LocalUserProfile createFromParcel(Parcel in) {
+            return new LocalUserProfile(in);
+        }
+
+        @Override
+        public LocalUserProfile[] newArray(int size) {
+            return new LocalUserProfile[size];
+        }
+    };
+
     private static LocalUserProfile localInstance;
 
     private boolean localImageToBeDeleted;
     private String localImagePath;
 
+    // bookId -> conversationId index of the active conversations (at most one per book),
+    // rebuilt whenever the conversations are replaced by an update
+    private Data.Conversations indexedConversations;
+    private Map<String, String> activeConversationsByBook;
+
     private LocalUserProfile(@NonNull String uid, @NonNull Data data) {
         super(uid, data);
         this.localImageToBeDeleted = false;
         this.localImagePath = null;
     }
 
+    private LocalUserProfile(@NonNull Parcel in) {
+        super(in);
+        this.localImageToBeDeleted = in.readByte() != 0;
+        this.localImagePath = in.readString();
+    }
+
     public LocalUserProfile(@NonNull Data data) {
         this(getCurrentUserId(), data);
     }
@@ -75,6 +101,13 @@ public class LocalUserProfile extends UserProfile {
                 .getString(R.string.default_city_turin);
     }
 
+    @Override
+    public void writeToParcel(Parcel out, int flags) {
+        super.writeToParcel(out, flags);
+        out.writeByte((byte) (this.localImageToBeDeleted ? 1 : 0));
+        out.writeString(this.localImagePath);
+    }
+
     public static LocalUserProfile getInstance() {
         return localInstance;
     }
@@ -130,6 +163,13 @@ public class LocalUserProfile extends UserProfile {
                 .child(FIREBASE_ARCHIVED_CONVERSATIONS_KEY);
     }
 
+    @Override
+    Set<Projection> getUpdatedProjections() {
+        Set<Projection> projections = super.getUpdatedProjections();
+        projections.add(Projection.CONVERSATIONS);
+        return projections;
+    }
+
     public void setProfilePicture(String path, boolean toBeDeleted) {
         this.data.profile.hasProfilePicture = path != null;
         this.data.profile.profilePictureLastModified = System.currentTimeMillis();
@@ -160,9 +200,11 @@ public class LocalUserProfile extends UserProfile {
                 : this.getLocalImagePath();
     }
 
-    public void setProfilePictureThumbnail(ByteArrayOutputStream thumbnail) {
-        this.data.profile.profilePictureThumbnail =
-                Base64.encodeToString(thumbnail.toByteArray(), Base64.DEFAULT);
+    @Override
+    public Object getProfilePictureThumbnail() {
+        return this.localImagePath == null
+                ? super.getProfilePictureThumbnail()
+                : null;
     }
 
     private StorageReference getProfilePictureReferenceFirebase() {
@@ -202,25 +244,30 @@ public class LocalUserProfile extends UserProfile {
     }
 
     public void deleteProfilePictureFromFirebase() {
+        PictureUploader.getInstance().cancel(getProfilePictureReferenceFirebase());
+        PictureUploader.getInstance().cancel(getProfilePictureThumbnailReferenceFirebase());
         getProfilePictureReferenceFirebase().delete();
+        getProfilePictureThumbnailReferenceFirebase().delete();
     }
 
-    public AsyncTask<Void, Void, PictureUtilities.CompressedImage> processProfilePictureAsync(
-            @NonNull PictureUtilities.CompressImageAsync.OnCompleteListener onCompleteListener) {
+    public ImageTaskExecutor.ImageTask<PictureUtilities.CompressedImage> processProfilePictureAsync(
+            @NonNull LifecycleOwner owner,
+            @NonNull ImageTaskExecutor.OnCompleteListener<PictureUtilities.CompressedImage> onCompleteListener) {
 
-        return new PictureUtilities.CompressImageAsync(
+        return PictureUtilities.compressImageAsync(owner, ImageTaskExecutor.Priority.USER_VISIBLE,
                 localImagePath, PROFILE_PICTURE_SIZE, PROFILE_PICTURE_THUMBNAIL_SIZE,
-                PROFILE_PICTURE_QUALITY, onCompleteListener)
-                .execute();
+                PROFILE_PICTURE_MAX_BYTES, PROFILE_PICTURE_THUMBNAIL_MAX_BYTES, onCompleteListener);
     }
 
-    public Task<?> uploadProfilePictureToFirebase(@NonNull ByteArrayOutputStream picture) {
-        StorageMetadata metadata = new StorageMetadata.Builder()
-                .setContentType(PictureUtilities.IMAGE_CONTENT_TYPE_UPLOAD)
-                .build();
+    public Task<?> uploadProfilePictureToFirebase(@NonNull CompressedOutputStream picture,
+                                                  @NonNull CompressedOutputStream thumbnail,
+                                                  @Nullable PictureUploader.OnProgressListener onProgressListener) {
 
-        return getProfilePictureReferenceFirebase()
-                .putBytes(picture.toByteArray(), metadata);
+        Map<StorageReference, CompressedOutputStream> contents = new LinkedHashMap<>();
+        contents.put(getProfilePictureReferenceFirebase(), picture);
+        contents.put(getProfilePictureThumbnailReferenceFirebase(), thumbnail);
+        return PictureUploader.getInstance().upload(contents,
+                PictureUtilities.IMAGE_CONTENT_TYPE_UPLOAD, onProgressListener);
     }
 
     public void postCommit() {
@@ -228,26 +275,24 @@ public class LocalUserProfile extends UserProfile {
         this.localImagePath = null;
     }
 
-    public Task<?> addBook(String bookId) {
+    void addBook(@NonNull String bookId, @NonNull WriteBatch batch) {
         this.data.books.ownedBooks.put(bookId, true);
-        return FirebaseDatabase.getInstance().getReference()
+        batch.set(FirebaseDatabase.getInstance().getReference()
                 .child(FIREBASE_USERS_KEY)
                 .child(getCurrentUserId())
                 .child(FIREBASE_BOOKS_KEY)
                 .child(FIREBASE_OWNED_BOOKS_KEY)
-                .child(bookId)
-                .setValue(true);
+                .child(bookId), true);
     }
 
-    public void removeBook(String bookId) {
+    void removeBook(@NonNull String bookId, @NonNull WriteBatch batch) {
         this.data.books.ownedBooks.remove(bookId);
-        FirebaseDatabase.getInstance().getReference()
+        batch.remove(FirebaseDatabase.getInstance().getReference()
                 .child(FIREBASE_USERS_KEY)
                 .child(getCurrentUserId())
                 .child(FIREBASE_BOOKS_KEY)
                 .child(FIREBASE_OWNED_BOOKS_KEY)
-                .child(bookId)
-                .removeValue();
+                .child(bookId));
     }
 
     public void updateAlgoliaGeoLoc(LocalUserProfile other, @NonNull CompletionHandler completionHandler) {
@@ -259,44 +304,69 @@ public class LocalUserProfile extends UserProfile {
         }
 
         JSONObject geoloc = this.getLocationAlgolia();
-        List<JSONObject> bookUpdates = new ArrayList<>();
-
-        for (String bookId : this.data.books.ownedBooks.keySet()) {
-            try {
-                bookUpdates.add(new JSONObject()
-                        .put(Book.ALGOLIA_GEOLOC_KEY, geoloc)
-                        .put(Book.ALGOLIA_BOOK_ID_KEY, bookId));
-            } catch (JSONException e) { /* Do nothing */ }
+        JSONObject bookUpdate;
+        try {
+            bookUpdate = new JSONObject().put(Book.ALGOLIA_GEOLOC_KEY, geoloc);
+        } catch (JSONException e) {
+            completionHandler.requestCompleted(null, new AlgoliaException(null));
+            return;
         }
 
-        OwnedBook.AlgoliaBookIndex.getInstance()
-                .partialUpdateObjectsAsync(new JSONArray(bookUpdates), false, completionHandler);
+        // The updates are sent together: the last book completes the whole operation
+        AlgoliaIndexWriter writer = AlgoliaIndexWriter.getInstance();
+        Iterator<String> bookIds = this.data.books.ownedBooks.keySet().iterator();
+        while (bookIds.hasNext()) {
+            String bookId = bookIds.next();
+            writer.partialUpdateObject(bookId, bookUpdate, bookIds.hasNext() ? null : completionHandler);
+        }
+    }
+
+    private static Map<String, String> buildConversationsIndex(
+            @NonNull Map<String, Data.Conversations.Conversation> conversations) {
+
+        Map<String, String> index = new HashMap<>(conversations.size());
+        for (Map.Entry<String, Data.Conversations.Conversation> entry : conversations.entrySet()) {
+            index.put(entry.getValue().bookId, entry.getKey());
+        }
+        return index;
+    }
+
+    private void ensureConversationsIndexed() {
+        if (this.indexedConversations == this.data.conversations) {
+            return;
+        }
+
+        this.indexedConversations = this.data.conversations;
+        this.activeConversationsByBook = buildConversationsIndex(this.data.conversations.active);
     }
 
-    Task<?> addConversation(@NonNull String conversationId, @NonNull String bookId) {
+    void addConversation(@NonNull String conversationId, @NonNull String bookId,
+                         @NonNull WriteBatch batch) {
+        ensureConversationsIndexed();
+
         Data.Conversations.Conversation conversation = new Data.Conversations.Conversation(bookId);
         this.data.conversations.active.put(conversationId, conversation);
-        return LocalUserProfile.getActiveConversationsReference()
-                .child(conversationId)
-                .setValue(conversation);
+        this.activeConversationsByBook.put(bookId, conversationId);
+        batch.set(LocalUserProfile.getActiveConversationsReference()
+                .child(conversationId), conversation);
     }
 
-    Task<?> archiveConversation(@NonNull String conversationId) {
+    void archiveConversation(@NonNull String conversationId, @NonNull WriteBatch batch) {
+        ensureConversationsIndexed();
 
         Data.Conversations.Conversation conversation = this.data.conversations.active.remove(conversationId);
         if (conversation == null) {
-            return null;
+            return;
         }
         this.data.conversations.archived.put(conversationId, conversation);
+        if (Utilities.equals(this.activeConversationsByBook.get(conversation.bookId), conversationId)) {
+            this.activeConversationsByBook.remove(conversation.bookId);
+        }
 
-        List<Task<?>> tasks = new ArrayList<>();
-        tasks.add(LocalUserProfile.getActiveConversationsReference()
-                .child(conversationId)
-                .removeValue());
-        tasks.add(LocalUserProfile.getArchivedConversationsReference()
-                .child(conversationId)
-                .setValue(conversation));
-        return Tasks.whenAllSuccess(tasks);
+        batch.remove(LocalUserProfile.getActiveConversationsReference()
+                .child(conversationId));
+        batch.set(LocalUserProfile.getArchivedConversationsReference()
+                .child(conversationId), conversation);
     }
 
     public Task<?> deleteConversation(String conversationId) {
@@ -307,12 +377,7 @@ public class LocalUserProfile extends UserProfile {
     }
 
     public String findConversationByBookId(@NonNull String bookId) {
-        for (Map.Entry<String, LocalUserProfile.Data.Conversations.Conversation> entry :
-                this.data.conversations.active.entrySet()) {
-            if (Utilities.equals(entry.getValue().bookId, bookId)) {
-                return entry.getKey();
-            }
-        }
-        return null;
+        ensureConversationsIndexed();
+        return this.activeConversationsByBook.get(bookId);
     }
 }
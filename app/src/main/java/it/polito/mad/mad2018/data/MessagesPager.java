@@ -0,0 +1,270 @@
+package it.polito.mad.mad2018.data;
+
+import android.support.annotation.NonNull;
+
+import com.google.firebase.database.ChildEventListener;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.Query;
+import com.google.firebase.database.ValueEventListener;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/* Keeps in memory a sliding window of the messages of a conversation: the newest page is loaded
+ * first (and kept up to date while the window is anchored to the end), while older and newer
+ * pages are fetched on demand and the ones falling too far from the visible position are dropped */
+public class MessagesPager {
+
+    private static final int PAGE_SIZE = 30;
+    private static final int PREFETCH_DISTANCE = 5;
+    private static final int MAX_PAGES = 4;
+
+    private final DatabaseReference messagesReference;
+    private final List<Entry> entries;
+    private final OnMessagesChangedListener listener;
+
+    private ChildEventListener newestMessagesListener;
+    private ValueEventListener initialLoadListener;
+    private Query newestMessagesQuery;
+
+    private boolean anchoredToNewest;
+    private boolean oldestLoaded;
+    private boolean loading;
+
+    MessagesPager(@NonNull DatabaseReference messagesReference,
+                  @NonNull OnMessagesChangedListener listener) {
+        this.messagesReference = messagesReference;
+        this.entries = new ArrayList<>();
+        this.listener = listener;
+
+        this.anchoredToNewest = true;
+        this.oldestLoaded = false;
+        this.loading = false;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public Conversation.Message get(int position) {
+        return entries.get(position).message;
+    }
+
+    public void startListening() {
+        if (newestMessagesListener != null) {
+            return;
+        }
+
+        int count = entries.size();
+        if (count > 0) {
+            entries.clear();
+            listener.onMessagesRemoved(0, count);
+        }
+
+        anchoredToNewest = true;
+        oldestLoaded = false;
+        loading = false;
+
+        newestMessagesQuery = messagesReference.orderByKey().limitToLast(PAGE_SIZE);
+        newestMessagesListener = new ChildEventListener() {
+            @Override
+            public void onChildAdded(DataSnapshot dataSnapshot, String previousChildName) {
+                Conversation.Message message = Conversation.parseMessage(dataSnapshot);
+                if (!anchoredToNewest || message == null) {
+                    return;
+                }
+
+                String key = dataSnapshot.getKey();
+                if (entries.isEmpty() || key.compareTo(entries.get(entries.size() - 1).key) > 0) {
+                    entries.add(new Entry(key, message));
+                    listener.onMessagesInserted(entries.size() - 1, 1);
+                    if (initialLoadListener == null) {
+                        listener.onNewestMessagesChanged();
+                    }
+                }
+            }
+
+            @Override
+            public void onChildChanged(DataSnapshot dataSnapshot, String previousChildName) {
+                int position = indexOf(dataSnapshot.getKey());
+                Conversation.Message message = Conversation.parseMessage(dataSnapshot);
+                if (position >= 0 && message != null) {
+                    entries.get(position).message = message;
+                    listener.onMessageChanged(position);
+                }
+            }
+
+            @Override
+            public void onChildRemoved(DataSnapshot dataSnapshot) {
+                /* Messages are never deleted: removals are due to the query limit */
+            }
+
+            @Override
+            public void onChildMoved(DataSnapshot dataSnapshot, String previousChildName) {
+                /* Do nothing */
+            }
+
+            @Override
+            public void onCancelled(DatabaseError databaseError) {
+                /* Do nothing */
+            }
+        };
+
+        // The value event is fired after all the children of the first page have been added
+        initialLoadListener = new ValueEventListener() {
+            @Override
+            public void onDataChange(DataSnapshot dataSnapshot) {
+                initialLoadListener = null;
+                oldestLoaded = dataSnapshot.getChildrenCount() < PAGE_SIZE;
+                listener.onNewestMessagesChanged();
+            }
+
+            @Override
+            public void onCancelled(DatabaseError databaseError) {
+                initialLoadListener = null;
+            }
+        };
+
+        newestMessagesQuery.addChildEventListener(newestMessagesListener);
+        newestMessagesQuery.addListenerForSingleValueEvent(initialLoadListener);
+    }
+
+    public void stopListening() {
+        if (newestMessagesListener != null) {
+            newestMessagesQuery.removeEventListener(newestMessagesListener);
+            newestMessagesListener = null;
+        }
+        if (initialLoadListener != null) {
+            newestMessagesQuery.removeEventListener(initialLoadListener);
+            initialLoadListener = null;
+        }
+        newestMessagesQuery = null;
+    }
+
+    public void onPositionBound(int position) {
+        if (position < PREFETCH_DISTANCE) {
+            loadOlder();
+        } else if (position >= entries.size() - PREFETCH_DISTANCE) {
+            loadNewer();
+        }
+    }
+
+    private void loadOlder() {
+        if (loading || oldestLoaded || initialLoadListener != null || entries.isEmpty()) {
+            return;
+        }
+
+        loading = true;
+        String oldestKey = entries.get(0).key;
+        messagesReference.orderByKey().endAt(oldestKey).limitToLast(PAGE_SIZE + 1)
+                .addListenerForSingleValueEvent(new PageListener() {
+                    @Override
+                    void onPageLoaded(@NonNull List<Entry> page, long count) {
+                        if (entries.isEmpty() || !entries.get(0).key.equals(oldestKey)) {
+                            return;
+                        }
+
+                        oldestLoaded = count <= PAGE_SIZE;
+                        entries.addAll(0, page);
+                        listener.onMessagesInserted(0, page.size());
+
+                        int exceeding = entries.size() - PAGE_SIZE * MAX_PAGES;
+                        if (exceeding > 0) {
+                            int start = entries.size() - exceeding;
+                            entries.subList(start, entries.size()).clear();
+                            anchoredToNewest = false;
+                            listener.onMessagesRemoved(start, exceeding);
+                        }
+                    }
+                });
+    }
+
+    private void loadNewer() {
+        if (loading || anchoredToNewest || entries.isEmpty()) {
+            return;
+        }
+
+        loading = true;
+        String newestKey = entries.get(entries.size() - 1).key;
+        messagesReference.orderByKey().startAt(newestKey).limitToFirst(PAGE_SIZE + 1)
+                .addListenerForSingleValueEvent(new PageListener() {
+                    @Override
+                    void onPageLoaded(@NonNull List<Entry> page, long count) {
+                        if (entries.isEmpty() || !entries.get(entries.size() - 1).key.equals(newestKey)) {
+                            return;
+                        }
+
+                        anchoredToNewest = count <= PAGE_SIZE;
+                        int start = entries.size();
+                        entries.addAll(page);
+                        listener.onMessagesInserted(start, page.size());
+
+                        int exceeding = entries.size() - PAGE_SIZE * MAX_PAGES;
+                        if (exceeding > 0) {
+                            entries.subList(0, exceeding).clear();
+                            oldestLoaded = false;
+                            listener.onMessagesRemoved(0, exceeding);
+                        }
+                    }
+                });
+    }
+
+    private int indexOf(@NonNull String key) {
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            if (entries.get(i).key.equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public interface OnMessagesChangedListener {
+        void onMessagesInserted(int position, int count);
+
+        void onMessagesRemoved(int position, int count);
+
+        void onMessageChanged(int position);
+
+        void onNewestMessagesChanged();
+    }
+
+    private static class Entry {
+        private final String key;
+        private Conversation.Message message;
+
+        private Entry(@NonNull String key, @NonNull Conversation.Message message) {
+            this.key = key;
+            this.message = message;
+        }
+    }
+
+    private abstract class PageListener implements ValueEventListener {
+
+        @Override
+        public void onDataChange(DataSnapshot dataSnapshot) {
+            loading = false;
+
+            // The boundary message is already part of the window
+            List<Entry> page = new ArrayList<>();
+            for (DataSnapshot child : dataSnapshot.getChildren()) {
+                Conversation.Message message = Conversation.parseMessage(child);
+                if (message != null && indexOf(child.getKey()) < 0) {
+                    page.add(new Entry(child.getKey(), message));
+                }
+            }
+
+            if (newestMessagesQuery != null) {
+                onPageLoaded(page, dataSnapshot.getChildrenCount());
+            }
+        }
+
+        @Override
+        public void onCancelled(DatabaseError databaseError) {
+            loading = false;
+        }
+
+        abstract void onPageLoaded(@NonNull List<Entry> page, long count);
+    }
+}
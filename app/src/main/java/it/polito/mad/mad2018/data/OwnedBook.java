@@ -1,37 +1,53 @@
 package it.polito.mad.mad2018.data;
 
 import android.content.res.Resources;
+import android.os.Parcel;
+import android.os.Parcelable;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import com.algolia.search.saas.AlgoliaException;
 import com.algolia.search.saas.Client;
 import com.algolia.search.saas.CompletionHandler;
 import com.algolia.search.saas.Index;
 import com.google.android.gms.tasks.Task;
-import com.google.android.gms.tasks.Tasks;
 import com.google.api.services.books.model.Volume;
 import com.google.firebase.database.FirebaseDatabase;
-import com.google.firebase.storage.StorageMetadata;
-import com.google.gson.GsonBuilder;
+import com.google.firebase.storage.StorageReference;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.ByteArrayOutputStream;
-import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 import it.polito.mad.mad2018.MAD2018Application;
 import it.polito.mad.mad2018.R;
+import it.polito.mad.mad2018.utils.CompressedOutputStream;
 import it.polito.mad.mad2018.utils.PictureUtilities;
 import it.polito.mad.mad2018.utils.Utilities;
 
 public class OwnedBook extends Book {
 
     public static final int BOOK_PICTURE_SIZE = 1024;
-    public static final int BOOK_PICTURE_QUALITY = 50;
     public static final int BOOK_THUMBNAIL_SIZE = 256;
+    public static final int BOOK_PICTURE_MAX_BYTES = 160 * 1024;
+    public static final int BOOK_THUMBNAIL_MAX_BYTES = 16 * 1024;
+
+    public static final Parcelable.Creator<OwnedBook> CREATOR = new Parcelable.Creator<OwnedBook>() {
+
+        @Override
+        public OwnedBook createFromParcel(Parcel in) {
+            return new OwnedBook(in);
+        }
+
+        @Override
+        public OwnedBook[] newArray(int size) {
+            return new OwnedBook[size];
+        }
+    };
 
     public OwnedBook(@NonNull Book book) {
         super(book.bookId, book.data);
@@ -89,6 +105,10 @@ public class OwnedBook extends Book {
         }
     }
 
+    private OwnedBook(@NonNull Parcel in) {
+        super(in);
+    }
+
     private static String generateBookId() {
         return FirebaseDatabase.getInstance().getReference()
                 .child(FIREBASE_BOOKS_KEY).push().getKey();
@@ -97,7 +117,7 @@ public class OwnedBook extends Book {
     private static JSONObject toJSONAlgolia(@NonNull String ownerId, @NonNull Book.Data.BookInfo bookInfo,
                                             @NonNull JSONObject geoloc) {
         try {
-            JSONObject data = new JSONObject(new GsonBuilder().create().toJson(bookInfo));
+            JSONObject data = bookInfo.toAlgoliaRecord();
             data.put(ALGOLIA_OWNER_ID_KEY, ownerId);
             data.put(ALGOLIA_GEOLOC_KEY, geoloc);
             data.put(ALGOLIA_AVAILABLE_KEY, true);
@@ -115,32 +135,28 @@ public class OwnedBook extends Book {
 
         this.data.uid = owner.getUserId();
 
-        List<Task<?>> tasks = new ArrayList<>();
-
-        tasks.add(FirebaseDatabase.getInstance().getReference()
+        WriteBatch batch = new WriteBatch();
+        batch.set(FirebaseDatabase.getInstance().getReference()
                 .child(FIREBASE_BOOKS_KEY)
-                .child(bookId)
-                .setValue(this.data));
-
-        tasks.add(owner.addBook(this.bookId));
+                .child(bookId), this.data);
+        owner.addBook(this.bookId, batch);
+        LocalBookIndex.getInstance().put(this);
 
-        return Tasks.whenAllSuccess(tasks);
+        return batch.commit();
     }
 
     public Task<?> savePictureToFirebase(@NonNull LocalUserProfile owner,
-                                         @NonNull ByteArrayOutputStream picture,
-                                         @NonNull ByteArrayOutputStream thumbnail) {
+                                         @NonNull CompressedOutputStream picture,
+                                         @NonNull CompressedOutputStream thumbnail,
+                                         @Nullable PictureUploader.OnProgressListener onProgressListener) {
 
         this.data.uid = owner.getUserId();
 
-        StorageMetadata metadata = new StorageMetadata.Builder()
-                .setContentType(PictureUtilities.IMAGE_CONTENT_TYPE_UPLOAD)
-                .build();
-
-        List<Task<?>> tasks = new ArrayList<>();
-        tasks.add(this.getBookPictureReference().putBytes(picture.toByteArray(), metadata));
-        tasks.add(this.getBookThumbnailReference().putBytes(thumbnail.toByteArray(), metadata));
-        return Tasks.whenAllSuccess(tasks);
+        Map<StorageReference, CompressedOutputStream> contents = new LinkedHashMap<>();
+        contents.put(this.getBookPictureReference(), picture);
+        contents.put(this.getBookThumbnailReference(), thumbnail);
+        return PictureUploader.getInstance().upload(contents,
+                PictureUtilities.IMAGE_CONTENT_TYPE_UPLOAD, onProgressListener);
     }
 
     public void deleteFromFirebase(@NonNull LocalUserProfile owner) {
@@ -149,14 +165,16 @@ public class OwnedBook extends Book {
         }
 
         this.data.flags.deleted = true;
-        FirebaseDatabase.getInstance().getReference()
+
+        WriteBatch batch = new WriteBatch();
+        batch.set(FirebaseDatabase.getInstance().getReference()
                 .child(FIREBASE_BOOKS_KEY)
                 .child(bookId)
                 .child(FIREBASE_FLAGS_KEY)
-                .child(FIREBASE_DELETED_BOOK_KEY)
-                .setValue(true);
-
-        owner.removeBook(this.bookId);
+                .child(FIREBASE_DELETED_BOOK_KEY), true);
+        owner.removeBook(this.bookId, batch);
+        LocalBookIndex.getInstance().remove(this.bookId);
+        batch.commit();
     }
 
     public void saveToAlgolia(@NonNull UserProfile owner,
@@ -166,8 +184,8 @@ public class OwnedBook extends Book {
 
         JSONObject object = OwnedBook.toJSONAlgolia(owner.getUserId(), this.data.bookInfo, owner.getLocationAlgolia());
         if (object != null) {
-            AlgoliaBookIndex.getInstance()
-                    .addObjectAsync(object, bookId, completionHandler);
+            AlgoliaIndexWriter.getInstance()
+                    .addObject(bookId, object, completionHandler);
         } else {
             completionHandler.requestCompleted(null, new AlgoliaException(null));
         }
@@ -178,8 +196,8 @@ public class OwnedBook extends Book {
             throw new ForbiddenActionException();
         }
 
-        AlgoliaBookIndex.getInstance()
-                .deleteObjectAsync(bookId, completionHandler);
+        AlgoliaIndexWriter.getInstance()
+                .deleteObject(bookId, completionHandler);
     }
 
     public void updateAlgoliaAvailability(boolean available, CompletionHandler completionHandler) {
@@ -194,8 +212,8 @@ public class OwnedBook extends Book {
             return;
         }
 
-        AlgoliaBookIndex.getInstance()
-                .partialUpdateObjectAsync(bookUpdate, this.getBookId(), false, completionHandler);
+        AlgoliaIndexWriter.getInstance()
+                .partialUpdateObject(this.getBookId(), bookUpdate, completionHandler);
     }
 
     static class AlgoliaBookIndex {
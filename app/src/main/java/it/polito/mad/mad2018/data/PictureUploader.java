@@ -0,0 +1,411 @@
+package it.polito.mad.mad2018.data;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.auth.FirebaseAuth;
+import com.google.firebase.storage.FirebaseStorage;
+import com.google.firebase.storage.StorageException;
+import com.google.firebase.storage.StorageMetadata;
+import com.google.firebase.storage.StorageReference;
+import com.google.firebase.storage.UploadTask;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import it.polito.mad.mad2018.MAD2018Application;
+import it.polito.mad.mad2018.utils.CompressedOutputStream;
+import it.polito.mad.mad2018.utils.FileUtilities;
+
+/* Uploads of the pictures to Firebase Storage, surviving the loss of connectivity and the death
+ * of the process. The content is spooled to a file in the cache directory (instead of being
+ * copied in memory), which is then sent through a resumable upload session. The pending uploads,
+ * together with the URIs of their sessions, are saved to a file and the ones not completed are
+ * resumed at the next start of the application, from where they were interrupted as long as the
+ * session is still valid. The same as the Firebase writes performed offline, the returned tasks
+ * complete successfully also when the upload is postponed, and fail only when it is refused.
+ * The uploads still being spooled are tracked as well, so that they can be cancelled or replaced
+ * before being started */
+public class PictureUploader {
+
+    private static final String QUEUE_FILE_NAME = "pending_uploads.json";
+    private static final String SPOOL_DIRECTORY_NAME = "uploads";
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private static final String UPLOAD_PATH_KEY = "path";
+    private static final String UPLOAD_FILE_KEY = "file";
+    private static final String UPLOAD_CONTENT_TYPE_KEY = "contentType";
+    private static final String UPLOAD_SESSION_KEY = "session";
+
+    private static PictureUploader instance;
+
+    private final Handler handler;
+    private final LinkedHashMap<String, Upload> pending;
+    private final Map<String, File> spooling;
+    private boolean loaded;
+    private boolean resumeRequested;
+
+    private PictureUploader() {
+        this.handler = new Handler(Looper.getMainLooper());
+        this.pending = new LinkedHashMap<>();
+        this.spooling = new HashMap<>();
+        this.loaded = false;
+        this.resumeRequested = false;
+
+        load();
+    }
+
+    public static PictureUploader getInstance() {
+        if (instance == null) {
+            instance = new PictureUploader();
+        }
+        return instance;
+    }
+
+    private static File getQueueFile() {
+        return new File(MAD2018Application.getApplicationContextStatic().getFilesDir(), QUEUE_FILE_NAME);
+    }
+
+    private static File getSpoolDirectory() {
+        return new File(MAD2018Application.getApplicationContextStatic().getCacheDir(), SPOOL_DIRECTORY_NAME);
+    }
+
+    private static boolean isTransient(@Nullable Exception exception) {
+        if (exception instanceof StorageException) {
+            StorageException storageException = (StorageException) exception;
+            return storageException.getErrorCode() == StorageException.ERROR_RETRY_LIMIT_EXCEEDED ||
+                    storageException.getIsRecoverableException();
+        }
+        return exception instanceof IOException;
+    }
+
+    // The content is written in place, and then its buffer is given back to the pool
+    private static boolean spool(@NonNull CompressedOutputStream content, @NonNull File file) {
+        try {
+            File directory = file.getParentFile();
+            if (!directory.exists() && !directory.mkdirs()) {
+                return false;
+            }
+
+            try (OutputStream stream = new FileOutputStream(file)) {
+                content.writeTo(stream);
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        } finally {
+            content.release();
+        }
+    }
+
+    private static long sum(@NonNull long[] values) {
+        long sum = 0;
+        for (long value : values) {
+            sum += value;
+        }
+        return sum;
+    }
+
+    /* Uploads all the contents, reporting the progress of the whole set */
+    Task<Void> upload(@NonNull Map<StorageReference, CompressedOutputStream> contents,
+                      @NonNull String contentType, @Nullable OnProgressListener onProgressListener) {
+
+        long[] transferred = new long[contents.size()];
+        long[] total = new long[contents.size()];
+
+        List<Task<Void>> tasks = new ArrayList<>();
+        for (Map.Entry<StorageReference, CompressedOutputStream> entry : contents.entrySet()) {
+            int index = tasks.size();
+            total[index] = entry.getValue().size();
+
+            tasks.add(upload(entry.getKey(), entry.getValue(), contentType,
+                    onProgressListener == null ? null : (bytesTransferred, totalBytes) -> {
+                        transferred[index] = bytesTransferred;
+                        total[index] = totalBytes;
+                        onProgressListener.onProgress(sum(transferred), sum(total));
+                    }));
+        }
+        return Tasks.whenAll(tasks);
+    }
+
+    /* The content is released once spooled: it must not be used anymore by the caller */
+    Task<Void> upload(@NonNull StorageReference reference, @NonNull CompressedOutputStream content,
+                      @NonNull String contentType, @Nullable OnProgressListener onProgressListener) {
+
+        TaskCompletionSource<Void> completionSource = new TaskCompletionSource<>();
+        File file = new File(getSpoolDirectory(), UUID.randomUUID().toString());
+        String path = reference.getPath();
+        spooling.put(path, file);
+
+        FileUtilities.executeSerially(() -> {
+            boolean spooled = spool(content, file);
+            handler.post(() -> {
+                // The upload has been replaced or cancelled while being spooled
+                if (spooling.get(path) != file) {
+                    file.delete();
+                    completionSource.setResult(null);
+                    return;
+                }
+                spooling.remove(path);
+
+                if (!spooled) {
+                    file.delete();
+                    completionSource.setException(new IOException("Failed to spool the upload"));
+                    return;
+                }
+
+                // A newer upload to the same location replaces the one still pending
+                Upload upload = new Upload(path, file, contentType, null);
+                Upload previous = pending.put(upload.path, upload);
+                if (previous != null) {
+                    previous.discard();
+                }
+                save();
+
+                start(upload, completionSource, onProgressListener);
+            });
+        });
+
+        return completionSource.getTask();
+    }
+
+    void cancel(@NonNull StorageReference reference) {
+        spooling.remove(reference.getPath());
+        Upload upload = pending.remove(reference.getPath());
+        if (upload != null) {
+            upload.discard();
+            save();
+        }
+    }
+
+    public void resumePending() {
+        if (!loaded) {
+            resumeRequested = true;
+            return;
+        }
+
+        // The storage rules require the user to be authenticated
+        if (FirebaseAuth.getInstance().getCurrentUser() == null) {
+            return;
+        }
+
+        for (Upload upload : new ArrayList<>(pending.values())) {
+            if (upload.task != null) {
+                continue;
+            }
+
+            if (!upload.file.exists()) {
+                pending.remove(upload.path);
+                save();
+                continue;
+            }
+            start(upload, null, null);
+        }
+    }
+
+    private void start(@NonNull Upload upload, @Nullable TaskCompletionSource<Void> completionSource,
+                       @Nullable OnProgressListener onProgressListener) {
+
+        StorageReference reference = FirebaseStorage.getInstance().getReference().child(upload.path);
+        StorageMetadata metadata = new StorageMetadata.Builder()
+                .setContentType(upload.contentType)
+                .build();
+
+        boolean resumed = upload.session != null;
+        upload.task = resumed
+                ? reference.putFile(Uri.fromFile(upload.file), metadata, Uri.parse(upload.session))
+                : reference.putFile(Uri.fromFile(upload.file), metadata);
+
+        upload.task.addOnProgressListener(snapshot -> {
+            Uri session = snapshot.getUploadSessionUri();
+            if (session != null && !session.toString().equals(upload.session)) {
+                upload.session = session.toString();
+                save();
+            }
+            if (onProgressListener != null) {
+                onProgressListener.onProgress(snapshot.getBytesTransferred(), snapshot.getTotalByteCount());
+            }
+        });
+
+        upload.task.addOnCompleteListener(task -> {
+            upload.task = null;
+
+            // The upload has been replaced or cancelled in the meanwhile
+            if (pending.get(upload.path) != upload) {
+                if (completionSource != null) {
+                    completionSource.trySetResult(null);
+                }
+                return;
+            }
+
+            Exception exception = task.getException();
+            if (task.isSuccessful() || !isTransient(exception)) {
+
+                // The session could not be resumed (e.g. it expired): the upload is started again
+                if (!task.isSuccessful() && resumed) {
+                    upload.session = null;
+                    save();
+                    start(upload, completionSource, onProgressListener);
+                    return;
+                }
+
+                pending.remove(upload.path);
+                upload.file.delete();
+                save();
+            }
+
+            // Transient errors: the upload is kept and resumed at the next start
+            if (completionSource != null) {
+                if (task.isSuccessful() || isTransient(exception)) {
+                    completionSource.trySetResult(null);
+                } else {
+                    completionSource.trySetException(exception);
+                }
+            }
+        });
+    }
+
+    private void save() {
+        JSONArray uploads = new JSONArray();
+        try {
+            for (Upload upload : pending.values()) {
+                uploads.put(upload.toJSON());
+            }
+        } catch (JSONException e) {
+            return;
+        }
+
+        FileUtilities.writeFileAtomicallyAsync(getQueueFile(), uploads.toString().getBytes(CHARSET));
+    }
+
+    private void load() {
+        FileUtilities.executeSerially(() -> {
+            List<Upload> restored = new ArrayList<>();
+
+            try {
+                byte[] content = FileUtilities.readFileAtomically(getQueueFile());
+                JSONArray uploads = new JSONArray(new String(content, CHARSET));
+                for (int i = 0; i < uploads.length(); i++) {
+                    Upload upload = Upload.fromJSON(uploads.optJSONObject(i));
+                    if (upload != null && upload.file.exists()) {
+                        restored.add(upload);
+                    }
+                }
+            } catch (IOException | JSONException e) { /* Do nothing */ }
+
+            // The spooled files not referenced anymore (e.g. the process was killed before
+            // saving the queue) are removed. This task precedes any subsequent spooling
+            Set<String> referenced = new HashSet<>();
+            for (Upload upload : restored) {
+                referenced.add(upload.file.getName());
+            }
+            File[] spooled = getSpoolDirectory().listFiles();
+            if (spooled != null) {
+                for (File spooledFile : spooled) {
+                    if (!referenced.contains(spooledFile.getName())) {
+                        spooledFile.delete();
+                    }
+                }
+            }
+
+            handler.post(() -> {
+                // The uploads started in the meanwhile replace the saved ones
+                LinkedHashMap<String, Upload> merged = new LinkedHashMap<>();
+                for (Upload upload : restored) {
+                    merged.put(upload.path, upload);
+                }
+                for (Map.Entry<String, Upload> entry : pending.entrySet()) {
+                    Upload previous = merged.remove(entry.getKey());
+                    if (previous != null) {
+                        previous.file.delete();
+                    }
+                    merged.put(entry.getKey(), entry.getValue());
+                }
+
+                pending.clear();
+                pending.putAll(merged);
+                loaded = true;
+
+                if (resumeRequested) {
+                    resumeRequested = false;
+                    resumePending();
+                }
+            });
+        });
+    }
+
+    public interface OnProgressListener {
+        void onProgress(long bytesTransferred, long totalBytes);
+    }
+
+    private static class Upload {
+        private final String path;
+        private final File file;
+        private final String contentType;
+        private String session;
+        private UploadTask task;
+
+        private Upload(@NonNull String path, @NonNull File file,
+                       @NonNull String contentType, @Nullable String session) {
+            this.path = path;
+            this.file = file;
+            this.contentType = contentType;
+            this.session = session;
+            this.task = null;
+        }
+
+        private static Upload fromJSON(@Nullable JSONObject json) {
+            if (json == null) {
+                return null;
+            }
+
+            String path = json.optString(UPLOAD_PATH_KEY, null);
+            String fileName = json.optString(UPLOAD_FILE_KEY, null);
+            String contentType = json.optString(UPLOAD_CONTENT_TYPE_KEY, null);
+            String session = json.optString(UPLOAD_SESSION_KEY, null);
+            if (path == null || fileName == null || contentType == null) {
+                return null;
+            }
+            return new Upload(path, new File(getSpoolDirectory(), fileName), contentType, session);
+        }
+
+        private void discard() {
+            if (task != null && !task.isComplete()) {
+                task.cancel();
+            }
+            file.delete();
+        }
+
+        private JSONObject toJSON() throws JSONException {
+            JSONObject json = new JSONObject()
+                    .put(UPLOAD_PATH_KEY, path)
+                    .put(UPLOAD_FILE_KEY, file.getName())
+                    .put(UPLOAD_CONTENT_TYPE_KEY, contentType);
+            if (session != null) {
+                json.put(UPLOAD_SESSION_KEY, session);
+            }
+            return json;
+        }
+    }
+}
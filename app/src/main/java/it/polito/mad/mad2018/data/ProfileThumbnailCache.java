@@ -0,0 +1,58 @@
+package it.polito.mad.mad2018.data;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.support.annotation.NonNull;
+import android.util.Base64;
+import android.util.LruCache;
+
+/* Process-wide cache of the profile picture thumbnails still embedded (Base64 encoded) in the
+ * profile node: each thumbnail is decoded only once per version of the profile picture */
+class ProfileThumbnailCache {
+
+    private static final int MAX_SIZE_BYTES = 1024 * 1024;
+
+    private static ProfileThumbnailCache instance;
+
+    private final LruCache<String, Bitmap> cache;
+
+    private ProfileThumbnailCache() {
+        this.cache = new LruCache<String, Bitmap>(MAX_SIZE_BYTES) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getByteCount();
+            }
+        };
+    }
+
+    static ProfileThumbnailCache getInstance() {
+        if (instance == null) {
+            instance = new ProfileThumbnailCache();
+        }
+        return instance;
+    }
+
+    private static String getKey(@NonNull String userId, long lastModified) {
+        return userId + '@' + lastModified;
+    }
+
+    Bitmap get(@NonNull String userId, long lastModified, @NonNull String encodedThumbnail) {
+        String key = getKey(userId, lastModified);
+        Bitmap thumbnail = cache.get(key);
+        if (thumbnail != null) {
+            return thumbnail;
+        }
+
+        try {
+            byte[] bytes = Base64.decode(encodedThumbnail, Base64.DEFAULT);
+            thumbnail = BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+
+        if (thumbnail != null) {
+            cache.put(key, thumbnail);
+        }
+        return thumbnail;
+    }
+}
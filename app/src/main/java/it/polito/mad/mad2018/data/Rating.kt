@@ -1,5 +1,7 @@
 package it.polito.mad.mad2018.data
 
+import com.google.firebase.database.DataSnapshot
+
 class Rating() {
     var score: Float? = null
     var comment: String? = null
@@ -10,4 +12,23 @@ class Rating() {
         this.score = score
         this.comment = comment
     }
-}
\ No newline at end of file
+
+    companion object {
+
+        /* Decoded field by field through SnapshotReader, like the other data classes,
+         * the missing fields being left null */
+        @JvmStatic
+        fun fromSnapshot(snapshot: DataSnapshot): Rating {
+            val rating = Rating()
+            for (child in snapshot.children) {
+                when (child.key) {
+                    "score" -> rating.score = SnapshotReader.asFloat(child)
+                    "comment" -> rating.comment = SnapshotReader.asString(child)
+                    "bookId" -> rating.bookId = SnapshotReader.asString(child)
+                    "timestamp" -> rating.timestamp = SnapshotReader.asLong(child)
+                }
+            }
+            return rating
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package it.polito.mad.mad2018.data;
+
+import android.support.annotation.NonNull;
+
+import com.google.firebase.database.DataSnapshot;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/* Conversions used by the data classes to decode the snapshots field by field, without going
+ * through the reflection based mapper of the Firebase SDK. Values of unexpected type are
+ * decoded as the defaults of the corresponding Java type */
+class SnapshotReader {
+
+    static String asString(@NonNull DataSnapshot snapshot) {
+        Object value = snapshot.getValue();
+        return value instanceof String ? (String) value : null;
+    }
+
+    static boolean asBoolean(@NonNull DataSnapshot snapshot) {
+        Object value = snapshot.getValue();
+        return value instanceof Boolean && (Boolean) value;
+    }
+
+    static long asLong(@NonNull DataSnapshot snapshot) {
+        Object value = snapshot.getValue();
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    static int asInt(@NonNull DataSnapshot snapshot) {
+        Object value = snapshot.getValue();
+        return value instanceof Number ? ((Number) value).intValue() : 0;
+    }
+
+    static float asFloat(@NonNull DataSnapshot snapshot) {
+        Object value = snapshot.getValue();
+        return value instanceof Number ? ((Number) value).floatValue() : 0;
+    }
+
+    static double asDouble(@NonNull DataSnapshot snapshot) {
+        Object value = snapshot.getValue();
+        return value instanceof Number ? ((Number) value).doubleValue() : 0;
+    }
+
+    // Lists are stored as children indexed by position, which are returned in numeric order
+    static List<String> asStringList(@NonNull DataSnapshot snapshot) {
+        List<String> list = new ArrayList<>((int) snapshot.getChildrenCount());
+        for (DataSnapshot child : snapshot.getChildren()) {
+            String value = asString(child);
+            if (value != null) {
+                list.add(value);
+            }
+        }
+        return list;
+    }
+}
@@ -1,8 +1,9 @@
 package it.polito.mad.mad2018.data;
 
 import android.content.res.Resources;
+import android.os.Parcel;
+import android.os.Parcelable;
 import android.support.annotation.NonNull;
-import android.util.Base64;
 
 import com.firebase.ui.database.FirebaseRecyclerOptions;
 import com.google.android.gms.location.places.Place;
@@ -17,8 +18,9 @@ import com.google.firebase.storage.StorageReference;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.IOException;
-import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -28,7 +30,20 @@ import it.polito.mad.mad2018.MAD2018Application;
 import it.polito.mad.mad2018.R;
 import it.polito.mad.mad2018.utils.Utilities;
 
-public class UserProfile implements Serializable {
+public class UserProfile implements Parcelable {
+
+    public static final Parcelable.Creator<UserProfile> CREATOR = new Parcelable.Creator<UserProfile>() {
+
+        @Override
+        public UserProfile createFromParcel(Parcel in) {
+            return new UserProfile(in);
+        }
+
+        @Override
+        public UserProfile[] newArray(int size) {
+            return new UserProfile[size];
+        }
+    };
 
     public static final String PROFILE_INFO_KEY = "profile_info_key";
 
@@ -39,10 +54,13 @@ public class UserProfile implements Serializable {
     static final String FIREBASE_ACTIVE_CONVERSATIONS_KEY = "active";
     static final String FIREBASE_ARCHIVED_CONVERSATIONS_KEY = "archived";
     static final String FIREBASE_PROFILE_KEY = "profile";
+    static final String FIREBASE_STATISTICS_KEY = "statistics";
     static final String FIREBASE_STORAGE_IMAGE_NAME = "profile";
+    static final String FIREBASE_STORAGE_THUMBNAIL_NAME = "profile_thumbnail";
     static final int PROFILE_PICTURE_SIZE = 1024;
     static final int PROFILE_PICTURE_THUMBNAIL_SIZE = 64;
-    static final int PROFILE_PICTURE_QUALITY = 50;
+    static final int PROFILE_PICTURE_MAX_BYTES = 160 * 1024;
+    static final int PROFILE_PICTURE_THUMBNAIL_MAX_BYTES = 4 * 1024;
     private static final String FIREBASE_BORROWED_BOOKS_KEY = "borrowedBooks";
     private static final String FIREBASE_LENT_BOOKS_KEY = "lentBooks";
     private static final String FIREBASE_RATINGS_KEY = "ratings";
@@ -50,38 +68,73 @@ public class UserProfile implements Serializable {
     final String uid;
     UserProfile.Data data;
 
-    private transient ValueEventListener onProfileUpdatedFirebaseListener;
-    private transient Set<OnProfileUpdatedListener> onProfileUpdatedListeners;
-    private transient int onProfileUpdatedListenerCount;
+    private Map<Projection, ValueEventListener> onProfileUpdatedFirebaseListeners;
+    private Set<OnProfileUpdatedListener> onProfileUpdatedListeners;
+    private int onProfileUpdatedListenerCount;
 
     public UserProfile(@NonNull String uid, @NonNull Data data) {
         this.uid = uid;
         this.data = data;
         trimFields();
 
-        this.onProfileUpdatedFirebaseListener = null;
+        this.onProfileUpdatedFirebaseListeners = null;
         this.onProfileUpdatedListeners = new HashSet<>();
         this.onProfileUpdatedListenerCount = 0;
     }
 
+    UserProfile(@NonNull Parcel in) {
+        this(in.readString(), new Data(in));
+    }
+
+    public static ValueEventListener setOnProfileLoadedListener(@NonNull String userId,
+                                                                @NonNull ValueEventListener listener) {
+
+        return FirebaseDatabase.getInstance().getReference()
+                .child(FIREBASE_USERS_KEY)
+                .child(userId)
+                .addValueEventListener(listener);
+    }
+
+    public static void unsetOnProfileLoadedListener(@NonNull String userId,
+                                                    @NonNull ValueEventListener listener) {
+
+        FirebaseDatabase.getInstance().getReference()
+                .child(FIREBASE_USERS_KEY)
+                .child(userId)
+                .removeEventListener(listener);
+    }
+
     public static ValueEventListener setOnProfileLoadedListener(@NonNull String userId,
+                                                                @NonNull Projection projection,
                                                                 @NonNull ValueEventListener listener) {
 
         return FirebaseDatabase.getInstance().getReference()
                 .child(FIREBASE_USERS_KEY)
                 .child(userId)
+                .child(projection.key)
                 .addValueEventListener(listener);
     }
 
     public static void unsetOnProfileLoadedListener(@NonNull String userId,
+                                                    @NonNull Projection projection,
                                                     @NonNull ValueEventListener listener) {
 
         FirebaseDatabase.getInstance().getReference()
                 .child(FIREBASE_USERS_KEY)
                 .child(userId)
+                .child(projection.key)
                 .removeEventListener(listener);
     }
 
+    public static UserProfile parseProjection(@NonNull String userId,
+                                              @NonNull Projection projection,
+                                              @NonNull DataSnapshot dataSnapshot) {
+        UserProfile.Data data = new UserProfile.Data();
+        return projection.apply(data, dataSnapshot)
+                ? new UserProfile(userId, data)
+                : null;
+    }
+
     private static DatabaseReference getBooksReference(@NonNull String userId, @NonNull String booksKey) {
         return FirebaseDatabase.getInstance().getReference()
                 .child(FIREBASE_USERS_KEY)
@@ -108,13 +161,15 @@ public class UserProfile implements Serializable {
                 .child(userId);
     }
 
-    private void readObject(java.io.ObjectInputStream in)
-            throws IOException, ClassNotFoundException {
-        in.defaultReadObject();
+    @Override
+    public int describeContents() {
+        return 0;
+    }
 
-        this.onProfileUpdatedFirebaseListener = null;
-        this.onProfileUpdatedListeners = new HashSet<>();
-        this.onProfileUpdatedListenerCount = 0;
+    @Override
+    public void writeToParcel(Parcel out, int flags) {
+        out.writeString(this.uid);
+        this.data.writeToParcel(out);
     }
 
     public String getUserId() {
@@ -166,10 +221,19 @@ public class UserProfile implements Serializable {
                 : null;
     }
 
-    public byte[] getProfilePictureThumbnail() {
-        return this.data.profile.profilePictureThumbnail == null
-                ? null
-                : Base64.decode(this.data.profile.profilePictureThumbnail, Base64.DEFAULT);
+    public Object getProfilePictureThumbnail() {
+        if (!this.hasProfilePicture()) {
+            return null;
+        }
+
+        // Thumbnails uploaded by older versions are embedded in the profile node
+        if (this.data.profile.profilePictureThumbnail != null) {
+            return ProfileThumbnailCache.getInstance().get(this.uid,
+                    this.data.profile.profilePictureLastModified,
+                    this.data.profile.profilePictureThumbnail);
+        }
+
+        return this.getProfilePictureThumbnailReferenceFirebase();
     }
 
     private StorageReference getProfilePictureReferenceFirebase() {
@@ -177,6 +241,11 @@ public class UserProfile implements Serializable {
                 .child(FIREBASE_STORAGE_IMAGE_NAME);
     }
 
+    StorageReference getProfilePictureThumbnailReferenceFirebase() {
+        return UserProfile.getStorageFolderReference(this.uid)
+                .child(FIREBASE_STORAGE_THUMBNAIL_NAME);
+    }
+
     public float getRating() {
         return (this.data.statistics.ratingCount == 0) ? 0
                 : this.data.statistics.ratingTotal / this.data.statistics.ratingCount;
@@ -205,7 +274,7 @@ public class UserProfile implements Serializable {
                                 .child(FIREBASE_USERS_KEY)
                                 .child(getUserId())
                                 .child(FIREBASE_RATINGS_KEY),
-                        Rating.class)
+                        Rating::fromSnapshot)
                 .build();
     }
 
@@ -216,28 +285,28 @@ public class UserProfile implements Serializable {
     public void addOnProfileUpdatedListener(OnProfileUpdatedListener listener) {
 
         if (onProfileUpdatedListenerCount == 0) {
-            onProfileUpdatedFirebaseListener = new ValueEventListener() {
-                @Override
-                public void onDataChange(DataSnapshot dataSnapshot) {
-                    UserProfile.Data data = dataSnapshot.getValue(UserProfile.Data.class);
-                    if (data != null) {
-                        UserProfile.this.data = data;
-                        for (OnProfileUpdatedListener listener : onProfileUpdatedListeners) {
-                            listener.onProfileUpdated(UserProfile.this);
+            onProfileUpdatedFirebaseListeners = new EnumMap<>(Projection.class);
+            for (Projection projection : getUpdatedProjections()) {
+                ValueEventListener firebaseListener = new ValueEventListener() {
+                    @Override
+                    public void onDataChange(DataSnapshot dataSnapshot) {
+                        if (projection.apply(UserProfile.this.data, dataSnapshot)) {
+                            EntityRepository.getInstance().onProfileUpdated(UserProfile.this);
+                            for (OnProfileUpdatedListener listener : onProfileUpdatedListeners) {
+                                listener.onProfileUpdated(UserProfile.this);
+                            }
                         }
                     }
-                }
 
-                @Override
-                public void onCancelled(DatabaseError databaseError) {
-                    /* Do nothing */
-                }
-            };
+                    @Override
+                    public void onCancelled(DatabaseError databaseError) {
+                        /* Do nothing */
+                    }
+                };
 
-            FirebaseDatabase.getInstance().getReference()
-                    .child(FIREBASE_USERS_KEY)
-                    .child(this.getUserId())
-                    .addValueEventListener(onProfileUpdatedFirebaseListener);
+                onProfileUpdatedFirebaseListeners.put(projection,
+                        setOnProfileLoadedListener(this.getUserId(), projection, firebaseListener));
+            }
         }
 
         if (listener != null) {
@@ -259,14 +328,19 @@ public class UserProfile implements Serializable {
         }
 
         if (onProfileUpdatedListenerCount == 0) {
-            FirebaseDatabase.getInstance().getReference()
-                    .child(FIREBASE_USERS_KEY)
-                    .child(this.getUserId())
-                    .removeEventListener(onProfileUpdatedFirebaseListener);
-            onProfileUpdatedFirebaseListener = null;
+            for (Map.Entry<Projection, ValueEventListener> entry :
+                    onProfileUpdatedFirebaseListeners.entrySet()) {
+                unsetOnProfileLoadedListener(this.getUserId(), entry.getKey(), entry.getValue());
+            }
+            onProfileUpdatedFirebaseListeners = null;
         }
     }
 
+    /* The ratings and the other unused parts of the user node are never downloaded by the updates */
+    Set<Projection> getUpdatedProjections() {
+        return EnumSet.of(Projection.PROFILE, Projection.STATISTICS, Projection.BOOKS);
+    }
+
     void trimFields() {
         Resources resources = MAD2018Application.getApplicationContextStatic().getResources();
         this.data.profile.username = Utilities.trimString(this.data.profile.username, resources.getInteger(R.integer.max_length_username));
@@ -277,9 +351,47 @@ public class UserProfile implements Serializable {
         void onProfileUpdated(@NonNull UserProfile profile);
     }
 
+    /* Parts of the /users/{uid} node that can be loaded independently of the others */
+    public enum Projection {
+        PROFILE(FIREBASE_PROFILE_KEY),
+        STATISTICS(FIREBASE_STATISTICS_KEY),
+        BOOKS(FIREBASE_BOOKS_KEY),
+        CONVERSATIONS(FIREBASE_CONVERSATIONS_KEY);
+
+        private final String key;
+
+        Projection(@NonNull String key) {
+            this.key = key;
+        }
+
+        private boolean apply(@NonNull UserProfile.Data data, @NonNull DataSnapshot dataSnapshot) {
+            switch (this) {
+                case PROFILE:
+                    if (!dataSnapshot.exists()) {
+                        return false;
+                    }
+                    data.profile = new UserProfile.Data.Profile(dataSnapshot);
+                    return true;
+
+                case STATISTICS:
+                    data.statistics = new UserProfile.Data.Statistics(dataSnapshot);
+                    return true;
+
+                case BOOKS:
+                    data.books = new UserProfile.Data.Books(dataSnapshot);
+                    return true;
+
+                case CONVERSATIONS:
+                default:
+                    data.conversations = new UserProfile.Data.Conversations(dataSnapshot);
+                    return true;
+            }
+        }
+    }
+
     /* Fields need to be public to enable Firebase to access them */
     @SuppressWarnings({"WeakerAccess", "CanBeFinal", "unused"})
-    public static class Data implements Serializable {
+    public static class Data {
 
         public Profile profile;
         public Statistics statistics;
@@ -300,7 +412,45 @@ public class UserProfile implements Serializable {
             this.conversations = new Conversations(other.conversations);
         }
 
-        protected static class Profile implements Serializable {
+        private Data(@NonNull Parcel in) {
+            this.profile = new Profile(in);
+            this.statistics = new Statistics(in);
+            this.books = new Books(in);
+            this.conversations = new Conversations(in);
+        }
+
+        private Data(@NonNull DataSnapshot snapshot) {
+            this();
+            for (DataSnapshot child : snapshot.getChildren()) {
+                switch (child.getKey()) {
+                    case FIREBASE_PROFILE_KEY:
+                        this.profile = new Profile(child);
+                        break;
+                    case FIREBASE_STATISTICS_KEY:
+                        this.statistics = new Statistics(child);
+                        break;
+                    case FIREBASE_BOOKS_KEY:
+                        this.books = new Books(child);
+                        break;
+                    case FIREBASE_CONVERSATIONS_KEY:
+                        this.conversations = new Conversations(child);
+                        break;
+                }
+            }
+        }
+
+        public static Data fromSnapshot(@NonNull DataSnapshot snapshot) {
+            return snapshot.exists() ? new Data(snapshot) : null;
+        }
+
+        private void writeToParcel(@NonNull Parcel out) {
+            this.profile.writeToParcel(out);
+            this.statistics.writeToParcel(out);
+            this.books.writeToParcel(out);
+            this.conversations.writeToParcel(out);
+        }
+
+        protected static class Profile {
 
             public String email;
             public String username;
@@ -329,9 +479,58 @@ public class UserProfile implements Serializable {
                 this.profilePictureLastModified = other.profilePictureLastModified;
                 this.profilePictureThumbnail = other.profilePictureThumbnail;
             }
+
+            private Profile(@NonNull Parcel in) {
+                this.email = in.readString();
+                this.username = in.readString();
+                this.location = new Location(in);
+                this.biography = in.readString();
+                this.hasProfilePicture = in.readByte() != 0;
+                this.profilePictureLastModified = in.readLong();
+                this.profilePictureThumbnail = in.readString();
+            }
+
+            private Profile(@NonNull DataSnapshot snapshot) {
+                this();
+                for (DataSnapshot child : snapshot.getChildren()) {
+                    switch (child.getKey()) {
+                        case "email":
+                            this.email = SnapshotReader.asString(child);
+                            break;
+                        case "username":
+                            this.username = SnapshotReader.asString(child);
+                            break;
+                        case "location":
+                            this.location = new Location(child);
+                            break;
+                        case "biography":
+                            this.biography = SnapshotReader.asString(child);
+                            break;
+                        case "hasProfilePicture":
+                            this.hasProfilePicture = SnapshotReader.asBoolean(child);
+                            break;
+                        case "profilePictureLastModified":
+                            this.profilePictureLastModified = SnapshotReader.asLong(child);
+                            break;
+                        case "profilePictureThumbnail":
+                            this.profilePictureThumbnail = SnapshotReader.asString(child);
+                            break;
+                    }
+                }
+            }
+
+            private void writeToParcel(@NonNull Parcel out) {
+                out.writeString(this.email);
+                out.writeString(this.username);
+                this.location.writeToParcel(out);
+                out.writeString(this.biography);
+                out.writeByte((byte) (this.hasProfilePicture ? 1 : 0));
+                out.writeLong(this.profilePictureLastModified);
+                out.writeString(this.profilePictureThumbnail);
+            }
         }
 
-        protected static class Statistics implements Serializable {
+        protected static class Statistics {
             public float ratingTotal;
             public float ratingCount;
             public int lentBooks;
@@ -353,9 +552,48 @@ public class UserProfile implements Serializable {
                 this.borrowedBooks = other.borrowedBooks;
                 this.toBeReturnedBooks = other.toBeReturnedBooks;
             }
+
+            private Statistics(@NonNull Parcel in) {
+                this.ratingTotal = in.readFloat();
+                this.ratingCount = in.readFloat();
+                this.lentBooks = in.readInt();
+                this.borrowedBooks = in.readInt();
+                this.toBeReturnedBooks = in.readInt();
+            }
+
+            private Statistics(@NonNull DataSnapshot snapshot) {
+                this();
+                for (DataSnapshot child : snapshot.getChildren()) {
+                    switch (child.getKey()) {
+                        case "ratingTotal":
+                            this.ratingTotal = SnapshotReader.asFloat(child);
+                            break;
+                        case "ratingCount":
+                            this.ratingCount = SnapshotReader.asFloat(child);
+                            break;
+                        case "lentBooks":
+                            this.lentBooks = SnapshotReader.asInt(child);
+                            break;
+                        case "borrowedBooks":
+                            this.borrowedBooks = SnapshotReader.asInt(child);
+                            break;
+                        case "toBeReturnedBooks":
+                            this.toBeReturnedBooks = SnapshotReader.asInt(child);
+                            break;
+                    }
+                }
+            }
+
+            private void writeToParcel(@NonNull Parcel out) {
+                out.writeFloat(this.ratingTotal);
+                out.writeFloat(this.ratingCount);
+                out.writeInt(this.lentBooks);
+                out.writeInt(this.borrowedBooks);
+                out.writeInt(this.toBeReturnedBooks);
+            }
         }
 
-        protected static class Books implements Serializable {
+        protected static class Books {
             public Map<String, Boolean> ownedBooks;
 
             public Books() {
@@ -365,9 +603,28 @@ public class UserProfile implements Serializable {
             public Books(@NonNull Books other) {
                 this.ownedBooks = other.ownedBooks;
             }
+
+            // Only the keys are meaningful: the values are always true
+            private Books(@NonNull Parcel in) {
+                this.ownedBooks = new HashMap<>();
+                for (String bookId : in.createStringArrayList()) {
+                    this.ownedBooks.put(bookId, true);
+                }
+            }
+
+            private Books(@NonNull DataSnapshot snapshot) {
+                this();
+                for (DataSnapshot ownedBook : snapshot.child(FIREBASE_OWNED_BOOKS_KEY).getChildren()) {
+                    this.ownedBooks.put(ownedBook.getKey(), true);
+                }
+            }
+
+            private void writeToParcel(@NonNull Parcel out) {
+                out.writeStringList(new ArrayList<>(this.ownedBooks.keySet()));
+            }
         }
 
-        protected static class Conversations implements Serializable {
+        protected static class Conversations {
             public Map<String, Conversation> active;
             public Map<String, Conversation> archived;
 
@@ -381,7 +638,49 @@ public class UserProfile implements Serializable {
                 this.archived = other.archived;
             }
 
-            protected static class Conversation implements Serializable {
+            private Conversations(@NonNull Parcel in) {
+                this.active = readConversations(in);
+                this.archived = readConversations(in);
+            }
+
+            private Conversations(@NonNull DataSnapshot snapshot) {
+                this();
+                readConversations(snapshot.child(FIREBASE_ACTIVE_CONVERSATIONS_KEY), this.active);
+                readConversations(snapshot.child(FIREBASE_ARCHIVED_CONVERSATIONS_KEY), this.archived);
+            }
+
+            private static void readConversations(@NonNull DataSnapshot snapshot,
+                                                  @NonNull Map<String, Conversation> conversations) {
+                for (DataSnapshot child : snapshot.getChildren()) {
+                    conversations.put(child.getKey(), new Conversation(child));
+                }
+            }
+
+            private static Map<String, Conversation> readConversations(@NonNull Parcel in) {
+                int size = in.readInt();
+                Map<String, Conversation> conversations = new HashMap<>(size);
+                for (int i = 0; i < size; i++) {
+                    String conversationId = in.readString();
+                    conversations.put(conversationId, new Conversation(in));
+                }
+                return conversations;
+            }
+
+            private static void writeConversations(@NonNull Parcel out,
+                                                   @NonNull Map<String, Conversation> conversations) {
+                out.writeInt(conversations.size());
+                for (Map.Entry<String, Conversation> entry : conversations.entrySet()) {
+                    out.writeString(entry.getKey());
+                    entry.getValue().writeToParcel(out);
+                }
+            }
+
+            private void writeToParcel(@NonNull Parcel out) {
+                writeConversations(out, this.active);
+                writeConversations(out, this.archived);
+            }
+
+            protected static class Conversation {
                 public String bookId;
                 public long timestamp;
 
@@ -393,10 +692,34 @@ public class UserProfile implements Serializable {
                     this.bookId = bookId;
                     this.timestamp = 0;
                 }
+
+                private Conversation(@NonNull Parcel in) {
+                    this.bookId = in.readString();
+                    this.timestamp = in.readLong();
+                }
+
+                private Conversation(@NonNull DataSnapshot snapshot) {
+                    this();
+                    for (DataSnapshot child : snapshot.getChildren()) {
+                        switch (child.getKey()) {
+                            case "bookId":
+                                this.bookId = SnapshotReader.asString(child);
+                                break;
+                            case "timestamp":
+                                this.timestamp = SnapshotReader.asLong(child);
+                                break;
+                        }
+                    }
+                }
+
+                private void writeToParcel(@NonNull Parcel out) {
+                    out.writeString(this.bookId);
+                    out.writeLong(this.timestamp);
+                }
             }
         }
 
-        protected static class Location implements Serializable {
+        protected static class Location {
             public String name;
             public double latitude;
             public double longitude;
@@ -415,6 +738,34 @@ public class UserProfile implements Serializable {
                 this.longitude = place.getLatLng().longitude;
             }
 
+            private Location(@NonNull Parcel in) {
+                this.name = in.readString();
+                this.latitude = in.readDouble();
+                this.longitude = in.readDouble();
+            }
+
+            private Location(@NonNull DataSnapshot snapshot) {
+                for (DataSnapshot child : snapshot.getChildren()) {
+                    switch (child.getKey()) {
+                        case "name":
+                            this.name = SnapshotReader.asString(child);
+                            break;
+                        case "latitude":
+                            this.latitude = SnapshotReader.asDouble(child);
+                            break;
+                        case "longitude":
+                            this.longitude = SnapshotReader.asDouble(child);
+                            break;
+                    }
+                }
+            }
+
+            private void writeToParcel(@NonNull Parcel out) {
+                out.writeString(this.name);
+                out.writeDouble(this.latitude);
+                out.writeDouble(this.longitude);
+            }
+
             @Override
             public boolean equals(Object other) {
                 if (this == other) {
@@ -0,0 +1,53 @@
+package it.polito.mad.mad2018.data;
+
+import android.support.annotation.NonNull;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/* Collects the writes belonging to the same logical operation and commits them through a single
+ * multi-path update: the nodes are modified atomically and with a single round-trip.
+ * The paths added to the same batch must not overlap (i.e. be one the ancestor of the other) */
+class WriteBatch {
+
+    private final Map<String, Object> updates;
+
+    WriteBatch() {
+        this.updates = new LinkedHashMap<>();
+    }
+
+    private static String getPath(@NonNull DatabaseReference reference) {
+        StringBuilder path = new StringBuilder();
+        for (DatabaseReference current = reference; current.getKey() != null; current = current.getParent()) {
+            path.insert(0, current.getKey()).insert(0, '/');
+        }
+        return path.toString();
+    }
+
+    WriteBatch set(@NonNull DatabaseReference reference, Object value) {
+        this.updates.put(getPath(reference), value);
+        return this;
+    }
+
+    WriteBatch remove(@NonNull DatabaseReference reference) {
+        return set(reference, null);
+    }
+
+    boolean isEmpty() {
+        return this.updates.isEmpty();
+    }
+
+    Task<Void> commit() {
+        if (this.isEmpty()) {
+            return Tasks.forResult(null);
+        }
+
+        return FirebaseDatabase.getInstance().getReference()
+                .updateChildren(this.updates);
+    }
+}
@@ -14,6 +14,7 @@ import android.support.v4.app.FragmentManager;
 import android.support.v4.app.FragmentStatePagerAdapter;
 import android.support.v4.view.ViewPager;
 import android.support.v7.widget.Toolbar;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -38,16 +39,19 @@ import com.google.android.gms.maps.SupportMapFragment;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 
+import it.polito.mad.mad2018.BuildConfig;
 import it.polito.mad.mad2018.R;
 import it.polito.mad.mad2018.data.Book;
-import it.polito.mad.mad2018.data.Constants;
+import it.polito.mad.mad2018.data.BookSearchCache;
 import it.polito.mad.mad2018.data.LocalUserProfile;
 import it.polito.mad.mad2018.library.BookInfoActivity;
 import it.polito.mad.mad2018.widgets.MapWidget;
 
 public class ExploreFragment extends Fragment implements FilterResultsFragment.OnDismissListener {
 
+    private static final String TAG = "ExploreFragment";
     private final static int LIST_ID = 0;
     private final static int MAP_ID = 1;
 
@@ -56,8 +60,20 @@ public class ExploreFragment extends Fragment implements FilterResultsFragment.O
     private static final String AVAILABILITY_FILTER_NAME = "availability";
     private static final String FILTERS_KEY = "filters";
     private final static String SEARCH_QUERY_KEY = "searchQuery";
+
+    // Attributes displayed by the list and by the map: the details are loaded when a book is opened
+    private static final String[] HIT_ATTRIBUTES = {
+            Book.ALGOLIA_BOOK_TITLE_KEY,
+            Book.ALGOLIA_AUTHORS_KEY,
+            Book.ALGOLIA_OWNER_ID_KEY,
+            Book.ALGOLIA_HAS_IMAGE_KEY,
+            Book.ALGOLIA_AVAILABLE_KEY,
+            Book.ALGOLIA_GEOLOC_KEY
+    };
+
     private ArrayList<Filter> filters;
     private Searcher searcher;
+    private SearchScheduler searchScheduler;
     private FilterResultsFragment filterResultsFragment;
     private ViewPager pager;
     private AppBarLayout appBarLayout;
@@ -73,8 +89,12 @@ public class ExploreFragment extends Fragment implements FilterResultsFragment.O
     @Override
     public void onAttach(Context context) {
         super.onAttach(context);
-        searcher = Searcher.create(Constants.ALGOLIA_APP_ID, Constants.ALGOLIA_SEARCH_API_KEY,
-                Constants.ALGOLIA_INDEX_NAME);
+        searchScheduler = new SearchScheduler(BookSearchCache.getInstance());
+        searcher = Searcher.create(new GeoResultsProcessor(searchScheduler));
+        searcher.getQuery()
+                .setAttributesToRetrieve(HIT_ATTRIBUTES)
+                .setAttributesToHighlight()
+                .setAttributesToSnippet();
     }
 
     @Override
@@ -185,6 +205,19 @@ public class ExploreFragment extends Fragment implements FilterResultsFragment.O
         if (mGoogleApiClient != null) {
             mGoogleApiClient.disconnect();
         }
+
+        if (BuildConfig.DEBUG) {
+            logSearchStatistics();
+        }
+    }
+
+    private void logSearchStatistics() {
+        SearchScheduler.Statistics statistics = searchScheduler.getStatistics();
+        Log.d(TAG, String.format(Locale.US,
+                "Searches: %d requests, %d saved, %d dropped responses, latency %d ms (average %d ms)",
+                statistics.getRequestCount(), statistics.getSavedRequestCount(),
+                statistics.getDroppedResponseCount(), statistics.getLastLatencyMillis(),
+                statistics.getAverageLatencyMillis()));
     }
 
     @Override
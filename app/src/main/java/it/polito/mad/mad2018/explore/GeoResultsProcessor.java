@@ -0,0 +1,99 @@
+package it.polito.mad.mad2018.explore;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.algolia.search.saas.CompletionHandler;
+import com.algolia.search.saas.Query;
+import com.algolia.search.saas.Request;
+import com.algolia.search.saas.RequestOptions;
+import com.algolia.search.saas.Searchable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import it.polito.mad.mad2018.data.Book;
+import it.polito.mad.mad2018.data.LocalUserProfile;
+import it.polito.mad.mad2018.utils.JsonUtilities;
+
+/* Post-processes the results of the searches, annotating every hit with its distance (in meters)
+ * from the position of the user. The order of the hits is left to Algolia, which ranks them by
+ * the distance from the position set by the DistanceFilter: re-ranking the single pages would
+ * not hold across them. The results are copied before being modified, as the same objects are
+ * kept by the caches */
+class GeoResultsProcessor extends Searchable {
+
+    private static final double EARTH_RADIUS_METERS = 6371008.8;
+
+    private final Searchable index;
+
+    GeoResultsProcessor(@NonNull Searchable index) {
+        this.index = index;
+    }
+
+    private static JSONObject process(@NonNull JSONObject content) {
+        LocalUserProfile profile = LocalUserProfile.getInstance();
+        JSONArray hits = content.optJSONArray("hits");
+        if (profile == null || hits == null || hits.length() == 0) {
+            return content;
+        }
+
+        int count = hits.length();
+        JSONObject[] objects = new JSONObject[count];
+        double[] latitudes = new double[count];
+        double[] longitudes = new double[count];
+
+        for (int i = 0; i < count; i++) {
+            JSONObject hit = hits.optJSONObject(i);
+            objects[i] = hit == null ? null : JsonUtilities.copy(hit);
+            JSONObject geoloc = hit == null ? null : hit.optJSONObject(Book.ALGOLIA_GEOLOC_KEY);
+            latitudes[i] = geoloc == null ? Double.NaN : geoloc.optDouble(Book.ALGOLIA_GEOLOC_LAT_KEY);
+            longitudes[i] = geoloc == null ? Double.NaN : geoloc.optDouble(Book.ALGOLIA_GEOLOC_LON_KEY);
+        }
+
+        double[] distances = computeDistances(profile.getCoordinates(), latitudes, longitudes);
+
+        try {
+            JSONArray processed = new JSONArray();
+            for (int i = 0; i < count; i++) {
+                if (objects[i] != null && !Double.isNaN(distances[i])) {
+                    objects[i].put(Book.ALGOLIA_DISTANCE_KEY, Math.round(distances[i]));
+                }
+                processed.put(objects[i]);
+            }
+            return JsonUtilities.copy(content).put("hits", processed);
+        } catch (JSONException e) {
+            return content;
+        }
+    }
+
+    /* Haversine formula, with the terms depending only on the user position computed once.
+     * Hits without location are given NaN, and are not annotated */
+    private static double[] computeDistances(@NonNull double[] origin,
+                                             @NonNull double[] latitudes, @NonNull double[] longitudes) {
+        double originLatitude = Math.toRadians(origin[0]);
+        double originLongitude = Math.toRadians(origin[1]);
+        double originCos = Math.cos(originLatitude);
+
+        double[] distances = new double[latitudes.length];
+        for (int i = 0; i < latitudes.length; i++) {
+            double latitude = Math.toRadians(latitudes[i]);
+            double sinLatitude = Math.sin((latitude - originLatitude) / 2);
+            double sinLongitude = Math.sin((Math.toRadians(longitudes[i]) - originLongitude) / 2);
+            double a = sinLatitude * sinLatitude +
+                    originCos * Math.cos(latitude) * sinLongitude * sinLongitude;
+            distances[i] = 2 * EARTH_RADIUS_METERS * Math.asin(Math.sqrt(Math.min(a, 1)));
+        }
+        return distances;
+    }
+
+    @Override
+    public Request searchAsync(@NonNull Query query, @Nullable RequestOptions requestOptions,
+                               @NonNull CompletionHandler completionHandler) {
+
+        return index.searchAsync(query, requestOptions, (content, error) ->
+                completionHandler.requestCompleted(
+                        content == null ? null : process(content), error));
+    }
+}
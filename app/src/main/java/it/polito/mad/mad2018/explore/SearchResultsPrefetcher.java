@@ -0,0 +1,135 @@
+package it.polito.mad.mad2018.explore;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+
+import com.algolia.instantsearch.helpers.Searcher;
+import com.algolia.instantsearch.model.AlgoliaErrorListener;
+import com.algolia.instantsearch.model.AlgoliaResultsListener;
+import com.algolia.instantsearch.model.SearchResults;
+import com.algolia.instantsearch.ui.views.Hits;
+import com.algolia.search.saas.AlgoliaException;
+import com.algolia.search.saas.Query;
+import com.google.firebase.storage.StorageReference;
+
+import org.json.JSONObject;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import it.polito.mad.mad2018.R;
+import it.polito.mad.mad2018.data.Book;
+import it.polito.mad.mad2018.views.BookImageView;
+
+/* Keeps the search results ahead of the scroll: the next page is requested as soon as the
+ * last visible row is closer than a given distance from the end of the list (instead of when
+ * the end is reached), and the thumbnails of the rows about to become visible are loaded in
+ * the Glide memory cache, so that they are displayed without passing through the placeholder.
+ * It is the only component requesting the pages: the infinite scroll of the Hits is disabled */
+class SearchResultsPrefetcher extends RecyclerView.OnScrollListener
+        implements AlgoliaResultsListener, AlgoliaErrorListener {
+
+    static final int DEFAULT_PAGE_DISTANCE = 10;
+    static final int DEFAULT_THUMBNAIL_DISTANCE = 6;
+
+    private final Searcher searcher;
+    private final Hits hits;
+    private final int pageDistance;
+    private final int thumbnailDistance;
+    private final int thumbnailSize;
+    private final Set<String> preloadedThumbnails;
+
+    private int lastReceivedPage;
+    private int lastRequestedPage;
+    private int pageCount;
+
+    SearchResultsPrefetcher(@NonNull Searcher searcher, @NonNull Hits hits) {
+        this(searcher, hits, DEFAULT_PAGE_DISTANCE, DEFAULT_THUMBNAIL_DISTANCE);
+    }
+
+    SearchResultsPrefetcher(@NonNull Searcher searcher, @NonNull Hits hits,
+                            int pageDistance, int thumbnailDistance) {
+        this.searcher = searcher;
+        this.hits = hits;
+        this.pageDistance = pageDistance;
+        this.thumbnailDistance = thumbnailDistance;
+        this.thumbnailSize = hits.getResources().getDimensionPixelSize(R.dimen.search_result_thumbnail_size);
+        this.preloadedThumbnails = new HashSet<>();
+
+        this.lastReceivedPage = 0;
+        this.lastRequestedPage = 0;
+        this.pageCount = 0;
+    }
+
+    void start() {
+        hits.addOnScrollListener(this);
+        searcher.registerResultListener(this);
+        searcher.registerErrorListener(this);
+    }
+
+    void stop() {
+        hits.removeOnScrollListener(this);
+        searcher.unregisterResultListener(this);
+        searcher.unregisterErrorListener(this);
+    }
+
+    @Override
+    public void onResults(@NonNull SearchResults results, boolean isLoadingMore) {
+        if (!isLoadingMore) {
+            preloadedThumbnails.clear();
+            lastRequestedPage = results.page;
+        }
+        lastReceivedPage = results.page;
+        pageCount = results.nbPages;
+
+        // The rows of the first page are about to be displayed: the list is not scrolled yet
+        hits.post(this::prefetch);
+    }
+
+    // The page failed to load: it is requested again at the next scroll
+    @Override
+    public void onError(@NonNull Query query, @NonNull AlgoliaException error) {
+        lastRequestedPage = lastReceivedPage;
+    }
+
+    @Override
+    public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+        if (dy > 0) {
+            prefetch();
+        }
+    }
+
+    private void prefetch() {
+        RecyclerView.LayoutManager layoutManager = hits.getLayoutManager();
+        RecyclerView.Adapter adapter = hits.getAdapter();
+        if (!(layoutManager instanceof LinearLayoutManager) || adapter == null) {
+            return;
+        }
+
+        int itemCount = adapter.getItemCount();
+        int lastVisible = Math.max(((LinearLayoutManager) layoutManager).findLastVisibleItemPosition(), 0);
+
+        // Only a page at a time is requested, the following one when it is received
+        if (itemCount - 1 - lastVisible <= pageDistance &&
+                lastRequestedPage == lastReceivedPage && lastReceivedPage + 1 < pageCount) {
+            lastRequestedPage = lastReceivedPage + 1;
+            searcher.loadMore();
+        }
+
+        Context context = hits.getContext();
+        for (int position = lastVisible; position < itemCount && position <= lastVisible + thumbnailDistance; position++) {
+            JSONObject hit = hits.get(position);
+            String bookId = hit == null ? null : hit.optString(Book.ALGOLIA_BOOK_ID_KEY, null);
+            if (bookId == null || !preloadedThumbnails.add(bookId)) {
+                continue;
+            }
+
+            StorageReference reference = BookImageView.getThumbnailReference(hit);
+            if (reference != null) {
+                BookImageView.preload(context, reference, thumbnailSize);
+            }
+        }
+    }
+}
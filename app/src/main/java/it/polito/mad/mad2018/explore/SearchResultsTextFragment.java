@@ -28,6 +28,7 @@ public class SearchResultsTextFragment extends Fragment
         implements AlgoliaResultsListener, AlgoliaErrorListener {
 
     private Searcher searcher;
+    private SearchResultsPrefetcher prefetcher;
 
     public SearchResultsTextFragment() { /* Required empty public constructor */ }
 
@@ -54,6 +55,9 @@ public class SearchResultsTextFragment extends Fragment
             searcher.registerResultListener(hits);
             searcher.registerResultListener(this);
             searcher.registerErrorListener(this);
+
+            prefetcher = new SearchResultsPrefetcher(searcher, hits);
+            prefetcher.start();
         }
     }
 
@@ -66,6 +70,11 @@ public class SearchResultsTextFragment extends Fragment
             searcher.unregisterErrorListener(this);
         }
 
+        if (prefetcher != null) {
+            prefetcher.stop();
+            prefetcher = null;
+        }
+
     }
 
     public void setSearcher(@NonNull Searcher searcher) {
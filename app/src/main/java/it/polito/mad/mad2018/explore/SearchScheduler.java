@@ -0,0 +1,303 @@
+package it.polito.mad.mad2018.explore;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.algolia.search.saas.AlgoliaException;
+import com.algolia.search.saas.CompletionHandler;
+import com.algolia.search.saas.Query;
+import com.algolia.search.saas.Request;
+import com.algolia.search.saas.RequestOptions;
+import com.algolia.search.saas.Searchable;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/* Searchable placed between the searcher and the books index to limit the requests performed
+ * while typing: a query whose text changed is sent only after no newer one arrived for the
+ * debounce interval and identical queries already in flight share the same request. The arrival
+ * of a response completes the searches sharing its request (from the newest to the oldest, the
+ * searcher ignoring the ones older than the last displayed), while the older searches of other
+ * queries are cancelled together with their requests, so that late responses are neither waited
+ * for nor displayed. A search superseded while being debounced is cancelled as well */
+class SearchScheduler extends Searchable {
+
+    static final long DEFAULT_DEBOUNCE_MILLIS = 300;
+
+    private final Searchable index;
+    private final long debounceMillis;
+    private final Handler handler;
+
+    private final List<ScheduledSearch> outstanding;
+    private final Map<String, Dispatch> inFlight;
+    private ScheduledSearch debouncing;
+    private String lastQueryText;
+    private int lastSequenceNumber;
+
+    private int dispatchedCount;
+    private int debouncedCount;
+    private int coalescedCount;
+    private int droppedCount;
+    private int completedCount;
+    private long lastLatency;
+    private long totalLatency;
+
+    SearchScheduler(@NonNull Searchable index) {
+        this(index, DEFAULT_DEBOUNCE_MILLIS);
+    }
+
+    SearchScheduler(@NonNull Searchable index, long debounceMillis) {
+        this.index = index;
+        this.debounceMillis = debounceMillis;
+        this.handler = new Handler(Looper.getMainLooper());
+
+        this.outstanding = new ArrayList<>();
+        this.inFlight = new HashMap<>();
+        this.debouncing = null;
+        this.lastQueryText = null;
+        this.lastSequenceNumber = 0;
+    }
+
+    @Override
+    public Request searchAsync(@NonNull Query query, @Nullable RequestOptions requestOptions,
+                               @NonNull CompletionHandler completionHandler) {
+
+        ScheduledSearch search = new ScheduledSearch(++lastSequenceNumber,
+                new Query(query), requestOptions, completionHandler);
+        outstanding.add(search);
+
+        // The previous query has been superseded before being sent
+        if (debouncing != null) {
+            debouncing.cancel();
+            debouncedCount++;
+        }
+
+        // Only the changes of the text are debounced (refinements and pages are sent immediately)
+        String text = query.getQuery() == null ? "" : query.getQuery();
+        boolean debounce = lastQueryText != null && !lastQueryText.equals(text) && debounceMillis > 0;
+        lastQueryText = text;
+
+        if (debounce) {
+            debouncing = search;
+            handler.postDelayed(search, debounceMillis);
+        } else {
+            dispatch(search);
+        }
+        return search;
+    }
+
+    Statistics getStatistics() {
+        return new Statistics(dispatchedCount, debouncedCount + coalescedCount, droppedCount,
+                lastLatency, completedCount == 0 ? 0 : totalLatency / completedCount);
+    }
+
+    private void dispatch(@NonNull ScheduledSearch search) {
+        String key = search.query.build();
+
+        Dispatch dispatch = inFlight.get(key);
+        if (dispatch != null) {
+            coalescedCount++;
+        } else {
+            dispatch = new Dispatch(key);
+            inFlight.put(key, dispatch);
+            dispatchedCount++;
+
+            Dispatch current = dispatch;
+            dispatch.request = index.searchAsync(search.query, search.requestOptions,
+                    (content, error) -> onDispatchCompleted(current, content, error));
+        }
+
+        dispatch.searches.add(search);
+        search.dispatch = dispatch;
+    }
+
+    private void onDispatchCompleted(@NonNull Dispatch dispatch, JSONObject content, AlgoliaException error) {
+        if (inFlight.get(dispatch.key) == dispatch) {
+            inFlight.remove(dispatch.key);
+        }
+        if (dispatch.cancelled) {
+            return;
+        }
+
+        lastLatency = SystemClock.elapsedRealtime() - dispatch.startTime;
+        totalLatency += lastLatency;
+        completedCount++;
+
+        int newest = 0;
+        List<ScheduledSearch> completed = new ArrayList<>();
+        for (ScheduledSearch search : dispatch.searches) {
+            if (!search.isFinished()) {
+                newest = Math.max(newest, search.sequenceNumber);
+                completed.add(0, search);
+            }
+        }
+
+        for (ScheduledSearch search : completed) {
+            search.complete(content, error);
+        }
+
+        if (error != null) {
+            return;
+        }
+
+        // The searches of other queries issued before the newest one served are outdated:
+        // their requests are cancelled once no search is left waiting for them
+        Set<Dispatch> superseded = new HashSet<>();
+        for (ScheduledSearch search : new ArrayList<>(outstanding)) {
+            if (search.sequenceNumber < newest) {
+                if (search.dispatch != null && !search.dispatch.cancelled) {
+                    superseded.add(search.dispatch);
+                }
+                search.cancel();
+            }
+        }
+
+        for (Dispatch other : superseded) {
+            if (other.cancelled) {
+                droppedCount++;
+            }
+        }
+    }
+
+    static class Statistics {
+        private final int requests;
+        private final int savedRequests;
+        private final int droppedResponses;
+        private final long lastLatency;
+        private final long averageLatency;
+
+        private Statistics(int requests, int savedRequests, int droppedResponses,
+                           long lastLatency, long averageLatency) {
+            this.requests = requests;
+            this.savedRequests = savedRequests;
+            this.droppedResponses = droppedResponses;
+            this.lastLatency = lastLatency;
+            this.averageLatency = averageLatency;
+        }
+
+        int getRequestCount() {
+            return requests;
+        }
+
+        int getSavedRequestCount() {
+            return savedRequests;
+        }
+
+        int getDroppedResponseCount() {
+            return droppedResponses;
+        }
+
+        long getLastLatencyMillis() {
+            return lastLatency;
+        }
+
+        long getAverageLatencyMillis() {
+            return averageLatency;
+        }
+    }
+
+    private class Dispatch {
+        private final String key;
+        private final long startTime;
+        private final List<ScheduledSearch> searches;
+        private Request request;
+        private boolean cancelled;
+
+        private Dispatch(@NonNull String key) {
+            this.key = key;
+            this.startTime = SystemClock.elapsedRealtime();
+            this.searches = new ArrayList<>();
+            this.request = null;
+            this.cancelled = false;
+        }
+
+        private boolean isUnused() {
+            for (ScheduledSearch search : searches) {
+                if (!search.isFinished()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void cancel() {
+            cancelled = true;
+            if (request != null) {
+                request.cancel();
+            }
+            if (inFlight.get(key) == this) {
+                inFlight.remove(key);
+            }
+        }
+    }
+
+    private class ScheduledSearch implements Request, Runnable {
+        private final int sequenceNumber;
+        private final Query query;
+        private final RequestOptions requestOptions;
+        private final CompletionHandler completionHandler;
+        private Dispatch dispatch;
+        private boolean finished;
+        private boolean cancelled;
+
+        private ScheduledSearch(int sequenceNumber, @NonNull Query query,
+                                @Nullable RequestOptions requestOptions,
+                                @NonNull CompletionHandler completionHandler) {
+            this.sequenceNumber = sequenceNumber;
+            this.query = query;
+            this.requestOptions = requestOptions;
+            this.completionHandler = completionHandler;
+            this.dispatch = null;
+            this.finished = false;
+            this.cancelled = false;
+        }
+
+        @Override
+        public void run() {
+            debouncing = null;
+            dispatch(this);
+        }
+
+        private void complete(JSONObject content, AlgoliaException error) {
+            finished = true;
+            outstanding.remove(this);
+            completionHandler.requestCompleted(content, error);
+        }
+
+        @Override
+        public void cancel() {
+            if (isFinished()) {
+                return;
+            }
+
+            cancelled = true;
+            outstanding.remove(this);
+            if (debouncing == this) {
+                handler.removeCallbacks(this);
+                debouncing = null;
+            }
+            if (dispatch != null && dispatch.isUnused()) {
+                dispatch.cancel();
+            }
+        }
+
+        @Override
+        public boolean isFinished() {
+            return finished || cancelled;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+}
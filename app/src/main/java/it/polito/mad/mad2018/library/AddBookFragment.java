@@ -48,6 +48,7 @@ import it.polito.mad.mad2018.data.LocalUserProfile;
 import it.polito.mad.mad2018.data.OwnedBook;
 import it.polito.mad.mad2018.utils.FileUtilities;
 import it.polito.mad.mad2018.utils.FragmentDialog;
+import it.polito.mad.mad2018.utils.ImageTaskExecutor;
 import it.polito.mad.mad2018.utils.IsbnQuery;
 import it.polito.mad.mad2018.utils.PictureUtilities;
 import it.polito.mad.mad2018.utils.Utilities;
@@ -143,7 +144,7 @@ public class AddBookFragment extends FragmentDialog<AddBookFragment.DialogID>
         book = null;
         fileToBeDeleted = false;
         if (savedInstanceState != null) {
-            book = (OwnedBook) savedInstanceState.getSerializable(Book.BOOK_KEY);
+            book = (OwnedBook) savedInstanceState.getParcelable(Book.BOOK_KEY);
             fileToBeDeleted = savedInstanceState.getBoolean(TO_BE_DELETED_KEY, false);
         }
 
@@ -197,7 +198,7 @@ public class AddBookFragment extends FragmentDialog<AddBookFragment.DialogID>
     public void onSaveInstanceState(@NonNull Bundle outState) {
         super.onSaveInstanceState(outState);
 
-        outState.putSerializable(Book.BOOK_KEY, book);
+        outState.putParcelable(Book.BOOK_KEY, book);
         outState.putBoolean(TO_BE_DELETED_KEY, fileToBeDeleted);
     }
 
@@ -316,9 +317,9 @@ public class AddBookFragment extends FragmentDialog<AddBookFragment.DialogID>
     }
 
     private void processPicture(@NonNull String imagePath) {
-        new PictureUtilities.CompressImageAsync(
+        PictureUtilities.compressImageAsync(this, ImageTaskExecutor.Priority.USER_VISIBLE,
                 imagePath, OwnedBook.BOOK_PICTURE_SIZE, OwnedBook.BOOK_THUMBNAIL_SIZE,
-                OwnedBook.BOOK_PICTURE_QUALITY, picture -> {
+                OwnedBook.BOOK_PICTURE_MAX_BYTES, OwnedBook.BOOK_THUMBNAIL_MAX_BYTES, picture -> {
 
             if (fileToBeDeleted) {
                 assert getActivity() != null;
@@ -335,7 +336,7 @@ public class AddBookFragment extends FragmentDialog<AddBookFragment.DialogID>
             }
 
             uploadBook(picture);
-        }).execute();
+        });
     }
 
     private void uploadBook() {
@@ -369,7 +370,8 @@ public class AddBookFragment extends FragmentDialog<AddBookFragment.DialogID>
             }
 
             if (picture != null) {
-                book.savePictureToFirebase(LocalUserProfile.getInstance(), picture.getPicture(), picture.getThumbnail())
+                book.savePictureToFirebase(LocalUserProfile.getInstance(), picture.getPicture(), picture.getThumbnail(),
+                        (transferred, total) -> Utilities.showSavingProgress(getDialogInstance(), transferred, total))
                         .addOnCompleteListener(v -> closeDialog())
                         .addOnSuccessListener(onSuccess)
                         .addOnFailureListener(onFailure)
@@ -40,12 +40,12 @@ public class BookInfoActivity extends AppCompatActivity
         }
 
         if (savedInstanceState != null) {
-            this.book = (Book) savedInstanceState.getSerializable(Book.BOOK_KEY);
+            this.book = (Book) savedInstanceState.getParcelable(Book.BOOK_KEY);
             this.bookId = savedInstanceState.getString(Book.BOOK_ID_KEY);
             this.bookShowOwner = savedInstanceState.getBoolean(BookInfoFragment.BOOK_SHOW_OWNER_KEY);
             this.bookDeletable = savedInstanceState.getBoolean(BookInfoFragment.BOOK_DELETABLE_KEY);
         } else {
-            this.book = (Book) this.getIntent().getSerializableExtra(Book.BOOK_KEY);
+            this.book = (Book) this.getIntent().getParcelableExtra(Book.BOOK_KEY);
             this.bookId = book == null ? this.getIntent().getStringExtra(Book.BOOK_ID_KEY) : book.getBookId();
             this.bookShowOwner = this.getIntent().getBooleanExtra(BookInfoFragment.BOOK_SHOW_OWNER_KEY, true);
             this.bookDeletable = this.getIntent().getBooleanExtra(BookInfoFragment.BOOK_DELETABLE_KEY, false);
@@ -61,8 +61,8 @@ public class BookInfoActivity extends AppCompatActivity
     @Override
     public void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
-        outState.putSerializable(Book.BOOK_KEY, book);
-        outState.putSerializable(Book.BOOK_ID_KEY, bookId);
+        outState.putParcelable(Book.BOOK_KEY, book);
+        outState.putString(Book.BOOK_ID_KEY, bookId);
         outState.putBoolean(BookInfoFragment.BOOK_SHOW_OWNER_KEY, bookShowOwner);
         outState.putBoolean(BookInfoFragment.BOOK_DELETABLE_KEY, bookDeletable);
     }
@@ -105,7 +105,7 @@ public class BookInfoActivity extends AppCompatActivity
                     return;
                 }
 
-                Book.Data data = dataSnapshot.getValue(Book.Data.class);
+                Book.Data data = Book.Data.fromSnapshot(dataSnapshot);
                 if (data != null) {
                     book = new Book(bookId, data);
                     showBookInfoFragment();
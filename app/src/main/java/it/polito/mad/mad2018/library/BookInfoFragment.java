@@ -19,15 +19,12 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import com.bumptech.glide.load.resource.drawable.DrawableTransitionOptions;
-import com.google.firebase.database.DataSnapshot;
-import com.google.firebase.database.DatabaseError;
-import com.google.firebase.database.ValueEventListener;
-
 import java.util.List;
 
 import it.polito.mad.mad2018.R;
 import it.polito.mad.mad2018.chat.SingleChatActivity;
 import it.polito.mad.mad2018.data.Book;
+import it.polito.mad.mad2018.data.EntityRepository;
 import it.polito.mad.mad2018.data.LocalUserProfile;
 import it.polito.mad.mad2018.data.OwnedBook;
 import it.polito.mad.mad2018.data.UserProfile;
@@ -51,7 +48,7 @@ public class BookInfoFragment extends FragmentDialog<BookInfoFragment.DialogID>
     private Book book;
     private UserProfile owner;
 
-    private ValueEventListener profileListener;
+    private EntityRepository.OnEntityLoadedListener<UserProfile> profileListener;
     private LongPressPopup popup;
     private ImageView popupImage;
 
@@ -65,7 +62,7 @@ public class BookInfoFragment extends FragmentDialog<BookInfoFragment.DialogID>
 
         BookInfoFragment fragment = new BookInfoFragment();
         Bundle args = new Bundle();
-        args.putSerializable(Book.BOOK_KEY, book);
+        args.putParcelable(Book.BOOK_KEY, book);
         args.putBoolean(BOOK_SHOW_OWNER_KEY, showOwner);
         args.putBoolean(BOOK_DELETABLE_KEY, deletable);
         fragment.setArguments(args);
@@ -82,12 +79,12 @@ public class BookInfoFragment extends FragmentDialog<BookInfoFragment.DialogID>
         getActivity().setTitle(R.string.bookinfo_title);
 
         assert getArguments() != null;
-        book = (Book) getArguments().getSerializable(Book.BOOK_KEY);
+        book = (Book) getArguments().getParcelable(Book.BOOK_KEY);
 
         assert book != null;
 
         if (savedInstanceState != null) {
-            owner = (UserProfile) savedInstanceState.getSerializable(UserProfile.PROFILE_INFO_KEY);
+            owner = (UserProfile) savedInstanceState.getParcelable(UserProfile.PROFILE_INFO_KEY);
         }
 
         View view = inflater.inflate(R.layout.fragment_book_info, container, false);
@@ -163,7 +160,7 @@ public class BookInfoFragment extends FragmentDialog<BookInfoFragment.DialogID>
     @Override
     public void onSaveInstanceState(@NonNull Bundle outState) {
         super.onSaveInstanceState(outState);
-        outState.putSerializable(UserProfile.PROFILE_INFO_KEY, owner);
+        outState.putParcelable(UserProfile.PROFILE_INFO_KEY, owner);
     }
 
     private void fillViews(View view) {
@@ -222,39 +219,28 @@ public class BookInfoFragment extends FragmentDialog<BookInfoFragment.DialogID>
         if (owner != null || !showOwner)
             return;
 
-        this.profileListener = UserProfile.setOnProfileLoadedListener(
-                this.book.getOwnerId(),
-                new ValueEventListener() {
-                    @Override
-                    public void onDataChange(DataSnapshot dataSnapshot) {
-                        if (!unsetOnProfileLoadedListener()) {
-                            return;
-                        }
-
-                        UserProfile.Data data = dataSnapshot.getValue(UserProfile.Data.class);
-                        if (data != null) {
-                            owner = new UserProfile(book.getOwnerId(), data);
-                            if (showProfileMenuItem != null && showChatMenuItem != null) {
-                                showProfileMenuItem.setVisible(getArguments().getBoolean(BOOK_SHOW_OWNER_KEY));
-                                showChatMenuItem.setVisible(getArguments().getBoolean(BOOK_SHOW_OWNER_KEY));
-                            }
-                        }
-                    }
-
-                    @Override
-                    public void onCancelled(DatabaseError databaseError) {
-                        unsetOnProfileLoadedListener();
-                    }
-                });
+        this.profileListener = (ownerId, profile) -> {
+            this.profileListener = null;
+            owner = profile;
+            if (owner != null && showProfileMenuItem != null && showChatMenuItem != null) {
+                showProfileMenuItem.setVisible(getArguments().getBoolean(BOOK_SHOW_OWNER_KEY));
+                showChatMenuItem.setVisible(getArguments().getBoolean(BOOK_SHOW_OWNER_KEY));
+            }
+        };
+
+        UserProfile cachedProfile = EntityRepository.getInstance()
+                .getProfile(book.getOwnerId(), this.profileListener);
+        if (cachedProfile != null) {
+            this.profileListener.onEntityLoaded(book.getOwnerId(), cachedProfile);
+        }
     }
 
-    private boolean unsetOnProfileLoadedListener() {
+    private void unsetOnProfileLoadedListener() {
         if (this.profileListener != null) {
-            UserProfile.unsetOnProfileLoadedListener(book.getOwnerId(), this.profileListener);
+            EntityRepository.getInstance()
+                    .removeOnProfileLoadedListener(book.getOwnerId(), this.profileListener);
             this.profileListener = null;
-            return true;
         }
-        return false;
     }
 
     private void deleteBook() {
@@ -37,7 +37,7 @@ public class MyBooksFragment extends Fragment {
     public static MyBooksFragment newInstance(@NonNull UserProfile profile) {
         MyBooksFragment fragment = new MyBooksFragment();
         Bundle args = new Bundle();
-        args.putSerializable(UserProfile.PROFILE_INFO_KEY, profile);
+        args.putParcelable(UserProfile.PROFILE_INFO_KEY, profile);
         fragment.setArguments(args);
         return fragment;
     }
@@ -49,7 +49,7 @@ public class MyBooksFragment extends Fragment {
         View view = inflater.inflate(R.layout.fragment_my_books, container, false);
 
         assert getArguments() != null;
-        profile = (UserProfile) getArguments().getSerializable(UserProfile.PROFILE_INFO_KEY);
+        profile = (UserProfile) getArguments().getParcelable(UserProfile.PROFILE_INFO_KEY);
         assert profile != null;
 
         final FloatingActionButton floatingActionButton = view.findViewById(R.id.fmb_add_book);
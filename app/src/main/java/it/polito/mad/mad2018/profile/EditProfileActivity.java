@@ -9,7 +9,6 @@ import android.content.pm.PackageManager;
 import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Environment;
 import android.provider.MediaStore;
@@ -54,6 +53,7 @@ import it.polito.mad.mad2018.utils.AppCompatActivityDialog;
 import it.polito.mad.mad2018.utils.FileUtilities;
 import it.polito.mad.mad2018.utils.GlideApp;
 import it.polito.mad.mad2018.utils.GlideRequest;
+import it.polito.mad.mad2018.utils.ImageTaskExecutor;
 import it.polito.mad.mad2018.utils.PictureUtilities;
 import it.polito.mad.mad2018.utils.TextWatcherUtilities;
 import it.polito.mad.mad2018.utils.Utilities;
@@ -77,7 +77,7 @@ public class EditProfileActivity extends AppCompatActivityDialog<EditProfileActi
     private int imageViewHeight;
 
     private boolean isCommitting;
-    private AsyncTask<Void, Void, PictureUtilities.CompressedImage> pictureProcessingTask;
+    private ImageTaskExecutor.ImageTask<PictureUtilities.CompressedImage> pictureProcessingTask;
 
     private AdapterView.OnItemClickListener autocompleteClickListener;
     private OnCompleteListener<PlaceBufferResponse> updatePlaceDetailsCallback;
@@ -98,12 +98,12 @@ public class EditProfileActivity extends AppCompatActivityDialog<EditProfileActi
         // Initialize the Profile instances
         if (savedInstanceState != null) {
             // If they was saved, load them
-            originalProfile = (LocalUserProfile) savedInstanceState.getSerializable(ORIGINAL_PROFILE_KEY);
-            currentProfile = (LocalUserProfile) savedInstanceState.getSerializable(CURRENT_PROFILE_KEY);
+            originalProfile = (LocalUserProfile) savedInstanceState.getParcelable(ORIGINAL_PROFILE_KEY);
+            currentProfile = (LocalUserProfile) savedInstanceState.getParcelable(CURRENT_PROFILE_KEY);
             isCommitting = savedInstanceState.getBoolean(IS_COMMITTING_KEY, false);
         } else {
             // Otherwise, obtain them through the intent
-            originalProfile = (LocalUserProfile) this.getIntent().getSerializableExtra(UserProfile.PROFILE_INFO_KEY);
+            originalProfile = (LocalUserProfile) this.getIntent().getParcelableExtra(UserProfile.PROFILE_INFO_KEY);
             currentProfile = new LocalUserProfile(originalProfile);
             isCommitting = false;
         }
@@ -216,8 +216,8 @@ public class EditProfileActivity extends AppCompatActivityDialog<EditProfileActi
         super.onSaveInstanceState(outState);
 
         updateProfileInfo(currentProfile);
-        outState.putSerializable(ORIGINAL_PROFILE_KEY, originalProfile);
-        outState.putSerializable(CURRENT_PROFILE_KEY, currentProfile);
+        outState.putParcelable(ORIGINAL_PROFILE_KEY, originalProfile);
+        outState.putParcelable(CURRENT_PROFILE_KEY, currentProfile);
         outState.putBoolean(IS_COMMITTING_KEY, isCommitting);
     }
 
@@ -332,7 +332,7 @@ public class EditProfileActivity extends AppCompatActivityDialog<EditProfileActi
                     this.isCommitting = true;
                     this.openDialog(DialogID.DIALOG_SAVING, false);
 
-                    pictureProcessingTask = currentProfile.processProfilePictureAsync(picture -> {
+                    pictureProcessingTask = currentProfile.processProfilePictureAsync(this, picture -> {
 
                         OnSuccessListener<Object> onSuccess = t -> {
                             isCommitting = false;
@@ -345,8 +345,8 @@ public class EditProfileActivity extends AppCompatActivityDialog<EditProfileActi
                             return;
                         }
 
-                        currentProfile.setProfilePictureThumbnail(picture.getThumbnail());
-                        currentProfile.uploadProfilePictureToFirebase(picture.getPicture())
+                        currentProfile.uploadProfilePictureToFirebase(picture.getPicture(), picture.getThumbnail(),
+                                (transferred, total) -> Utilities.showSavingProgress(getDialogInstance(), transferred, total))
                                 .addOnSuccessListener(this, onSuccess)
                                 .addOnFailureListener(this, onFailure);
                     });
@@ -390,6 +390,7 @@ public class EditProfileActivity extends AppCompatActivityDialog<EditProfileActi
         GlideRequest<Drawable> thumbnail = GlideApp
                 .with(this)
                 .load(currentProfile.getProfilePictureThumbnail())
+                .signature(new ObjectKey(profile.getProfilePictureLastModified()))
                 .centerCrop();
 
         GlideApp.with(this)
@@ -4,32 +4,35 @@ import android.content.Intent
 import android.support.v4.content.ContextCompat.startActivity
 import android.support.v7.widget.RecyclerView
 import android.text.format.DateFormat
-import android.util.Pair
 import android.view.LayoutInflater
 import android.view.View
 import android.view.ViewGroup
-import com.firebase.ui.common.ChangeEventType
 import com.firebase.ui.database.FirebaseRecyclerAdapter
 import com.firebase.ui.database.FirebaseRecyclerOptions
-import com.google.firebase.database.DataSnapshot
-import com.google.firebase.database.DatabaseError
-import com.google.firebase.database.ValueEventListener
 import it.polito.mad.mad2018.R
 import it.polito.mad.mad2018.data.Book
+import it.polito.mad.mad2018.data.EntityRepository
 import it.polito.mad.mad2018.data.Rating
 import it.polito.mad.mad2018.library.BookInfoActivity
 import it.polito.mad.mad2018.library.BookInfoFragment
 import it.polito.mad.mad2018.utils.Utilities
 import kotlinx.android.synthetic.main.item_rating.view.*
-import kotlin.collections.component1
-import kotlin.collections.component2
 
 internal class RatingAdapter(options: FirebaseRecyclerOptions<Rating>,
                              private val onItemCountChangedListener: (Int) -> Unit)
     : FirebaseRecyclerAdapter<Rating, RatingAdapter.RatingHolder>(options) {
 
-    private val bookListeners = HashMap<String, Pair<ValueEventListener, MutableSet<Int>>>()
-    private val books = HashMap<String, Book>()
+    private val requestedBooks = HashSet<String>()
+    private val onBookLoadedListener = EntityRepository.OnEntityLoadedListener<Book> { bookId, book ->
+        requestedBooks.remove(bookId)
+        if (book != null) {
+            for (position in 0 until itemCount) {
+                if (getItem(position).bookId == bookId) {
+                    notifyItemChanged(position)
+                }
+            }
+        }
+    }
 
     override fun onCreateViewHolder(parent: ViewGroup, viewType: Int): RatingHolder {
 
@@ -40,11 +43,11 @@ internal class RatingAdapter(options: FirebaseRecyclerOptions<Rating>,
 
     override fun onBindViewHolder(holder: RatingHolder, position: Int, model: Rating) {
 
-        val bookId = model.bookId
-        val book = books[bookId]
+        val bookId = model.bookId!!
+        val book = EntityRepository.getInstance().getBook(bookId, onBookLoadedListener)
 
         if (book == null) {
-            this.addListener(bookId!!, position)
+            requestedBooks.add(bookId)
         }
 
         holder.update(model, book)
@@ -53,9 +56,10 @@ internal class RatingAdapter(options: FirebaseRecyclerOptions<Rating>,
     override fun onDetachedFromRecyclerView(recyclerView: RecyclerView) {
         super.onDetachedFromRecyclerView(recyclerView)
 
-        for ((key, value) in bookListeners) {
-            Book.unsetOnBookLoadedListener(key, value.first)
+        for (bookId in requestedBooks) {
+            EntityRepository.getInstance().removeOnBookLoadedListener(bookId, onBookLoadedListener)
         }
+        requestedBooks.clear()
     }
 
     override fun onDataChanged() {
@@ -63,56 +67,6 @@ internal class RatingAdapter(options: FirebaseRecyclerOptions<Rating>,
         onItemCountChangedListener(this.itemCount)
     }
 
-    override fun onChildChanged(type: ChangeEventType, snapshot: DataSnapshot, newIndex: Int, oldIndex: Int) {
-        super.onChildChanged(type, snapshot, newIndex, oldIndex)
-
-        if (type == ChangeEventType.MOVED && newIndex != oldIndex) {
-
-            for (listener in bookListeners.values) {
-                if (listener.second.contains(oldIndex)) {
-                    listener.second.remove(oldIndex)
-                    listener.second.add(newIndex)
-                }
-            }
-        }
-    }
-
-    private fun addListener(id: String, position: Int) {
-
-        var listenerPair = bookListeners[id]
-        if (listenerPair == null) {
-            val listener = setOnBookLoadedListener(id)
-            listenerPair = Pair(listener, HashSet(listOf(position)))
-            bookListeners[id] = listenerPair
-        } else {
-            listenerPair.second.add(position)
-        }
-    }
-
-    private fun setOnBookLoadedListener(bookId: String): ValueEventListener {
-
-        return Book.setOnBookLoadedListener(
-                bookId,
-                object : ValueEventListener {
-                    override fun onDataChange(dataSnapshot: DataSnapshot) {
-
-                        val listener = bookListeners.remove(bookId) ?: return
-                        val data = dataSnapshot.getValue(Book.Data::class.java) ?: return
-
-                        Book.unsetOnBookLoadedListener(bookId, listener.first)
-                        books[bookId] = Book(bookId, data)
-                        for (position in listener.second) {
-                            notifyItemChanged(position)
-                        }
-                    }
-
-                    override fun onCancelled(databaseError: DatabaseError) {
-                        val listener = bookListeners.remove(bookId) ?: return
-                        Book.unsetOnBookLoadedListener(bookId, listener.first!!)
-                    }
-                })
-    }
-
     internal class RatingHolder constructor(view: View)
         : RecyclerView.ViewHolder(view) {
 
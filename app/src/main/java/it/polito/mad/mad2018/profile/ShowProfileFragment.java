@@ -44,8 +44,8 @@ public class ShowProfileFragment extends Fragment {
     public static ShowProfileFragment newInstance(@NonNull UserProfile profile, boolean isEditable) {
         ShowProfileFragment fragment = new ShowProfileFragment();
         Bundle args = new Bundle();
-        args.putSerializable(UserProfile.PROFILE_INFO_KEY, profile);
-        args.putSerializable(EDITABLE_KEY, isEditable);
+        args.putParcelable(UserProfile.PROFILE_INFO_KEY, profile);
+        args.putBoolean(EDITABLE_KEY, isEditable);
         fragment.setArguments(args);
         return fragment;
     }
@@ -65,7 +65,7 @@ public class ShowProfileFragment extends Fragment {
         assert getView() != null;
         assert getArguments() != null;
 
-        profile = (UserProfile) getArguments().getSerializable(UserProfile.PROFILE_INFO_KEY);
+        profile = (UserProfile) getArguments().getParcelable(UserProfile.PROFILE_INFO_KEY);
         isEditable = getArguments().getBoolean(EDITABLE_KEY);
         assert profile != null;
 
@@ -149,6 +149,7 @@ public class ShowProfileFragment extends Fragment {
         GlideRequest<Drawable> thumbnail = GlideApp
                 .with(this)
                 .load(profile.getProfilePictureThumbnail())
+                .signature(new ObjectKey(profile.getProfilePictureLastModified()))
                 .centerCrop();
 
         GlideApp.with(this)
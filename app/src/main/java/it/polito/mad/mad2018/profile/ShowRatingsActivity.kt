@@ -22,9 +22,9 @@ class ShowRatingsActivity : AppCompatActivity() {
         setContentView(R.layout.activity_show_ratings)
 
         profile = if (savedInstanceState != null) {
-            savedInstanceState.getSerializable(UserProfile.PROFILE_INFO_KEY) as UserProfile
+            savedInstanceState.getParcelable<UserProfile>(UserProfile.PROFILE_INFO_KEY)
         } else {
-            intent.getSerializableExtra(UserProfile.PROFILE_INFO_KEY) as UserProfile
+            intent.getParcelableExtra<UserProfile>(UserProfile.PROFILE_INFO_KEY)
         }
 
         val toolbar = findViewById<Toolbar>(R.id.toolbar)
@@ -64,7 +64,7 @@ class ShowRatingsActivity : AppCompatActivity() {
 
     override fun onSaveInstanceState(outState: Bundle?) {
         super.onSaveInstanceState(outState)
-        outState?.putSerializable(UserProfile.PROFILE_INFO_KEY, profile)
+        outState?.putParcelable(UserProfile.PROFILE_INFO_KEY, profile)
     }
 
     override fun onSupportNavigateUp(): Boolean {
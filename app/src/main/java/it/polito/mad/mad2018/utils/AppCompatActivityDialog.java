@@ -57,6 +57,10 @@ public abstract class AppCompatActivityDialog<E extends Enum<E>> extends AppComp
         this.dialogInstance = dialogInstance;
     }
 
+    protected final Dialog getDialogInstance() {
+        return this.dialogInstance;
+    }
+
     protected final void closeDialog() {
         if (this.dialogInstance != null && this.dialogInstance.isShowing()) {
             this.dialogInstance.dismiss();
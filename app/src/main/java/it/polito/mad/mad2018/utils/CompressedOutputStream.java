@@ -0,0 +1,155 @@
+package it.polito.mad.mad2018.utils;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/* Output stream for the compressed images, whose buffers are recycled. A stream is obtained
+ * pre-sized for the expected content (reusing, if possible, a buffer released by a previous
+ * one, so that it does not grow by doubling during the compression), and its content is read
+ * in place rather than copied by toByteArray(). Once released, a stream must not be used anymore.
+ * The bytes allocated for the buffers are counted, to measure the effectiveness of the pool */
+public class CompressedOutputStream extends ByteArrayOutputStream {
+
+    private static final int MAX_POOL_SIZE = 4;
+    static final int MAX_POOLED_BUFFER_SIZE = 1024 * 1024;
+
+    private static final List<byte[]> pool = new ArrayList<>();
+    private static long allocatedBytes;
+    private static int allocatedBuffers;
+    private static int reusedBuffers;
+
+    private boolean released;
+
+    private CompressedOutputStream(@NonNull byte[] buffer) {
+        super(0);
+        this.buf = buffer;
+        this.released = false;
+    }
+
+    /* The expected size is capped to the largest buffer that can be pooled: in the rare case the
+     * content exceeds it, the stream grows rather than holding a buffer that is never reused */
+    public static CompressedOutputStream obtain(int expectedSize) {
+        expectedSize = Math.min(expectedSize, MAX_POOLED_BUFFER_SIZE);
+        synchronized (pool) {
+            // The smallest buffer large enough is chosen
+            byte[] selected = null;
+            for (byte[] buffer : pool) {
+                if (buffer.length >= expectedSize && (selected == null || buffer.length < selected.length)) {
+                    selected = buffer;
+                }
+            }
+
+            if (selected != null) {
+                pool.remove(selected);
+                reusedBuffers++;
+                return new CompressedOutputStream(selected);
+            }
+
+            allocatedBytes += expectedSize;
+            allocatedBuffers++;
+        }
+        return new CompressedOutputStream(new byte[expectedSize]);
+    }
+
+    public static Statistics getStatistics() {
+        synchronized (pool) {
+            return new Statistics(allocatedBytes, allocatedBuffers, reusedBuffers);
+        }
+    }
+
+    @VisibleForTesting
+    static void resetPool() {
+        synchronized (pool) {
+            pool.clear();
+            allocatedBytes = 0;
+            allocatedBuffers = 0;
+            reusedBuffers = 0;
+        }
+    }
+
+    private static void onGrown(int size) {
+        synchronized (pool) {
+            allocatedBytes += size;
+            allocatedBuffers++;
+        }
+    }
+
+    @Override
+    public synchronized void write(int b) {
+        int capacity = buf.length;
+        super.write(b);
+        if (buf.length != capacity) {
+            onGrown(buf.length);
+        }
+    }
+
+    @Override
+    public synchronized void write(@NonNull byte[] b, int off, int len) {
+        int capacity = buf.length;
+        super.write(b, off, len);
+        if (buf.length != capacity) {
+            onGrown(buf.length);
+        }
+    }
+
+    public synchronized void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+
+        byte[] buffer = buf;
+        buf = new byte[0];
+        count = 0;
+
+        if (buffer.length > MAX_POOLED_BUFFER_SIZE) {
+            return;
+        }
+
+        synchronized (pool) {
+            if (pool.size() >= MAX_POOL_SIZE) {
+                // The smallest buffer is the least useful one
+                byte[] smallest = buffer;
+                for (byte[] pooled : pool) {
+                    if (pooled.length < smallest.length) {
+                        smallest = pooled;
+                    }
+                }
+                if (smallest == buffer) {
+                    return;
+                }
+                pool.remove(smallest);
+            }
+            pool.add(buffer);
+        }
+    }
+
+    public static class Statistics {
+        private final long allocatedBytes;
+        private final int allocatedBuffers;
+        private final int reusedBuffers;
+
+        private Statistics(long allocatedBytes, int allocatedBuffers, int reusedBuffers) {
+            this.allocatedBytes = allocatedBytes;
+            this.allocatedBuffers = allocatedBuffers;
+            this.reusedBuffers = reusedBuffers;
+        }
+
+        // Including the reallocations when a buffer had to grow
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+
+        public int getAllocatedBufferCount() {
+            return allocatedBuffers;
+        }
+
+        public int getReusedBufferCount() {
+            return reusedBuffers;
+        }
+    }
+}
@@ -6,11 +6,77 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Environment;
+import android.os.Process;
 import android.provider.DocumentsContract;
 import android.provider.MediaStore;
 import android.support.annotation.NonNull;
+import android.support.v4.util.AtomicFile;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 public class FileUtilities {
+
+    /* Single thread dedicated to the persistence of the application files, so that the order of
+     * the reads and the writes does not depend on (nor is delayed by) the AsyncTasks */
+    private static final Executor fileExecutor = Executors.newSingleThreadExecutor(
+            runnable -> new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runnable.run();
+            }, "FileTask"));
+
+    /* The tasks are executed serially, in order of submission, on the thread of the file tasks */
+    public static void executeSerially(@NonNull Runnable task) {
+        fileExecutor.execute(task);
+    }
+
+    public static byte[] readFile(@NonNull File file) throws IOException {
+        try (InputStream stream = new FileInputStream(file)) {
+            byte[] content = new byte[(int) file.length()];
+            int read = 0;
+            while (read < content.length) {
+                int count = stream.read(content, read, content.length - read);
+                if (count < 0) {
+                    throw new EOFException();
+                }
+                read += count;
+            }
+            return content;
+        }
+    }
+
+    /* Reads a file written by writeFileAtomicallyAsync, recovering the previous version
+     * if the last write was interrupted. Throws FileNotFoundException if it was never written */
+    public static byte[] readFileAtomically(@NonNull File file) throws IOException {
+        return new AtomicFile(file).readFully();
+    }
+
+    /* The content is replaced atomically, so that the file is never left partially written
+     * (e.g. if the process is killed). The write is one of the serial file tasks, hence the last
+     * version of the content is always the one saved, and it is visible to the reads submitted
+     * afterwards */
+    public static void writeFileAtomicallyAsync(@NonNull File file, @NonNull byte[] content) {
+        executeSerially(() -> {
+            AtomicFile atomicFile = new AtomicFile(file);
+            FileOutputStream stream = null;
+            try {
+                stream = atomicFile.startWrite();
+                stream.write(content);
+                atomicFile.finishWrite(stream);
+            } catch (IOException e) {
+                if (stream != null) {
+                    atomicFile.failWrite(stream);
+                }
+            }
+        });
+    }
+
     public static String getRealPathFromUri(@NonNull Context context, @NonNull final Uri uri) {
         // DocumentProvider
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT &&
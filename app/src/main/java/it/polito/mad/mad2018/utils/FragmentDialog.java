@@ -57,6 +57,10 @@ public class FragmentDialog<E extends Enum<E>> extends Fragment {
         this.dialogInstance = dialogInstance;
     }
 
+    protected final Dialog getDialogInstance() {
+        return this.dialogInstance;
+    }
+
     protected final void closeDialog() {
         if (this.dialogInstance != null && this.dialogInstance.isShowing()) {
             this.dialogInstance.dismiss();
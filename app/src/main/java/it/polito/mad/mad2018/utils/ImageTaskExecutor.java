@@ -0,0 +1,167 @@
+package it.polito.mad.mad2018.utils;
+
+import android.arch.lifecycle.Lifecycle;
+import android.arch.lifecycle.LifecycleObserver;
+import android.arch.lifecycle.LifecycleOwner;
+import android.arch.lifecycle.OnLifecycleEvent;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* Executor dedicated to the processing of the images, so that a long compression does not delay
+ * the other background work of the application (the AsyncTasks are executed serially). The pool
+ * is sized on the number of cores and the user-visible tasks are executed before the background
+ * ones. A cancelled task is interrupted, also while decoding through its CancellationSignal, and
+ * the results are delivered on the main thread only while the owner is started (i.e. they are
+ * held while it is stopped): the tasks still running when the owner is destroyed are cancelled */
+public class ImageTaskExecutor {
+
+    private static final int POOL_SIZE =
+            Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() - 1, 4));
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static ImageTaskExecutor instance;
+
+    private final ThreadPoolExecutor executor;
+    private final Handler handler;
+    private final AtomicInteger sequence;
+
+    private ImageTaskExecutor() {
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            runnable.run();
+        }, "ImageTask #" + threadCount.incrementAndGet());
+
+        this.executor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new PriorityBlockingQueue<>(), threadFactory);
+        this.executor.allowCoreThreadTimeOut(true);
+        this.handler = new Handler(Looper.getMainLooper());
+        this.sequence = new AtomicInteger();
+    }
+
+    public static ImageTaskExecutor getInstance() {
+        if (instance == null) {
+            instance = new ImageTaskExecutor();
+        }
+        return instance;
+    }
+
+    /* Has to be called from the main thread */
+    public <T> ImageTask<T> execute(@NonNull LifecycleOwner owner, @NonNull Priority priority,
+                                    @NonNull Job<T> job, @NonNull OnCompleteListener<T> onCompleteListener) {
+
+        ImageTask<T> task = new ImageTask<>(owner.getLifecycle(), priority,
+                sequence.getAndIncrement(), job, new CancellationSignal(), onCompleteListener);
+
+        if (owner.getLifecycle().getCurrentState() == Lifecycle.State.DESTROYED) {
+            task.cancel(true);
+            return task;
+        }
+
+        owner.getLifecycle().addObserver(task);
+        executor.execute(task);
+        return task;
+    }
+
+    public enum Priority {
+        USER_VISIBLE,
+        BACKGROUND,
+    }
+
+    public interface Job<T> {
+        T run(@NonNull CancellationSignal cancellationSignal);
+    }
+
+    public interface OnCompleteListener<T> {
+        void onComplete(T result);
+    }
+
+    public class ImageTask<T> extends FutureTask<T>
+            implements Comparable<ImageTask<?>>, LifecycleObserver {
+
+        private final Lifecycle lifecycle;
+        private final Priority priority;
+        private final int sequenceNumber;
+        private final CancellationSignal cancellationSignal;
+        private OnCompleteListener<T> onCompleteListener;
+
+        private ImageTask(@NonNull Lifecycle lifecycle, @NonNull Priority priority, int sequenceNumber,
+                          @NonNull Job<T> job, @NonNull CancellationSignal cancellationSignal,
+                          @NonNull OnCompleteListener<T> onCompleteListener) {
+            super(() -> job.run(cancellationSignal));
+            this.lifecycle = lifecycle;
+            this.priority = priority;
+            this.sequenceNumber = sequenceNumber;
+            this.cancellationSignal = cancellationSignal;
+            this.onCompleteListener = onCompleteListener;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            cancellationSignal.cancel();
+            return super.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        public int compareTo(@NonNull ImageTask<?> other) {
+            // Same priority: the tasks are executed in order of submission
+            return priority != other.priority
+                    ? priority.compareTo(other.priority)
+                    : Integer.compare(sequenceNumber, other.sequenceNumber);
+        }
+
+        @Override
+        protected void done() {
+            handler.post(this::deliver);
+        }
+
+        @OnLifecycleEvent(Lifecycle.Event.ON_ANY)
+        void onStateChanged(LifecycleOwner owner, Lifecycle.Event event) {
+            if (event == Lifecycle.Event.ON_DESTROY) {
+                cancel(true);
+            } else if (event == Lifecycle.Event.ON_START && isDone()) {
+                deliver();
+            }
+        }
+
+        private void deliver() {
+            if (onCompleteListener == null) {
+                return;
+            }
+
+            if (isCancelled()) {
+                onCompleteListener = null;
+                lifecycle.removeObserver(this);
+                return;
+            }
+
+            if (!lifecycle.getCurrentState().isAtLeast(Lifecycle.State.STARTED)) {
+                return;
+            }
+
+            T result;
+            try {
+                result = get();
+            } catch (InterruptedException | ExecutionException | CancellationException e) {
+                result = null;
+            }
+
+            OnCompleteListener<T> listener = onCompleteListener;
+            onCompleteListener = null;
+            lifecycle.removeObserver(this);
+            listener.onComplete(result);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package it.polito.mad.mad2018.utils;
+
+import android.support.annotation.NonNull;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Iterator;
+
+public class JsonUtilities {
+
+    // Shallow copy: the values are shared with the original object, hence never to be modified
+    public static JSONObject copy(@NonNull JSONObject object) {
+        return putAll(new JSONObject(), object);
+    }
+
+    // Shallow merge: the attributes of the source replace the ones of the target with the same name
+    public static JSONObject putAll(@NonNull JSONObject target, @NonNull JSONObject source) {
+        Iterator<String> keys = source.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            try {
+                target.put(key, source.get(key));
+            } catch (JSONException e) { /* Do nothing */ }
+        }
+        return target;
+    }
+}
@@ -1,92 +1,222 @@
 package it.polito.mad.mad2018.utils;
 
+import android.arch.lifecycle.LifecycleOwner;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Matrix;
-import android.os.AsyncTask;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.media.ExifInterface;
+import android.util.Log;
 
-import java.io.ByteArrayOutputStream;
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.load.engine.bitmap_recycle.BitmapPool;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.util.Locale;
+
+import it.polito.mad.mad2018.BuildConfig;
+import it.polito.mad.mad2018.MAD2018Application;
 
 public class PictureUtilities {
 
     public static final String IMAGE_CONTENT_TYPE_UPLOAD = "image/webp";
 
-    private static CompressedImage compressImage(String imagePath, int pictureSize,
-                                                 int thumbnailSize, int quality) {
+    private static final String TAG = "PictureUtilities";
+    private static final int MIN_QUALITY = 10;
+    private static final int MAX_QUALITY = 90;
+    private static final int MAX_ENCODING_ATTEMPTS = 6;
+    private static final float BUDGET_TOLERANCE = 0.1f;
+
+    /* The file is read only once: EXIF data, bounds and pixels are all obtained from the same
+     * buffer. The bitmaps are taken from (and returned to) the Glide bitmap pool, the rotation is
+     * performed only when needed and the thumbnail is drawn directly from the decoded image,
+     * scaling and rotating it at the same time. The quality of the picture and of the thumbnail
+     * is chosen to fit their byte budgets. The processing is stopped (returning null) as soon as
+     * the cancellation is requested */
+    private static CompressedImage compressImage(String imagePath, int pictureSize, int thumbnailSize,
+                                                 int pictureMaxBytes, int thumbnailMaxBytes,
+                                                 @NonNull CancellationSignal cancellationSignal) {
 
         if (imagePath == null || pictureSize <= 0 || thumbnailSize < 0 ||
-                quality < 0 || quality > 100) {
+                pictureMaxBytes <= 0 || (thumbnailSize > 0 && thumbnailMaxBytes <= 0)) {
             return null;
         }
 
-        Bitmap pictureBitmap = PictureUtilities.getImage(imagePath, pictureSize, pictureSize);
-        if (pictureBitmap == null) {
+        byte[] content;
+        try {
+            content = FileUtilities.readFile(new File(imagePath));
+        } catch (IOException e) {
+            return null;
+        }
+        if (cancellationSignal.isCanceled()) {
             return null;
         }
 
-        ByteArrayOutputStream picture = new ByteArrayOutputStream();
-        pictureBitmap.compress(Bitmap.CompressFormat.WEBP, quality, picture);
+        BitmapPool pool = Glide.get(MAD2018Application.getApplicationContextStatic()).getBitmapPool();
+        Bitmap source = PictureUtilities.decodeImage(content, pictureSize, pool, cancellationSignal);
+        if (source == null) {
+            return null;
+        }
+
+        Bitmap pictureBitmap = null;
+        Bitmap thumbnailBitmap = null;
+        try {
+            int rotation = PictureUtilities.getRotation(content);
+            pictureBitmap = PictureUtilities.transformImage(source, rotation, 1, pool);
 
-        // Process the thumbnail
-        ByteArrayOutputStream thumbnail = null;
-        if (thumbnailSize > 0) {
+            long encodingStart = SystemClock.elapsedRealtime();
+            Encoding picture = PictureUtilities.encodeImage(pictureBitmap, pictureMaxBytes, cancellationSignal);
 
-            float thumbnailRatio = (float) thumbnailSize / Math.max(pictureBitmap.getWidth(), pictureBitmap.getHeight());
-            if (thumbnailRatio > 1) {
-                thumbnailRatio = 1;
+            // Process the thumbnail
+            Encoding thumbnail = null;
+            if (thumbnailSize > 0 && !cancellationSignal.isCanceled()) {
+
+                float thumbnailRatio = (float) thumbnailSize / Math.max(source.getWidth(), source.getHeight());
+                if (thumbnailRatio > 1) {
+                    thumbnailRatio = 1;
+                }
+                thumbnailBitmap = PictureUtilities.transformImage(source, rotation, thumbnailRatio, pool);
+
+                thumbnail = PictureUtilities.encodeImage(thumbnailBitmap, thumbnailMaxBytes, cancellationSignal);
             }
-            Bitmap thumbnailBitmap = Bitmap.createScaledBitmap(pictureBitmap,
-                    (int) (pictureBitmap.getWidth() * thumbnailRatio),
-                    (int) (pictureBitmap.getHeight() * thumbnailRatio),
-                    true);
+            long encodingTime = SystemClock.elapsedRealtime() - encodingStart;
 
-            if (thumbnailBitmap == null) {
+            if (cancellationSignal.isCanceled()) {
+                picture.stream.release();
+                if (thumbnail != null) {
+                    thumbnail.stream.release();
+                }
                 return null;
             }
 
-            thumbnail = new ByteArrayOutputStream();
-            thumbnailBitmap.compress(Bitmap.CompressFormat.WEBP, quality / 2, thumbnail);
+            CompressedImage compressed = new CompressedImage(picture, thumbnail, encodingTime);
+            if (BuildConfig.DEBUG) {
+                logCompression(compressed);
+            }
+            return compressed;
+
+        } finally {
+            // The bitmaps may coincide when no transformation was needed
+            pool.put(source);
+            if (pictureBitmap != null && pictureBitmap != source) {
+                pool.put(pictureBitmap);
+            }
+            if (thumbnailBitmap != null && thumbnailBitmap != source && thumbnailBitmap != pictureBitmap) {
+                pool.put(thumbnailBitmap);
+            }
+        }
+    }
+
+    /* The quality is looked for through a bounded binary search, stopping as soon as the size
+     * falls just below the budget. If even the lowest quality exceeds it, the smallest encoding
+     * obtained is returned anyway. The streams are pre-sized on the budget, so that they do not
+     * grow while encoding */
+    private static Encoding encodeImage(@NonNull Bitmap bitmap, int maxBytes,
+                                        @NonNull CancellationSignal cancellationSignal) {
+
+        // Some room is left for the attempts exceeding the budget
+        int expectedSize = maxBytes + maxBytes / 4;
+        CompressedOutputStream stream = CompressedOutputStream.obtain(expectedSize);
+
+        CompressedOutputStream best = null;
+        int bestQuality = MIN_QUALITY;
+        int low = MIN_QUALITY;
+        int high = MAX_QUALITY;
+        int current = high;
+
+        for (int attempt = 0; attempt < MAX_ENCODING_ATTEMPTS && low <= high &&
+                !cancellationSignal.isCanceled(); attempt++) {
+            stream.reset();
+            bitmap.compress(Bitmap.CompressFormat.WEBP, current, stream);
+
+            if (stream.size() <= maxBytes) {
+                // The streams are swapped, to keep the best encoding found so far
+                CompressedOutputStream previous = best;
+                best = stream;
+                bestQuality = current;
+                stream = previous == null ? CompressedOutputStream.obtain(expectedSize) : previous;
+
+                if (best.size() >= maxBytes * (1 - BUDGET_TOLERANCE)) {
+                    break;
+                }
+                low = current + 1;
+            } else {
+                high = current - 1;
+            }
+            current = (low + high) / 2;
         }
 
-        return new CompressedImage(picture, thumbnail);
+        if (best == null) {
+            stream.reset();
+            if (!cancellationSignal.isCanceled()) {
+                bitmap.compress(Bitmap.CompressFormat.WEBP, MIN_QUALITY, stream);
+            }
+            return new Encoding(stream, MIN_QUALITY);
+        }
+
+        stream.release();
+        return new Encoding(best, bestQuality);
+    }
+
+    private static int getSampleSize(int width, int height, int targetSize) {
+        // Largest power of two keeping the shortest side at least as large as the target
+        int sampleSize = 1;
+        while (Math.min(width, height) / (sampleSize * 2) >= targetSize) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
     }
 
-    private static Bitmap getImage(String imagePath, int targetWidth, int targetHeight) {
+    private static Bitmap decodeImage(@NonNull byte[] content, int targetSize, @NonNull BitmapPool pool,
+                                      @NonNull CancellationSignal cancellationSignal) {
 
         // Get the dimensions of the bitmap
         BitmapFactory.Options bmOptions = new BitmapFactory.Options();
         bmOptions.inJustDecodeBounds = true;
-        BitmapFactory.decodeFile(imagePath, bmOptions);
-        int photoW = bmOptions.outWidth;
-        int photoH = bmOptions.outHeight;
-
-        // Determine how much to scale down the image
-        int scaleFactor = 0;
-        if (targetWidth != 0 && targetHeight != 0) {
-            scaleFactor = Math.min(photoW / targetWidth, photoH / targetHeight);
+        BitmapFactory.decodeByteArray(content, 0, content.length, bmOptions);
+        if (bmOptions.outWidth <= 0 || bmOptions.outHeight <= 0) {
+            return null;
         }
 
-        // Decode the image file into a Bitmap sized to fill the View
+        // Decode the image reusing a bitmap of the pool, if a large enough one is available
         bmOptions.inJustDecodeBounds = false;
-        bmOptions.inSampleSize = scaleFactor;
-        bmOptions.inPurgeable = true;
-
-        Bitmap image = BitmapFactory.decodeFile(imagePath, bmOptions);
-        if (image == null) {
-            return null;
+        bmOptions.inSampleSize = getSampleSize(bmOptions.outWidth, bmOptions.outHeight, targetSize);
+        bmOptions.inMutable = true;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            int width = (bmOptions.outWidth + bmOptions.inSampleSize - 1) / bmOptions.inSampleSize;
+            int height = (bmOptions.outHeight + bmOptions.inSampleSize - 1) / bmOptions.inSampleSize;
+            bmOptions.inBitmap = pool.getDirty(width, height, Bitmap.Config.ARGB_8888);
         }
 
-        return rotateImage(image, getRotation(imagePath));
+        // The decoding is aborted (returning null) when the task is cancelled
+        cancellationSignal.setOnCancelListener(bmOptions::requestCancelDecode);
+        try {
+            return BitmapFactory.decodeByteArray(content, 0, content.length, bmOptions);
+        } catch (IllegalArgumentException e) {
+            // The bitmap could not be reused
+            pool.put(bmOptions.inBitmap);
+            bmOptions.inBitmap = null;
+            return cancellationSignal.isCanceled() ? null
+                    : BitmapFactory.decodeByteArray(content, 0, content.length, bmOptions);
+        } finally {
+            cancellationSignal.setOnCancelListener(null);
+        }
     }
 
-    private static int getRotation(@NonNull String imagePath) {
+    private static int getRotation(@NonNull byte[] content) {
         ExifInterface exifInterface;
 
         try {
-            exifInterface = new ExifInterface(imagePath);
+            exifInterface = new ExifInterface(new ByteArrayInputStream(content));
         } catch (IOException e) {
             return 0;
         }
@@ -111,61 +241,100 @@ public class PictureUtilities {
         }
     }
 
-    private static Bitmap rotateImage(@NonNull Bitmap source, float angle) {
+    /* Scales and rotates the source in a single draw, returning the source itself if there
+     * is nothing to do */
+    private static Bitmap transformImage(@NonNull Bitmap source, int rotation, float ratio,
+                                         @NonNull BitmapPool pool) {
+        if (rotation == 0 && ratio == 1) {
+            return source;
+        }
+
         Matrix matrix = new Matrix();
-        matrix.postRotate(angle);
-        return Bitmap.createBitmap(source, 0, 0, source.getWidth(), source.getHeight(),
-                matrix, true);
+        matrix.postScale(ratio, ratio);
+        matrix.postRotate(rotation);
+
+        // The rotation is performed around the origin: the image is moved back in the visible area
+        RectF bounds = new RectF(0, 0, source.getWidth(), source.getHeight());
+        matrix.mapRect(bounds);
+        matrix.postTranslate(-bounds.left, -bounds.top);
+
+        Bitmap target = pool.getDirty(Math.max(1, Math.round(bounds.width())),
+                Math.max(1, Math.round(bounds.height())), Bitmap.Config.ARGB_8888);
+        target.eraseColor(Color.TRANSPARENT);
+        new Canvas(target).drawBitmap(source, matrix, new Paint(Paint.FILTER_BITMAP_FLAG));
+        return target;
     }
 
-    public static class CompressedImage {
-        private final ByteArrayOutputStream picture;
-        private final ByteArrayOutputStream thumbnail;
+    private static class Encoding {
+        private final CompressedOutputStream stream;
+        private final int quality;
 
-        CompressedImage(@NonNull ByteArrayOutputStream picture,
-                        ByteArrayOutputStream thumbnail) {
-            this.picture = picture;
-            this.thumbnail = thumbnail;
+        private Encoding(@NonNull CompressedOutputStream stream, int quality) {
+            this.stream = stream;
+            this.quality = quality;
         }
+    }
 
-        public ByteArrayOutputStream getPicture() {
+    private static void logCompression(@NonNull CompressedImage image) {
+        Log.d(TAG, String.format(Locale.US,
+                "Image encoded in %d ms - picture: %d bytes (quality %d), thumbnail: %d bytes (quality %d)",
+                image.getEncodingTime(), image.getPictureSize(), image.getPictureQuality(),
+                image.getThumbnailSize(), image.getThumbnailQuality()));
+    }
+
+    public static class CompressedImage {
+        private final CompressedOutputStream picture;
+        private final CompressedOutputStream thumbnail;
+        private final int pictureQuality;
+        private final int thumbnailQuality;
+        private final long encodingTime;
+
+        private CompressedImage(@NonNull Encoding picture, Encoding thumbnail, long encodingTime) {
+            this.picture = picture.stream;
+            this.thumbnail = thumbnail == null ? null : thumbnail.stream;
+            this.pictureQuality = picture.quality;
+            this.thumbnailQuality = thumbnail == null ? 0 : thumbnail.quality;
+            this.encodingTime = encodingTime;
+        }
+
+        public CompressedOutputStream getPicture() {
             return picture;
         }
 
-        public ByteArrayOutputStream getThumbnail() {
+        public CompressedOutputStream getThumbnail() {
             return thumbnail;
         }
-    }
-
-    public static class CompressImageAsync extends AsyncTask<Void, Void, CompressedImage> {
 
-        private final String imagePath;
-        private final int pictureSize;
-        private final int thumbnailSize;
-        private final int quality;
-        private final OnCompleteListener onCompleteListener;
+        public int getPictureSize() {
+            return picture.size();
+        }
 
-        public CompressImageAsync(String imagePath, int pictureSize, int thumbnailSize, int quality,
-                                  @NonNull OnCompleteListener onCompleteListener) {
-            this.imagePath = imagePath;
-            this.pictureSize = pictureSize;
-            this.thumbnailSize = thumbnailSize;
-            this.quality = quality;
-            this.onCompleteListener = onCompleteListener;
+        public int getThumbnailSize() {
+            return thumbnail == null ? 0 : thumbnail.size();
         }
 
-        @Override
-        protected CompressedImage doInBackground(Void... input) {
-            return PictureUtilities.compressImage(imagePath, pictureSize, thumbnailSize, quality);
+        public int getPictureQuality() {
+            return pictureQuality;
         }
 
-        @Override
-        protected void onPostExecute(CompressedImage data) {
-            onCompleteListener.onComplete(data);
+        public int getThumbnailQuality() {
+            return thumbnailQuality;
         }
 
-        public interface OnCompleteListener {
-            void onComplete(CompressedImage data);
+        // Milliseconds spent encoding both the picture and the thumbnail
+        public long getEncodingTime() {
+            return encodingTime;
         }
     }
+
+    public static ImageTaskExecutor.ImageTask<CompressedImage> compressImageAsync(
+            @NonNull LifecycleOwner owner, @NonNull ImageTaskExecutor.Priority priority,
+            String imagePath, int pictureSize, int thumbnailSize, int pictureMaxBytes, int thumbnailMaxBytes,
+            @NonNull ImageTaskExecutor.OnCompleteListener<CompressedImage> onCompleteListener) {
+
+        return ImageTaskExecutor.getInstance().execute(owner, priority,
+                cancellationSignal -> PictureUtilities.compressImage(imagePath, pictureSize,
+                        thumbnailSize, pictureMaxBytes, thumbnailMaxBytes, cancellationSignal),
+                onCompleteListener);
+    }
 }
@@ -1,13 +1,17 @@
 package it.polito.mad.mad2018.utils;
 
 import android.app.Dialog;
+import android.app.ProgressDialog;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.net.ConnectivityManager;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.annotation.StringRes;
 import android.support.v7.app.AlertDialog;
 
+import it.polito.mad.mad2018.R;
+
 public class Utilities {
 
     public static Dialog openErrorDialog(Context context, @StringRes int message) {
@@ -23,6 +27,14 @@ public class Utilities {
                 .show();
     }
 
+    public static void showSavingProgress(@Nullable Dialog dialog, long bytesTransferred, long totalBytes) {
+        if (dialog instanceof ProgressDialog && dialog.isShowing() && totalBytes > 0) {
+            int percentage = (int) (100 * bytesTransferred / totalBytes);
+            ((ProgressDialog) dialog).setMessage(
+                    dialog.getContext().getString(R.string.saving_data_progress, percentage));
+        }
+    }
+
     public static boolean isNetworkConnected(@NonNull Context context) {
 
         ConnectivityManager connectivityManager =
@@ -11,6 +11,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import it.polito.mad.mad2018.R;
+import it.polito.mad.mad2018.data.Book;
 
 public class AuthorsTextView extends AppCompatTextView implements AlgoliaHitView {
 
@@ -30,7 +31,7 @@ public class AuthorsTextView extends AppCompatTextView implements AlgoliaHitView
     public void onUpdateView(JSONObject result) {
 
         try {
-            JSONArray jsonArray = result.getJSONArray("authors");
+            JSONArray jsonArray = result.getJSONArray(Book.ALGOLIA_AUTHORS_KEY);
 
             if (jsonArray != null && jsonArray.length() > 0) {
                 StringBuilder authors = new StringBuilder();
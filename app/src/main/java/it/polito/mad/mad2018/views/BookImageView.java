@@ -1,6 +1,7 @@
 package it.polito.mad.mad2018.views;
 
 import android.content.Context;
+import android.support.annotation.NonNull;
 import android.support.v7.widget.AppCompatImageView;
 import android.util.AttributeSet;
 
@@ -29,18 +30,30 @@ public class BookImageView extends AppCompatImageView implements AlgoliaHitView
         super(context, attrs, defStyle);
     }
 
-    @Override
-    public void onUpdateView(JSONObject result) {
-
-        StorageReference reference = null;
+    public static StorageReference getThumbnailReference(@NonNull JSONObject result) {
         try {
             String bookId = result.getString(Book.ALGOLIA_BOOK_ID_KEY);
             String ownerId = result.getString(Book.ALGOLIA_OWNER_ID_KEY);
             boolean hasImage = result.getBoolean(Book.ALGOLIA_HAS_IMAGE_KEY);
             if (bookId != null && ownerId != null && hasImage) {
-                reference = Book.getBookThumbnailReference(ownerId, bookId);
+                return Book.getBookThumbnailReference(ownerId, bookId);
             }
         } catch (JSONException e) { /* do nothing */ }
+        return null;
+    }
+
+    // Loads the thumbnail in the memory cache, with the same size and transformation of the view
+    public static void preload(@NonNull Context context, @NonNull StorageReference reference, int size) {
+        GlideApp.with(context)
+                .load(reference)
+                .centerCrop()
+                .preload(size, size);
+    }
+
+    @Override
+    public void onUpdateView(JSONObject result) {
+
+        StorageReference reference = getThumbnailReference(result);
 
         GlideApp.with(getContext())
                 .load(reference)
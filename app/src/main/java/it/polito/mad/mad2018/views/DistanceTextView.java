@@ -0,0 +1,45 @@
+package it.polito.mad.mad2018.views;
+
+import android.content.Context;
+import android.support.v7.widget.AppCompatTextView;
+import android.util.AttributeSet;
+import android.view.View;
+
+import com.algolia.instantsearch.ui.views.AlgoliaHitView;
+
+import org.json.JSONObject;
+
+import it.polito.mad.mad2018.R;
+import it.polito.mad.mad2018.data.Book;
+
+public class DistanceTextView extends AppCompatTextView implements AlgoliaHitView {
+
+    private static final int METERS_PER_KILOMETER = 1000;
+
+    public DistanceTextView(Context context) {
+        super(context);
+    }
+
+    public DistanceTextView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+    }
+
+    public DistanceTextView(Context context, AttributeSet attrs, int defStyle) {
+        super(context, attrs, defStyle);
+    }
+
+    @Override
+    public void onUpdateView(JSONObject result) {
+
+        if (!result.has(Book.ALGOLIA_DISTANCE_KEY)) {
+            setVisibility(View.GONE);
+            return;
+        }
+
+        long distance = result.optLong(Book.ALGOLIA_DISTANCE_KEY);
+        setText(distance < METERS_PER_KILOMETER
+                ? getResources().getString(R.string.distance_meters, distance)
+                : getResources().getString(R.string.distance_kilometers, (double) distance / METERS_PER_KILOMETER));
+        setVisibility(View.VISIBLE);
+    }
+}
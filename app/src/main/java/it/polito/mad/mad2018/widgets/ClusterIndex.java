@@ -0,0 +1,204 @@
+package it.polito.mad.mad2018.widgets;
+
+import android.support.annotation.NonNull;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/* Spatial index grouping the points closer than a given distance on the screen: the world
+ * (in the Mercator projection used by the map) is divided into a grid whose cells have the
+ * same size in dp at the current zoom level, and the points in the same cell form a cluster.
+ * Panning does not change the grid, while adding or removing a point only touches its cell */
+class ClusterIndex {
+
+    private static final double TILE_SIZE_DP = 256;
+    private static final double MAX_SIN_LATITUDE = 0.9999;
+
+    private final double cellSizeDp;
+    private final Map<String, Point> points;
+    private final Map<Long, Cluster> cells;
+    private int zoom;
+
+    ClusterIndex(double cellSizeDp) {
+        this.cellSizeDp = cellSizeDp;
+        this.points = new LinkedHashMap<>();
+        this.cells = new HashMap<>();
+        this.zoom = 0;
+    }
+
+    private static double toWorldX(@NonNull LatLng position) {
+        return (position.longitude + 180) / 360;
+    }
+
+    private static double toWorldY(@NonNull LatLng position) {
+        double sin = Math.sin(Math.toRadians(position.latitude));
+        sin = Math.min(Math.max(sin, -MAX_SIN_LATITUDE), MAX_SIN_LATITUDE);
+        return 0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI);
+    }
+
+    int getZoom() {
+        return zoom;
+    }
+
+    boolean isEmpty() {
+        return points.isEmpty();
+    }
+
+    Collection<Point> getPoints() {
+        return Collections.unmodifiableCollection(points.values());
+    }
+
+    void put(@NonNull String id, @NonNull String title, @NonNull LatLng position) {
+        Point previous = points.get(id);
+        if (previous != null) {
+            if (previous.position.equals(position) && previous.title.equals(title)) {
+                return;
+            }
+            remove(id);
+        }
+
+        Point point = new Point(id, title, position);
+        points.put(id, point);
+        addToCell(point);
+    }
+
+    void remove(@NonNull String id) {
+        Point point = points.remove(id);
+        if (point != null) {
+            long key = getCellKey(point);
+            Cluster cluster = cells.get(key);
+            if (cluster != null && cluster.remove(point) && cluster.points.isEmpty()) {
+                cells.remove(key);
+            }
+        }
+    }
+
+    void retainAll(@NonNull Collection<String> ids) {
+        for (String id : new ArrayList<>(points.keySet())) {
+            if (!ids.contains(id)) {
+                remove(id);
+            }
+        }
+    }
+
+    /* Returns whether the clusters changed, i.e. the grid had to be rebuilt */
+    boolean setZoom(int zoom) {
+        if (this.zoom == zoom) {
+            return false;
+        }
+
+        this.zoom = zoom;
+        cells.clear();
+        for (Point point : points.values()) {
+            addToCell(point);
+        }
+        return true;
+    }
+
+    List<Cluster> getClusters(@NonNull LatLngBounds visibleArea) {
+        List<Cluster> clusters = new ArrayList<>();
+        for (Cluster cluster : cells.values()) {
+            if (visibleArea.contains(cluster.getPosition())) {
+                clusters.add(cluster);
+            }
+        }
+        return clusters;
+    }
+
+    private long getCellKey(@NonNull Point point) {
+        double cellSize = cellSizeDp / (TILE_SIZE_DP * Math.pow(2, zoom));
+        long column = (long) Math.floor(point.x / cellSize);
+        long row = (long) Math.floor(point.y / cellSize);
+        return (column << 32) | (row & 0xFFFFFFFFL);
+    }
+
+    private void addToCell(@NonNull Point point) {
+        long key = getCellKey(point);
+        Cluster cluster = cells.get(key);
+        if (cluster == null) {
+            cluster = new Cluster(zoom + "/" + key);
+            cells.put(key, cluster);
+        }
+        cluster.add(point);
+    }
+
+    static class Point {
+        final String id;
+        final String title;
+        final LatLng position;
+        private final double x;
+        private final double y;
+
+        private Point(@NonNull String id, @NonNull String title, @NonNull LatLng position) {
+            this.id = id;
+            this.title = title;
+            this.position = position;
+            this.x = toWorldX(position);
+            this.y = toWorldY(position);
+        }
+    }
+
+    static class Cluster {
+        private final String key;
+        private final List<Point> points;
+        private double latitudeSum;
+        private double longitudeSum;
+
+        private Cluster(@NonNull String key) {
+            this.key = key;
+            this.points = new ArrayList<>();
+            this.latitudeSum = 0;
+            this.longitudeSum = 0;
+        }
+
+        private void add(@NonNull Point point) {
+            points.add(point);
+            latitudeSum += point.position.latitude;
+            longitudeSum += point.position.longitude;
+        }
+
+        private boolean remove(@NonNull Point point) {
+            if (!points.remove(point)) {
+                return false;
+            }
+            latitudeSum -= point.position.latitude;
+            longitudeSum -= point.position.longitude;
+            return true;
+        }
+
+        // Single points keep their own identity, so that their markers survive zoom changes
+        String getKey() {
+            return points.size() == 1 ? points.get(0).id : key;
+        }
+
+        int getSize() {
+            return points.size();
+        }
+
+        List<Point> getPoints() {
+            return Collections.unmodifiableList(points);
+        }
+
+        LatLng getPosition() {
+            return points.size() == 1
+                    ? points.get(0).position
+                    : new LatLng(latitudeSum / points.size(), longitudeSum / points.size());
+        }
+
+        LatLngBounds getBounds() {
+            LatLngBounds.Builder builder = new LatLngBounds.Builder();
+            for (Point point : points) {
+                builder.include(point.position);
+            }
+            return builder.build();
+        }
+    }
+}
@@ -1,7 +1,16 @@
 package it.polito.mad.mad2018.widgets;
 
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Typeface;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.support.v4.content.ContextCompat;
+import android.support.v7.app.AlertDialog;
+import android.util.DisplayMetrics;
 
 import com.algolia.instantsearch.model.AlgoliaResultsListener;
 import com.algolia.instantsearch.model.SearchResults;
@@ -9,6 +18,8 @@ import com.google.android.gms.maps.CameraUpdate;
 import com.google.android.gms.maps.CameraUpdateFactory;
 import com.google.android.gms.maps.GoogleMap;
 import com.google.android.gms.maps.SupportMapFragment;
+import com.google.android.gms.maps.model.BitmapDescriptor;
+import com.google.android.gms.maps.model.BitmapDescriptorFactory;
 import com.google.android.gms.maps.model.LatLng;
 import com.google.android.gms.maps.model.LatLngBounds;
 import com.google.android.gms.maps.model.Marker;
@@ -18,25 +29,65 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
+import it.polito.mad.mad2018.R;
 import it.polito.mad.mad2018.data.Book;
+import it.polito.mad.mad2018.utils.Utilities;
 
+/* Displays the hits as markers, grouping the ones too close to each other in clusters
+ * (see ClusterIndex) and updating only the markers that changed between two results or after
+ * the camera moved: only the clusters in (or close to) the visible area are drawn. The camera
+ * is moved only if the new markers fall outside of the area currently framed or occupy a much
+ * smaller portion of it. Tapping a cluster zooms on its books, or lists them when they are
+ * all in the same place (e.g. the books of the same owner) */
 public class MapWidget implements AlgoliaResultsListener {
 
+    private static final int CAMERA_PADDING = 25;
+    private static final double MIN_BOUNDS_SPAN_RATIO = 0.25;
+    private static final double CLUSTER_CELL_SIZE_DP = 64;
+    private static final int CLUSTER_ICON_SIZE_DP = 40;
+    private static final int CLUSTER_TEXT_SIZE_SP = 14;
+    private static final int[] CLUSTER_SIZE_BUCKETS = {1000, 500, 200, 100, 50, 20, 10};
+
+    @NonNull
+    private final Map<String, Marker> markers;
+    @NonNull
+    private final ClusterIndex clusterIndex;
+    @NonNull
+    private final Map<String, BitmapDescriptor> clusterIcons;
     @NonNull
-    private final List<JSONObject> hits;
+    private final OnBookSelectedListener onBookSelectedListener;
+    private Context context;
     private GoogleMap googleMap;
+    private boolean mapLoaded;
+    private LatLngBounds framedBounds;
 
     public MapWidget(@NonNull final SupportMapFragment mapFragment,
                      @NonNull OnBookSelectedListener onBookSelectedListener) {
-        hits = new ArrayList<>();
+        this.markers = new HashMap<>();
+        this.clusterIndex = new ClusterIndex(CLUSTER_CELL_SIZE_DP);
+        this.clusterIcons = new HashMap<>();
+        this.onBookSelectedListener = onBookSelectedListener;
+        this.mapLoaded = false;
         mapFragment.getMapAsync(map -> {
+            this.context = mapFragment.getContext();
             this.googleMap = map;
-            this.googleMap.setOnInfoWindowClickListener(marker ->
-                    onBookSelectedListener.onBookSelected((String) marker.getTag()));
-            updateMapMarkers();
+            this.googleMap.setOnInfoWindowClickListener(marker -> {
+                if (marker.getTag() instanceof String) {
+                    onBookSelectedListener.onBookSelected((String) marker.getTag());
+                }
+            });
+            this.googleMap.setOnMarkerClickListener(this::onMarkerClicked);
+            this.googleMap.setOnCameraIdleListener(this::updateVisibleMarkers);
+            this.googleMap.setOnMapLoadedCallback(() -> {
+                mapLoaded = true;
+                updateMapMarkers();
+            });
         });
     }
 
@@ -48,77 +99,230 @@ public class MapWidget implements AlgoliaResultsListener {
         }
     }
 
-    private static MarkerOptions buildMarker(@NonNull JSONObject jsonObject) {
-        final MarkerOptions marker = new MarkerOptions();
-
+    private static LatLng getPosition(@NonNull JSONObject jsonObject) {
         try {
-            marker.title(jsonObject.getString(Book.ALGOLIA_BOOK_TITLE_KEY));
-
             JSONObject geoloc = jsonObject.getJSONObject(Book.ALGOLIA_GEOLOC_KEY);
             final Double latitude = geoloc.getDouble(Book.ALGOLIA_GEOLOC_LAT_KEY);
             final Double longitude = geoloc.getDouble(Book.ALGOLIA_GEOLOC_LON_KEY);
-            marker.position(new LatLng(latitude, longitude));
-
-            return marker;
-
+            return new LatLng(latitude, longitude);
         } catch (JSONException e) {
             return null;
         }
     }
 
+    private static double getLatitudeSpan(@NonNull LatLngBounds bounds) {
+        return bounds.northeast.latitude - bounds.southwest.latitude;
+    }
+
+    private static double getLongitudeSpan(@NonNull LatLngBounds bounds) {
+        double span = bounds.northeast.longitude - bounds.southwest.longitude;
+        return span < 0 ? span + 360 : span;
+    }
+
+    private static String getClusterLabel(int size) {
+        for (int bucket : CLUSTER_SIZE_BUCKETS) {
+            if (size >= bucket) {
+                return bucket + "+";
+            }
+        }
+        return String.valueOf(size);
+    }
+
     @Override
     public void onResults(@NonNull SearchResults results, boolean isLoadingMore) {
         addHits(results, !isLoadingMore);
-        if (googleMap != null) {
-            googleMap.setOnMapLoadedCallback(this::updateMapMarkers);
+        if (googleMap != null && mapLoaded) {
+            updateMapMarkers();
         }
     }
 
+    /* Only the hits just received are put in the index, since the ones of the previous pages
+     * are already there (and the index skips the ones unchanged since the previous results) */
     private void addHits(@Nullable SearchResults results, boolean isReplacing) {
-        if (results == null) {
-            if (isReplacing) {
-                hits.clear();
+        Map<String, JSONObject> received = new LinkedHashMap<>();
+        if (results != null) {
+            final JSONArray newHits = results.hits;
+            for (int i = 0; i < newHits.length(); ++i) {
+                final JSONObject hit = newHits.optJSONObject(i);
+                String tag = hit == null ? null : getMarkerTag(hit);
+                if (tag != null) {
+                    received.put(tag, hit);
+                }
             }
-            return;
         }
 
-        final JSONArray newHits = results.hits;
         if (isReplacing) {
-            hits.clear();
+            clusterIndex.retainAll(received.keySet());
         }
-        for (int i = 0; i < newHits.length(); ++i) {
-            final JSONObject hit = newHits.optJSONObject(i);
-            if (hit != null) {
-                hits.add(hit);
+
+        // Books found offline may lack the location
+        for (Map.Entry<String, JSONObject> hit : received.entrySet()) {
+            LatLng position = getPosition(hit.getValue());
+            String title = hit.getValue().optString(Book.ALGOLIA_BOOK_TITLE_KEY, "");
+            if (position != null) {
+                clusterIndex.put(hit.getKey(), title, position);
+            } else {
+                clusterIndex.remove(hit.getKey());
             }
         }
     }
 
     private void updateMapMarkers() {
-        googleMap.clear();
-        if (hits.isEmpty())
+        if (clusterIndex.isEmpty()) {
+            framedBounds = null;
+            updateVisibleMarkers();
             return;
+        }
 
         LatLngBounds.Builder builder = new LatLngBounds.Builder();
-
-        for (final JSONObject hit : hits) {
-            String tag = getMarkerTag(hit);
-            MarkerOptions markerOptions = buildMarker(hit);
-            if (tag != null && markerOptions != null) {
-                builder.include(markerOptions.getPosition());
-                Marker marker = googleMap.addMarker(markerOptions);
-                marker.setTag(tag);
-            }
+        for (ClusterIndex.Point point : clusterIndex.getPoints()) {
+            builder.include(point.position);
         }
 
         LatLngBounds bounds = builder.build();
+        if (isFramed(bounds)) {
+            updateVisibleMarkers();
+            return;
+        }
 
-        int padding = 25;
-        CameraUpdate cu = CameraUpdateFactory.newLatLngBounds(bounds, padding);
+        // The markers are updated when the camera stops moving
+        framedBounds = bounds;
+        CameraUpdate cu = CameraUpdateFactory.newLatLngBounds(bounds, CAMERA_PADDING);
         googleMap.animateCamera(cu);
     }
 
+    private boolean isFramed(@NonNull LatLngBounds bounds) {
+        if (framedBounds == null ||
+                !framedBounds.contains(bounds.northeast) ||
+                !framedBounds.contains(bounds.southwest)) {
+            return false;
+        }
+
+        // The markers are inside the area, but they might end up being too close to each other
+        return getLatitudeSpan(bounds) >= getLatitudeSpan(framedBounds) * MIN_BOUNDS_SPAN_RATIO ||
+                getLongitudeSpan(bounds) >= getLongitudeSpan(framedBounds) * MIN_BOUNDS_SPAN_RATIO;
+    }
+
+    private LatLngBounds getDrawnArea() {
+        // Half a screen is added on every side, so that short pans do not show empty areas
+        LatLngBounds visible = googleMap.getProjection().getVisibleRegion().latLngBounds;
+        double latitudeMargin = getLatitudeSpan(visible) / 2;
+        double longitudeMargin = getLongitudeSpan(visible) / 2;
+        if (getLongitudeSpan(visible) + 2 * longitudeMargin >= 360) {
+            return new LatLngBounds(new LatLng(-90, -180), new LatLng(90, 179.999999));
+        }
+
+        // Longitudes are wrapped by LatLng, hence the area may cross the antimeridian
+        return new LatLngBounds(
+                new LatLng(visible.southwest.latitude - latitudeMargin,
+                        visible.southwest.longitude - longitudeMargin),
+                new LatLng(visible.northeast.latitude + latitudeMargin,
+                        visible.northeast.longitude + longitudeMargin));
+    }
+
+    private void updateVisibleMarkers() {
+        if (googleMap == null) {
+            return;
+        }
+
+        clusterIndex.setZoom((int) googleMap.getCameraPosition().zoom);
+        Map<String, ClusterIndex.Cluster> clusters = new HashMap<>();
+        for (ClusterIndex.Cluster cluster : clusterIndex.getClusters(getDrawnArea())) {
+            clusters.put(cluster.getKey(), cluster);
+        }
+
+        // Remove the markers of the books no longer part of the results or no longer visible
+        Iterator<Map.Entry<String, Marker>> iterator = markers.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Marker> entry = iterator.next();
+            if (!clusters.containsKey(entry.getKey())) {
+                entry.getValue().remove();
+                iterator.remove();
+            }
+        }
+
+        for (ClusterIndex.Cluster cluster : clusters.values()) {
+            Marker marker = markers.get(cluster.getKey());
+            if (marker == null) {
+                marker = googleMap.addMarker(new MarkerOptions().position(cluster.getPosition()));
+                markers.put(cluster.getKey(), marker);
+            } else if (!marker.getPosition().equals(cluster.getPosition())) {
+                marker.setPosition(cluster.getPosition());
+            }
+
+            if (cluster.getSize() == 1) {
+                ClusterIndex.Point point = cluster.getPoints().get(0);
+                if (!Utilities.equals(marker.getTitle(), point.title)) {
+                    marker.setTitle(point.title);
+                }
+                marker.setTag(point.id);
+            } else {
+                Object previous = marker.getTag();
+                if (!(previous instanceof ClusterIndex.Cluster) ||
+                        ((ClusterIndex.Cluster) previous).getSize() != cluster.getSize()) {
+                    marker.setIcon(getClusterIcon(getClusterLabel(cluster.getSize())));
+                }
+                marker.setTag(cluster);
+            }
+        }
+    }
+
+    private boolean onMarkerClicked(@NonNull Marker marker) {
+        if (!(marker.getTag() instanceof ClusterIndex.Cluster)) {
+            return false;
+        }
+
+        ClusterIndex.Cluster cluster = (ClusterIndex.Cluster) marker.getTag();
+        LatLngBounds bounds = cluster.getBounds();
+        boolean samePlace = bounds.northeast.equals(bounds.southwest);
+
+        if (!samePlace && googleMap.getCameraPosition().zoom < googleMap.getMaxZoomLevel()) {
+            googleMap.animateCamera(CameraUpdateFactory.newLatLngBounds(bounds, CAMERA_PADDING));
+        } else if (context != null) {
+            List<ClusterIndex.Point> points = cluster.getPoints();
+            String[] titles = new String[points.size()];
+            for (int i = 0; i < titles.length; i++) {
+                titles[i] = points.get(i).title;
+            }
+
+            new AlertDialog.Builder(context)
+                    .setTitle(R.string.map_cluster_books)
+                    .setItems(titles, (dialog, which) ->
+                            onBookSelectedListener.onBookSelected(points.get(which).id))
+                    .show();
+        }
+        return true;
+    }
+
+    private BitmapDescriptor getClusterIcon(@NonNull String label) {
+        BitmapDescriptor icon = clusterIcons.get(label);
+        if (icon != null) {
+            return icon;
+        }
+
+        DisplayMetrics metrics = context.getResources().getDisplayMetrics();
+        int size = (int) (CLUSTER_ICON_SIZE_DP * metrics.density);
+        Bitmap bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        paint.setColor(Color.WHITE);
+        canvas.drawCircle(size / 2f, size / 2f, size / 2f, paint);
+        paint.setColor(ContextCompat.getColor(context, R.color.colorPrimaryDark));
+        canvas.drawCircle(size / 2f, size / 2f, size / 2f - 2 * metrics.density, paint);
+
+        paint.setColor(Color.WHITE);
+        paint.setTextAlign(Paint.Align.CENTER);
+        paint.setTextSize(CLUSTER_TEXT_SIZE_SP * metrics.scaledDensity);
+        paint.setTypeface(Typeface.DEFAULT_BOLD);
+        canvas.drawText(label, size / 2f, size / 2f - (paint.descent() + paint.ascent()) / 2, paint);
+
+        icon = BitmapDescriptorFactory.fromBitmap(bitmap);
+        clusterIcons.put(label, icon);
+        return icon;
+    }
+
     public interface OnBookSelectedListener {
         void onBookSelected(String bookId);
     }
-}
\ No newline at end of file
+}
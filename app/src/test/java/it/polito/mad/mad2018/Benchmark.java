@@ -0,0 +1,80 @@
+package it.polito.mad.mad2018;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+
+/* Minimal measuring helper for the JVM benchmarks: the task is first run as many times as measured
+ * to warm up the JIT, then the average duration of an iteration and the bytes it allocated are
+ * measured. The results of the task are accumulated, so that its work cannot be optimized away.
+ * The measures depend on the host, hence they are only printed and never asserted. The benchmarks
+ * are excluded from the unit tests, and run with: ./gradlew testDebugUnitTest -Pbenchmarks */
+public final class Benchmark {
+
+    @SuppressWarnings("unused")
+    private static volatile int sink;
+
+    private Benchmark() {
+    }
+
+    public static Measure measure(int iterations, Callable<?> task) throws Exception {
+        int accumulator = 0;
+        for (int i = 0; i < iterations; i++) {
+            accumulator += System.identityHashCode(task.call());
+        }
+
+        long allocationStart = getAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            accumulator += System.identityHashCode(task.call());
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = getAllocatedBytes() - allocationStart;
+
+        sink = accumulator;
+        return new Measure(elapsed / 1000.0 / iterations,
+                allocationStart < 0 ? Double.NaN : (double) allocated / iterations);
+    }
+
+    /* Bytes allocated so far by the current thread, or -1 if not supported by the JVM */
+    public static long getAllocatedBytes() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (threadBean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+            if (allocationBean.isThreadAllocatedMemorySupported() && allocationBean.isThreadAllocatedMemoryEnabled()) {
+                return allocationBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    public static void report(String name, String format, Object... args) {
+        System.out.println(String.format(Locale.US, "[%s] ", name) +
+                String.format(Locale.US, format, args));
+    }
+
+    public static final class Measure {
+        private final double micros;
+        private final double allocatedBytes;
+
+        private Measure(double micros, double allocatedBytes) {
+            this.micros = micros;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        public double getMicros() {
+            return micros;
+        }
+
+        // NaN if the allocations cannot be measured
+        public double getAllocatedBytes() {
+            return allocatedBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%.2f us, %.0f bytes", micros, allocatedBytes);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package it.polito.mad.mad2018.data;
+
+import org.json.JSONArray;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.List;
+
+import it.polito.mad.mad2018.Benchmark;
+
+/* Time and bytes allocated to build the Algolia records field by field and through the Gson
+ * round trip, for a single book and for a set of books as sent by the index writer */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class AlgoliaRecordBenchmark {
+
+    private static final int ITERATIONS = 10000;
+    private static final int SET_ITERATIONS = 100;
+
+    @Test
+    public void algoliaRecord_building() throws Exception {
+        Book.Data.BookInfo bookInfo = TestBooks.createBookData(0).bookInfo;
+
+        Benchmark.Measure record = Benchmark.measure(ITERATIONS, bookInfo::toAlgoliaRecord);
+        Benchmark.Measure gson = Benchmark.measure(ITERATIONS, () -> AlgoliaRecordTest.toGsonRecord(bookInfo));
+
+        Benchmark.report("Algolia record", "toAlgoliaRecord: %s, Gson: %s", record, gson);
+    }
+
+    @Test
+    public void algoliaRecord_buildingAllTheBooks() throws Exception {
+        List<Book.Data.BookInfo> bookInfos = AlgoliaRecordTest.createBookInfos();
+
+        Benchmark.Measure record = Benchmark.measure(SET_ITERATIONS, () -> {
+            JSONArray records = new JSONArray();
+            for (Book.Data.BookInfo bookInfo : bookInfos) {
+                records.put(bookInfo.toAlgoliaRecord());
+            }
+            return records;
+        });
+        Benchmark.Measure gson = Benchmark.measure(SET_ITERATIONS, () -> {
+            JSONArray records = new JSONArray();
+            for (Book.Data.BookInfo bookInfo : bookInfos) {
+                records.put(AlgoliaRecordTest.toGsonRecord(bookInfo));
+            }
+            return records;
+        });
+
+        Benchmark.report("Algolia records", "%d books, toAlgoliaRecord: %s, Gson: %s",
+                AlgoliaRecordTest.BOOK_COUNT, record, gson);
+    }
+}
@@ -0,0 +1,98 @@
+package it.polito.mad.mad2018.data;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/* Compares the Algolia records built field by field with the ones previously obtained through
+ * Gson (serialized to a string and parsed back by org.json). The records must be the same, key by
+ * key, also when some of the fields are missing. The org.json classes are the Robolectric ones.
+ * The helpers are shared with AlgoliaRecordBenchmark */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class AlgoliaRecordTest {
+
+    static final int BOOK_COUNT = 1000;
+
+    private static final Gson gson = new GsonBuilder().create();
+
+    static List<Book.Data.BookInfo> createBookInfos() {
+        List<Book.Data.BookInfo> bookInfos = new ArrayList<>();
+        for (int i = 0; i < BOOK_COUNT; i++) {
+            bookInfos.add(TestBooks.createBookData(i).bookInfo);
+        }
+        return bookInfos;
+    }
+
+    static JSONObject toGsonRecord(Book.Data.BookInfo bookInfo) throws JSONException {
+        return new JSONObject(gson.toJson(bookInfo));
+    }
+
+    // The numbers are compared by value, since the parsed ones may have a different boxed type
+    private static void assertSameJson(String path, Object expected, Object actual) throws JSONException {
+        if (expected instanceof JSONObject) {
+            assertTrue(path, actual instanceof JSONObject);
+            JSONObject expectedObject = (JSONObject) expected;
+            JSONObject actualObject = (JSONObject) actual;
+            assertEquals(path, expectedObject.length(), actualObject.length());
+
+            Iterator<String> keys = expectedObject.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                assertTrue(path + "." + key, actualObject.has(key));
+                assertSameJson(path + "." + key, expectedObject.get(key), actualObject.get(key));
+            }
+        } else if (expected instanceof JSONArray) {
+            assertTrue(path, actual instanceof JSONArray);
+            JSONArray expectedArray = (JSONArray) expected;
+            JSONArray actualArray = (JSONArray) actual;
+            assertEquals(path, expectedArray.length(), actualArray.length());
+
+            for (int i = 0; i < expectedArray.length(); i++) {
+                assertSameJson(path + "[" + i + "]", expectedArray.get(i), actualArray.get(i));
+            }
+        } else if (expected instanceof Number) {
+            assertTrue(path, actual instanceof Number);
+            assertEquals(path, ((Number) expected).doubleValue(), ((Number) actual).doubleValue(), 0);
+        } else {
+            assertEquals(path, expected, actual);
+        }
+    }
+
+    @Test
+    public void algoliaRecord_matchesTheGsonRecord() throws JSONException {
+        Book.Data.BookInfo bookInfo = TestBooks.createBookData(0).bookInfo;
+        assertSameJson("record", toGsonRecord(bookInfo), bookInfo.toAlgoliaRecord());
+    }
+
+    @Test
+    public void algoliaRecord_matchesTheGsonRecordWithMissingFields() throws JSONException {
+        Book.Data.BookInfo bookInfo = TestBooks.createBookData(1).bookInfo;
+        bookInfo.isbn = null;
+        bookInfo.publisher = null;
+        bookInfo.authors = null;
+        bookInfo.tags = new ArrayList<>();
+        assertSameJson("record", toGsonRecord(bookInfo), bookInfo.toAlgoliaRecord());
+    }
+
+    @Test
+    public void algoliaRecord_matchesTheGsonRecordForAllTheBooks() throws JSONException {
+        for (Book.Data.BookInfo bookInfo : createBookInfos()) {
+            assertSameJson(bookInfo.isbn, toGsonRecord(bookInfo), bookInfo.toAlgoliaRecord());
+        }
+    }
+}
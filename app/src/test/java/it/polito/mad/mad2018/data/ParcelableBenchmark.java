@@ -0,0 +1,38 @@
+package it.polito.mad.mad2018.data;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import it.polito.mad.mad2018.Benchmark;
+
+/* Size and cost of the round trip of a book through a Parcel and through the Java serialization.
+ * The timings of the Robolectric Parcel are only indicative of the relative cost */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class ParcelableBenchmark {
+
+    private static final int ITERATIONS = 10000;
+
+    @Test
+    public void parcel_size() throws Exception {
+        Book book = TestBooks.createBook();
+        Benchmark.report("Book size", "Parcelable: %d bytes, Serializable: %d bytes",
+                ParcelableTest.marshall(book).length,
+                ParcelableTest.serialize(ParcelableTest.toSerializable(book)).length);
+    }
+
+    @Test
+    public void parcel_roundTrip() throws Exception {
+        Book book = TestBooks.createBook();
+        ParcelableTest.SerializableBook serializableBook = ParcelableTest.toSerializable(book);
+
+        Benchmark.Measure parcel = Benchmark.measure(ITERATIONS,
+                () -> ParcelableTest.unmarshall(ParcelableTest.marshall(book)));
+        Benchmark.Measure serialization = Benchmark.measure(ITERATIONS,
+                () -> ParcelableTest.deserialize(ParcelableTest.serialize(serializableBook)));
+
+        Benchmark.report("Book round trip", "Parcelable: %s, Serializable: %s", parcel, serialization);
+    }
+}
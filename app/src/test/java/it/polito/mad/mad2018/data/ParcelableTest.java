@@ -0,0 +1,142 @@
+package it.polito.mad.mad2018.data;
+
+import android.os.Parcel;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/* Compares the Parcelable implementation of the books with the Java serialization previously
+ * used to pass them through the bundles. The serialized classes mirror the fields of Book as they
+ * were when it implemented Serializable. The Parcel is the Robolectric one: its sizes are close
+ * to the native ones. The helpers are shared with ParcelableBenchmark */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class ParcelableTest {
+
+    static SerializableBook toSerializable(Book book) {
+        SerializableBook copy = new SerializableBook();
+        copy.bookId = book.bookId;
+        copy.data.uid = book.data.uid;
+        copy.data.bookInfo.isbn = book.data.bookInfo.isbn;
+        copy.data.bookInfo.title = book.data.bookInfo.title;
+        copy.data.bookInfo.authors = new ArrayList<>(book.data.bookInfo.authors);
+        copy.data.bookInfo.language = book.data.bookInfo.language;
+        copy.data.bookInfo.publisher = book.data.bookInfo.publisher;
+        copy.data.bookInfo.year = book.data.bookInfo.year;
+        copy.data.bookInfo.bookConditions.value = book.data.bookInfo.bookConditions.value;
+        copy.data.bookInfo.tags = new ArrayList<>(book.data.bookInfo.tags);
+        copy.data.bookInfo.hasImage = book.data.bookInfo.hasImage;
+        copy.data.flags.available = book.data.flags.available;
+        copy.data.flags.deleted = book.data.flags.deleted;
+        return copy;
+    }
+
+    static byte[] marshall(Book book) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            book.writeToParcel(parcel, 0);
+            return parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    static Book unmarshall(byte[] bytes) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(bytes, 0, bytes.length);
+            parcel.setDataPosition(0);
+            return Book.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    static byte[] serialize(Serializable object) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(buffer)) {
+            out.writeObject(object);
+        }
+        return buffer.toByteArray();
+    }
+
+    static Object deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return in.readObject();
+        }
+    }
+
+    @Test
+    public void parcel_preservesTheBook() {
+        Book book = TestBooks.createBook();
+        Book copy = unmarshall(marshall(book));
+
+        assertEquals(book.getBookId(), copy.getBookId());
+        assertEquals(book.getOwnerId(), copy.getOwnerId());
+        assertEquals(book.getIsbn(), copy.getIsbn());
+        assertEquals(book.getTitle(), copy.getTitle());
+        assertEquals(book.getAuthors(), copy.getAuthors());
+        assertEquals(book.getLanguage(), copy.getLanguage());
+        assertEquals(book.getPublisher(), copy.getPublisher());
+        assertEquals(book.getYear(), copy.getYear());
+        assertEquals(book.data.bookInfo.bookConditions, copy.data.bookInfo.bookConditions);
+        assertEquals(book.getTags(), copy.getTags());
+        assertEquals(book.hasImage(), copy.hasImage());
+        assertEquals(book.isAvailable(), copy.isAvailable());
+    }
+
+    @Test
+    public void parcel_isSmallerThanSerialization() throws IOException {
+        Book book = TestBooks.createBook();
+        int parcelSize = marshall(book).length;
+        int serializedSize = serialize(toSerializable(book)).length;
+        assertTrue(parcelSize < serializedSize);
+    }
+
+    @SuppressWarnings("unused")
+    static class SerializableBook implements Serializable {
+        private String bookId;
+        private Data data = new Data();
+
+        private static class Data implements Serializable {
+            private String uid;
+            private BookInfo bookInfo = new BookInfo();
+            private Flags flags = new Flags();
+        }
+
+        private static class BookInfo implements Serializable {
+            private String isbn;
+            private String title;
+            private List<String> authors;
+            private String language;
+            private String publisher;
+            private int year;
+            private BookConditions bookConditions = new BookConditions();
+            private List<String> tags;
+            private boolean hasImage;
+        }
+
+        private static class BookConditions implements Serializable {
+            private int value;
+        }
+
+        private static class Flags implements Serializable {
+            private boolean available;
+            private boolean deleted;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package it.polito.mad.mad2018.data;
+
+import com.google.firebase.database.DataSnapshot;
+
+import org.junit.Test;
+
+import it.polito.mad.mad2018.Benchmark;
+
+/* Time and bytes allocated to decode a book through SnapshotReader and through the reflection
+ * based mapper. The stubs are the same for both, so that the difference is the cost of the
+ * reflection (the allocations of the stubs themselves are negligible, being answered from maps) */
+public class SnapshotReaderBenchmark {
+
+    private static final int ITERATIONS = 20000;
+
+    @Test
+    public void snapshotReader_decoding() throws Exception {
+        DataSnapshot snapshot = SnapshotReaderTest.createSnapshot(TestBooks.BOOK_ID,
+                SnapshotReaderTest.createBookTree(TestBooks.createBookData(0)));
+
+        Benchmark.Measure reader = Benchmark.measure(ITERATIONS,
+                () -> Book.Data.fromSnapshot(snapshot));
+        Benchmark.Measure reflection = Benchmark.measure(ITERATIONS,
+                () -> SnapshotReaderTest.mapReflectively(snapshot, Book.Data.class));
+
+        Benchmark.report("Book decoding", "SnapshotReader: %s, reflection: %s", reader, reflection);
+    }
+}
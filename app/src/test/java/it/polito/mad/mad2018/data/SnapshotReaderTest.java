@@ -0,0 +1,183 @@
+package it.polito.mad.mad2018.data;
+
+import com.google.firebase.database.DataSnapshot;
+
+import org.junit.Test;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/* Compares the decoding of the snapshots through SnapshotReader with a reflection based mapper
+ * equivalent to the one of the Firebase SDK (fields looked up by name in a per class cache and
+ * set reflectively). The snapshots are stubs built from the JSON trees returned by the database,
+ * and both decoders walk the same children. The helpers are shared with SnapshotReaderBenchmark */
+public class SnapshotReaderTest {
+
+    private static final Map<Class<?>, Map<String, Field>> fieldCache = new HashMap<>();
+
+    // The numbers are stored by the database as longs
+    static Map<String, Object> createBookTree(Book.Data data) {
+        Map<String, Object> bookInfo = new LinkedHashMap<>();
+        bookInfo.put("isbn", data.bookInfo.isbn);
+        bookInfo.put("title", data.bookInfo.title);
+        bookInfo.put("authors", new ArrayList<>(data.bookInfo.authors));
+        bookInfo.put("language", data.bookInfo.language);
+        bookInfo.put("publisher", data.bookInfo.publisher);
+        bookInfo.put("year", (long) data.bookInfo.year);
+        bookInfo.put("bookConditions", Collections.singletonMap("value", (long) data.bookInfo.bookConditions.value));
+        bookInfo.put("tags", new ArrayList<>(data.bookInfo.tags));
+        bookInfo.put("hasImage", data.bookInfo.hasImage);
+
+        Map<String, Object> flags = new LinkedHashMap<>();
+        flags.put("available", data.flags.available);
+        flags.put("deleted", data.flags.deleted);
+
+        Map<String, Object> book = new LinkedHashMap<>();
+        book.put("uid", data.uid);
+        book.put("bookInfo", bookInfo);
+        book.put("flags", flags);
+        return book;
+    }
+
+    /* Lists are exposed as children indexed by position, as done by the database */
+    static DataSnapshot createSnapshot(String key, Object value) {
+        Map<String, DataSnapshot> children = new LinkedHashMap<>();
+        if (value instanceof Map) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                children.put((String) entry.getKey(), createSnapshot((String) entry.getKey(), entry.getValue()));
+            }
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            for (int i = 0; i < list.size(); i++) {
+                children.put(String.valueOf(i), createSnapshot(String.valueOf(i), list.get(i)));
+            }
+        }
+
+        DataSnapshot missing = value == null ? null : createSnapshot(null, null);
+        List<DataSnapshot> childList = new ArrayList<>(children.values());
+
+        DataSnapshot snapshot = mock(DataSnapshot.class, withSettings().stubOnly());
+        when(snapshot.getKey()).thenReturn(key);
+        when(snapshot.getValue()).thenReturn(value);
+        when(snapshot.exists()).thenReturn(value != null);
+        when(snapshot.getChildren()).thenReturn(childList);
+        when(snapshot.getChildrenCount()).thenReturn((long) childList.size());
+        when(snapshot.child(anyString())).thenAnswer(invocation -> {
+            DataSnapshot child = children.get(invocation.<String>getArgument(0));
+            return child != null ? child : missing != null ? missing : snapshot;
+        });
+        return snapshot;
+    }
+
+    private static Map<String, Field> getFields(Class<?> type) {
+        Map<String, Field> fields = fieldCache.get(type);
+        if (fields == null) {
+            fields = new HashMap<>();
+            for (Field field : type.getDeclaredFields()) {
+                if (!Modifier.isStatic(field.getModifiers())) {
+                    field.setAccessible(true);
+                    fields.put(field.getName(), field);
+                }
+            }
+            fieldCache.put(type, fields);
+        }
+        return fields;
+    }
+
+    static <T> T mapReflectively(DataSnapshot snapshot, Class<T> type)
+            throws ReflectiveOperationException {
+
+        Constructor<T> constructor = type.getDeclaredConstructor();
+        constructor.setAccessible(true);
+        T instance = constructor.newInstance();
+
+        Map<String, Field> fields = getFields(type);
+        for (DataSnapshot child : snapshot.getChildren()) {
+            Field field = fields.get(child.getKey());
+            if (field != null) {
+                field.set(instance, convertReflectively(child, field.getGenericType()));
+            }
+        }
+        return instance;
+    }
+
+    private static Object convertReflectively(DataSnapshot snapshot, Type type)
+            throws ReflectiveOperationException {
+
+        Object value = snapshot.getValue();
+        if (type == String.class) {
+            return value;
+        } else if (type == int.class) {
+            return ((Number) value).intValue();
+        } else if (type == boolean.class) {
+            return value;
+        } else if (type instanceof ParameterizedType
+                && ((ParameterizedType) type).getRawType() == List.class) {
+            List<Object> list = new ArrayList<>();
+            Type elementType = ((ParameterizedType) type).getActualTypeArguments()[0];
+            for (DataSnapshot child : snapshot.getChildren()) {
+                list.add(convertReflectively(child, elementType));
+            }
+            return list;
+        }
+        return mapReflectively(snapshot, (Class<?>) type);
+    }
+
+    private static void assertSameBook(Book.Data expected, Book.Data actual) {
+        assertEquals(expected.uid, actual.uid);
+        assertEquals(expected.bookInfo.isbn, actual.bookInfo.isbn);
+        assertEquals(expected.bookInfo.title, actual.bookInfo.title);
+        assertEquals(expected.bookInfo.authors, actual.bookInfo.authors);
+        assertEquals(expected.bookInfo.language, actual.bookInfo.language);
+        assertEquals(expected.bookInfo.publisher, actual.bookInfo.publisher);
+        assertEquals(expected.bookInfo.year, actual.bookInfo.year);
+        assertEquals(expected.bookInfo.bookConditions, actual.bookInfo.bookConditions);
+        assertEquals(expected.bookInfo.tags, actual.bookInfo.tags);
+        assertEquals(expected.bookInfo.hasImage, actual.bookInfo.hasImage);
+        assertEquals(expected.flags.available, actual.flags.available);
+        assertEquals(expected.flags.deleted, actual.flags.deleted);
+    }
+
+    @Test
+    public void snapshotReader_decodesTheBook() {
+        Book.Data data = TestBooks.createBookData(0);
+        DataSnapshot snapshot = createSnapshot(TestBooks.BOOK_ID, createBookTree(data));
+        assertSameBook(data, Book.Data.fromSnapshot(snapshot));
+    }
+
+    @Test
+    public void snapshotReader_decodesLikeTheReflectiveMapper() throws Exception {
+        DataSnapshot snapshot = createSnapshot(TestBooks.BOOK_ID, createBookTree(TestBooks.createBookData(0)));
+        assertSameBook(mapReflectively(snapshot, Book.Data.class), Book.Data.fromSnapshot(snapshot));
+    }
+
+    @Test
+    public void snapshotReader_decodesTheRatings() {
+        Map<String, Object> tree = new LinkedHashMap<>();
+        tree.put("score", 4L);
+        tree.put("comment", "Returned in perfect conditions");
+        tree.put("timestamp", 1526000000000L);
+
+        Rating rating = Rating.fromSnapshot(createSnapshot("-LCa7x", tree));
+        assertEquals(4f, rating.getScore(), 0);
+        assertEquals("Returned in perfect conditions", rating.getComment());
+        assertNull(rating.getBookId());
+        assertEquals(Long.valueOf(1526000000000L), rating.getTimestamp());
+    }
+}
@@ -0,0 +1,36 @@
+package it.polito.mad.mad2018.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/* Books shared by the tests and the benchmarks of the data model. The book of index 0 is a
+ * typical one, while the others vary in every field, to build sets of distinct books */
+final class TestBooks {
+
+    static final String BOOK_ID = "-LBxq2mZ0Jv3cKpT8yUa";
+    static final String OWNER_ID = "Zq3n8YtXvAc2RkLmP0sWdE7fGhJ1";
+
+    private TestBooks() {
+    }
+
+    static Book.Data createBookData(int index) {
+        Book.Data data = new Book.Data();
+        data.uid = OWNER_ID;
+        data.bookInfo.isbn = String.valueOf(9780134685991L + index);
+        data.bookInfo.title = index == 0 ? "Effective Java" : "Effective Java, volume " + index;
+        data.bookInfo.authors = new ArrayList<>(index == 0
+                ? Arrays.asList("Joshua Bloch")
+                : Arrays.asList("Joshua Bloch", "Author " + index));
+        data.bookInfo.language = "en";
+        data.bookInfo.publisher = "Addison-Wesley Professional";
+        data.bookInfo.year = 2017 - index % 30;
+        data.bookInfo.tags = new ArrayList<>(Arrays.asList("java", "programming",
+                index == 0 ? "best practices" : "tag " + index));
+        data.bookInfo.hasImage = index % 2 == 0;
+        return data;
+    }
+
+    static Book createBook() {
+        return new Book(BOOK_ID, createBookData(0));
+    }
+}
@@ -0,0 +1,44 @@
+package it.polito.mad.mad2018.utils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import it.polito.mad.mad2018.Benchmark;
+
+/* Bytes allocated per picture before and after the pooled buffers: previously each encoding went
+ * into a default ByteArrayOutputStream (growing by doubling) and was then copied by toByteArray()
+ * to be uploaded, while now it is written into a pre-sized pooled buffer and read in place */
+public class CompressedOutputStreamBenchmark {
+
+    private static final int ITERATIONS = 10;
+
+    @Test
+    public void pool_allocatedBytesPerPicture() throws Exception {
+        CompressedOutputStream.resetPool();
+        int count = CompressedOutputStreamTest.PICTURE_COUNT;
+
+        Benchmark.Measure before = Benchmark.measure(ITERATIONS, () -> {
+            int total = 0;
+            for (int i = 0; i < count; i++) {
+                ByteArrayOutputStream stream = new ByteArrayOutputStream();
+                CompressedOutputStreamTest.write(stream, CompressedOutputStreamTest.getPictureSize(i));
+                total += stream.toByteArray().length;
+            }
+            return total;
+        });
+        Benchmark.Measure after = Benchmark.measure(ITERATIONS, () -> {
+            int total = 0;
+            for (int i = 0; i < count; i++) {
+                CompressedOutputStream stream = CompressedOutputStreamTest.encode(
+                        CompressedOutputStreamTest.EXPECTED_SIZE, CompressedOutputStreamTest.getPictureSize(i));
+                total += stream.size();
+                stream.release();
+            }
+            return total;
+        });
+
+        Benchmark.report("Picture buffers", "%d pictures, bytes allocated per picture: %.0f before, %.0f after",
+                count, before.getAllocatedBytes() / count, after.getAllocatedBytes() / count);
+    }
+}
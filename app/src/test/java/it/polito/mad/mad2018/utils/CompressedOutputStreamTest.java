@@ -0,0 +1,89 @@
+package it.polito.mad.mad2018.utils;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/* Checks the bytes allocated for the buffers of the compressed pictures. The encoder is simulated
+ * writing the content in chunks, as done by Bitmap.compress, with the streams obtained for the
+ * expected size computed by PictureUtilities from the byte budget. The pool is emptied before
+ * each test. The helpers are shared with CompressedOutputStreamBenchmark */
+public class CompressedOutputStreamTest {
+
+    static final int PICTURE_COUNT = 100;
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    // Budget of the book pictures: the encodings fall within the tolerance below it
+    private static final int MAX_BYTES = 160 * 1024;
+    static final int EXPECTED_SIZE = MAX_BYTES + MAX_BYTES / 4;
+    private static final int MIN_PICTURE_SIZE = MAX_BYTES * 9 / 10;
+
+    private static final byte[] chunk = new byte[CHUNK_SIZE];
+
+    static void write(ByteArrayOutputStream stream, int size) {
+        for (int written = 0; written < size; written += CHUNK_SIZE) {
+            stream.write(chunk, 0, Math.min(CHUNK_SIZE, size - written));
+        }
+    }
+
+    static CompressedOutputStream encode(int expectedSize, int size) {
+        CompressedOutputStream stream = CompressedOutputStream.obtain(expectedSize);
+        write(stream, size);
+        return stream;
+    }
+
+    static int getPictureSize(int index) {
+        return MIN_PICTURE_SIZE + index * (MAX_BYTES - MIN_PICTURE_SIZE) / PICTURE_COUNT;
+    }
+
+    @Before
+    public void setUp() {
+        CompressedOutputStream.resetPool();
+    }
+
+    @Test
+    public void obtain_capsTheExpectedSize() {
+        CompressedOutputStream.obtain(4 * CompressedOutputStream.MAX_POOLED_BUFFER_SIZE).release();
+
+        CompressedOutputStream.Statistics statistics = CompressedOutputStream.getStatistics();
+        assertEquals(CompressedOutputStream.MAX_POOLED_BUFFER_SIZE, statistics.getAllocatedBytes());
+    }
+
+    @Test
+    public void write_growsBeyondTheExpectedSize() throws IOException {
+        int size = CompressedOutputStream.MAX_POOLED_BUFFER_SIZE + CHUNK_SIZE;
+        CompressedOutputStream stream = encode(Integer.MAX_VALUE, size);
+        assertEquals(size, stream.size());
+
+        ByteArrayOutputStream copy = new ByteArrayOutputStream(size);
+        stream.writeTo(copy);
+        assertEquals(size, copy.size());
+        stream.release();
+    }
+
+    @Test
+    public void pool_allocatesOnlyTheFirstPicture() {
+        for (int i = 0; i < PICTURE_COUNT; i++) {
+            encode(EXPECTED_SIZE, getPictureSize(i)).release();
+        }
+
+        // The pre-sized buffer never grows, and is then reused by all the other pictures
+        CompressedOutputStream.Statistics statistics = CompressedOutputStream.getStatistics();
+        assertEquals(EXPECTED_SIZE, statistics.getAllocatedBytes());
+        assertEquals(1, statistics.getAllocatedBufferCount());
+        assertEquals(PICTURE_COUNT - 1, statistics.getReusedBufferCount());
+    }
+
+    @Test
+    public void pool_doesNotKeepTheOversizedBuffers() {
+        encode(Integer.MAX_VALUE, CompressedOutputStream.MAX_POOLED_BUFFER_SIZE + CHUNK_SIZE).release();
+        encode(EXPECTED_SIZE, getPictureSize(0)).release();
+
+        assertEquals(0, CompressedOutputStream.getStatistics().getReusedBufferCount());
+    }
+}
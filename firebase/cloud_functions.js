@@ -6,8 +6,14 @@ admin.initializeApp();
 const MAX_NOTIFICATION_LEN = 256;
 const MAX_BOOK_TITLE_LEN = 64;
 
-exports.onNewMessage = functions.database.ref('/conversations/{cid}/messages/{mid}')
+exports.onNewMessage = functions.database.ref('/messages/{cid}/{mid}')
     .onCreate((snapshot, context) => {
+
+        // Moved by migrate_messages.js from the old location: already processed
+        if (snapshot.child('migrated').val() === true) {
+            return true;
+        }
+
         const cid = context.params.cid;
         const rid = snapshot.child('recipient').val();
         const timestamp = snapshot.child('timestamp').val() * (-1);
@@ -36,6 +42,14 @@ exports.onNewMessage = functions.database.ref('/conversations/{cid}/messages/{mi
 
         let promises = [];
 
+        // The function runs are not ordered: an older message must not replace a newer one
+        const message = snapshot.val();
+        promises.push(admin.database().ref('/conversations/' + cid + '/lastMessage').transaction(current => {
+            if (current && current.timestamp > message.timestamp) {
+                return undefined;
+            }
+            return message;
+        }));
         promises.push(admin.database().ref('/conversations/' + cid + '/owner').once('value').then(result => {
             return performActions(result);
         }));
@@ -356,6 +370,6 @@ function sendMessage(cid, recipient, textId) {
                 message.text = texts['en'][textId];
         }
 
-        return admin.database().ref('/conversations/' + cid + '/messages').push().set(message);
+        return admin.database().ref('/messages/' + cid).push().set(message);
     });
 }
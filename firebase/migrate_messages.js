@@ -0,0 +1,54 @@
+/* One-off migration of the messages from /conversations/{cid}/messages to /messages/{cid}.
+ * The moved messages are flagged, so that onNewMessage does not notify them again.
+ * Usage: GOOGLE_APPLICATION_CREDENTIALS=<service account key> node migrate_messages.js <database URL> */
+
+const admin = require('firebase-admin');
+admin.initializeApp({
+    credential: admin.credential.applicationDefault(),
+    databaseURL: process.argv[2]
+});
+
+const database = admin.database();
+
+database.ref('/conversations').once('value').then(conversations => {
+
+    let promises = [];
+    conversations.forEach(conversation => {
+
+        const cid = conversation.key;
+        const messages = conversation.child('messages');
+        if (!messages.exists()) {
+            return false;
+        }
+
+        let updates = {};
+        let lastMessage = null;
+        messages.forEach(message => {
+            let value = message.val();
+            value.migrated = true;
+            updates['/messages/' + cid + '/' + message.key] = value;
+            lastMessage = message.val();
+            return false;
+        });
+
+        // The push keys are chronological: the last one is the most recent message
+        if (!conversation.child('lastMessage').exists() && lastMessage !== null) {
+            updates['/conversations/' + cid + '/lastMessage'] = lastMessage;
+        }
+        updates['/conversations/' + cid + '/messages'] = null;
+
+        promises.push(database.ref().update(updates));
+        return false;
+    });
+
+    return Promise.all(promises).then(() => {
+        console.log('Migrated the messages of ' + promises.length + ' conversations');
+        return true;
+    });
+
+}).then(() => {
+    return process.exit(0);
+}).catch(error => {
+    console.error(error);
+    return process.exit(1);
+});